@@ -1,33 +1,151 @@
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpPrincipal;
 
 import com.helger.schematron.pure.SchematronResourcePure;
+import com.helger.schematron.sch.SchematronResourceSCH;
+import com.helger.schematron.xslt.ISchematronXSLTBasedProvider;
 import com.helger.schematron.svrl.jaxb.SchematronOutputType;
 import com.helger.schematron.svrl.jaxb.FailedAssert;
 import com.helger.schematron.svrl.jaxb.SuccessfulReport;
 import com.helger.schematron.svrl.jaxb.Text;
 
 import genFactura.GenFactura;
+import net.sf.jasperreports.engine.DefaultJasperReportsContext;
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.JasperExportManager;
+import net.sf.jasperreports.engine.JasperFillManager;
+import net.sf.jasperreports.engine.JasperPrint;
+import net.sf.jasperreports.engine.JasperReport;
+import net.sf.jasperreports.engine.SimpleJasperReportsContext;
+import net.sf.jasperreports.engine.util.JRLoader;
+import net.sf.jasperreports.engine.util.JRXmlUtils;
+import net.sf.jasperreports.repo.ReportResource;
+import net.sf.jasperreports.repo.RepositoryService;
+import net.sf.jasperreports.repo.Resource;
 import ro.mfinante.ValidateDetachedSignatureSanturio;
 
+import javax.xml.crypto.AlgorithmMethod;
+import javax.xml.crypto.KeySelector;
+import javax.xml.crypto.KeySelectorException;
+import javax.xml.crypto.KeySelectorResult;
+import javax.xml.crypto.OctetStreamData;
+import javax.xml.crypto.URIDereferencer;
+import javax.xml.crypto.XMLCryptoContext;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.X509Data;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.TransformerFactoryConfigurationError;
+import javax.xml.transform.dom.DOMResult;
+import javax.management.ObjectName;
+import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
 import java.io.*;
-import java.lang.reflect.Method;
+import java.lang.management.ManagementFactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PublicKey;
+import java.security.cert.CertPath;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 /**
  * Unified Java service for UBL invoice validation, PDF generation,
@@ -38,51 +156,334 @@ import java.util.concurrent.atomic.AtomicLong;
  *
  * API:
  *   POST /validate           XML body → JSON validation result
+ *   POST /validate/batch     multipart or length-prefixed XML → streamed JSON results
+ *   POST /validate/cache/invalidate   drop cached validation results
  *   POST /generate-pdf       XML body → PDF binary
- *   POST /verify-signature   JSON {xml, signature} → JSON result
+ *   POST /verify-signature   JSON {xml, signature} or multipart xml + signature → JSON result
+ *   POST /process-archive    SPV ZIP(s) → multipart/mixed signature + validation JSON and PDF
+ *   POST /etransport/validate  e-Transport XML body → JSON validation result
  *   POST /duk/validate       XML body → JSON DUK validation result
  *   POST /duk/generate-pdf   XML body → PDF binary (DUKIntegrator)
+ *   POST /jobs?job=validate|pdf|etransport-validate|duk-validate|duk-pdf   body as above → 202 {id}
+ *   GET  /jobs/{id}          202 while pending, then the endpoint's own response
+ *   DELETE /jobs/{id}        cancel or drop a job
  *   GET  /health             JSON status
+ *   GET  /metrics            Prometheus text exposition
  */
 public class JavaServiceServer {
 
     private static SchematronResourcePure schematronRO;
-    private static Schema xsdSchema;
+    // Set instead of schematronRO when -Dschematron.engine=xslt
+    private static CompiledSchematron schematronXslt;
+    private static String schematronEngine;
+    // Compiled UBL schemas keyed by root element namespace (Invoice, CreditNote)
+    private static final Map<String, Schema> xsdSchemas = new ConcurrentHashMap<>();
+    static final String UBL_INVOICE_NS = "urn:oasis:names:specification:ubl:schema:xsd:Invoice-2";
+    static final String UBL_CREDIT_NOTE_NS = "urn:oasis:names:specification:ubl:schema:xsd:CreditNote-2";
     private static boolean schematronReady = false;
     private static boolean xsdReady = false;
     private static boolean pdfReady = false;
+    private static boolean jasperReady = false;
     private static boolean signatureReady = false;
+    private static boolean santuarioReady = false;
+    // In-memory XMLDSig engine; null with -Dsignature.engine=santuario
+    private static NativeSignatureVerifier nativeVerifier;
     private static boolean dukReady = false;
+    // e-Transport declarations: schema_ETR_v2.xsd and the shipped compiled
+    // Schematron; each stays null when it failed to load
+    static final String ETRANSPORT_NS = "mfp:anaf:dgti:eTransport:declaratie:v2";
+    private static Schema etransportSchema;
+    private static CompiledSchematron etransportSchematron;
 
     private static final AtomicLong validateCount = new AtomicLong(0);
     private static final AtomicLong pdfCount = new AtomicLong(0);
     private static final AtomicLong signatureCount = new AtomicLong(0);
+    private static final AtomicLong signatureFallbacks = new AtomicLong(0);
     private static final AtomicLong dukValidateCount = new AtomicLong(0);
     private static final AtomicLong dukPdfCount = new AtomicLong(0);
+    private static final AtomicLong batchCount = new AtomicLong(0);
+    private static final AtomicLong archiveCount = new AtomicLong(0);
+    private static final AtomicLong etransportCount = new AtomicLong(0);
+
+    // Bounded pool for /validate/batch, kept apart from the HTTP executor so a
+    // large batch cannot occupy every request thread
+    private static ExecutorService batchPool;
+    private static int batchThreads;
+    private static int batchMaxDocBytes;
+
+    // /process-archive stage pool: signature and invoice tasks per archive
+    private static ExecutorService archivePool;
+    private static int archiveThreads;
+
+    // Response compression (-Dhttp.gzip*); gzipLevel -1 disables it
+    private static int gzipLevel = -1;
+    private static int gzipMinBytes = 1024;
+    private static boolean gzipPdf;
+
+    // Per-endpoint executors; /health and the cache admin call run inline
+    private static final List<Lane> lanes = new ArrayList<>();
+    private static int retryAfterSeconds;
+
+    // -Dexecutor.mode=virtual: handlers on virtual threads (Java 21+), with
+    // CPU-bound stages gated by cpuGate; null in platform mode
+    private static boolean virtualThreads;
+    private static CpuGate cpuGate;
+
+    // Null when disabled (-Dvalidate.cache.size=0)
+    private static ValidationCache validationCache;
+
+    // Asynchronous /jobs table and pool
+    private static JobStore jobStore;
 
     // DUKIntegrator base directory (set via system property or auto-detected)
     private static String dukDir;
+    // Per-type DUK class loaders, swapped when jars change; -Dduk.reload=false to pin
+    private static DukRegistry dukRegistry;
+    // Per-type XSDs checked before DUK; null with -Dduk.xsd=false
+    private static DeclarationSchemas declarationSchemas;
+    // Child JVMs running GenFactura and DUK; null runs them in-process (-Dworkers.count=0)
+    private static WorkerPool workerPool;
+
+    // Subsystem load times, time to ready and to the first response
+    private static Startup startup;
 
     // Base directory for schema files (set via system property or CWD)
     private static String schemaDir;
 
+    // Compiled GenFactura reports (factura_*.jasper) for in-memory rendering
+    private static File jasperDir;
+    private static ReportRegistry reportRegistry;
+
+    // Null when disabled (-Dpdf.cache=false) or PDF generation is unavailable
+    private static PdfCache pdfCache;
+
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--worker")) {
+            Engines.serve();
+            return;
+        }
+        startup = new Startup();
         int port = 8082;
         if (args.length > 0) {
             port = Integer.parseInt(args[0]);
         }
 
         schemaDir = System.getProperty("schema.dir", System.getProperty("user.dir"));
+        schematronEngine = System.getProperty("schematron.engine", "pure").toLowerCase();
 
         System.out.println("[JavaServices] Starting on port " + port + "...");
         System.out.println("[JavaServices] Schema dir: " + schemaDir);
 
+        // ── Subsystems ───────────────────────────────────────────────
+        // Independent of each other, so they load side by side;
+        // -Dstartup.parallel=false loads them one after another
+        startup.load(Boolean.parseBoolean(System.getProperty("startup.parallel", "true")),
+            new Startup.Step("schematron", JavaServiceServer::initSchematron),
+            new Startup.Step("xsd-invoice",
+                () -> initUblXsd(UBL_INVOICE_NS, "maindoc/UBL-Invoice-2.1.xsd")),
+            new Startup.Step("xsd-creditnote",
+                () -> initUblXsd(UBL_CREDIT_NOTE_NS, "maindoc/UBL-CreditNote-2.1.xsd")),
+            new Startup.Step("etransport", JavaServiceServer::initETransport),
+            new Startup.Step("pdf", JavaServiceServer::initPdf),
+            new Startup.Step("signature", JavaServiceServer::initSignature),
+            new Startup.Step("duk", JavaServiceServer::initDuk));
+        System.out.println("[JavaServices] Subsystems loaded in " + startup.describeLoad());
+
+        // ── Validation result cache ──────────────────────────────────
+        int cacheSize = Integer.getInteger("validate.cache.size", 2000);
+        if (cacheSize > 0 && (xsdReady || schematronReady)) {
+            validationCache = new ValidationCache(cacheSize,
+                Long.getLong("validate.cache.ttl", 3600L) * 1000);
+            System.out.println("[JavaServices] Validation cache: " + cacheSize +
+                " entries, resources " + validationCache.resourceVersion());
+        }
+
+        // ── Batch validation pool ────────────────────────────────────
+        // Half the cores by default so a month-end batch leaves headroom for
+        // /generate-pdf; the queue is bounded and submitters block when full.
+        int cores = Runtime.getRuntime().availableProcessors();
+        batchThreads = Integer.getInteger("batch.threads", Math.max(1, cores / 2));
+        batchMaxDocBytes = Integer.getInteger("batch.maxDocBytes", 50 * 1024 * 1024);
+        AtomicLong batchThreadSeq = new AtomicLong();
+        batchPool = new ThreadPoolExecutor(batchThreads, batchThreads,
+            0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(batchThreads * 2),
+            r -> {
+                Thread t = new Thread(r, "batch-validate-" + batchThreadSeq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            },
+            (r, pool) -> {
+                try {
+                    pool.getQueue().put(r);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted while queueing", e);
+                }
+            });
+
+        // ── Archive pipeline pool ────────────────────────────────────
+        // Two tasks per archive (signature, invoice); submitters block when full
+        archiveThreads = Integer.getInteger("archive.threads", Math.max(2, cores / 2));
+        AtomicLong archiveThreadSeq = new AtomicLong();
+        archivePool = new ThreadPoolExecutor(archiveThreads, archiveThreads,
+            0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(archiveThreads * 2),
+            r -> {
+                Thread t = new Thread(r, "archive-" + archiveThreadSeq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            },
+            (r, pool) -> {
+                try {
+                    pool.getQueue().put(r);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted while queueing", e);
+                }
+            });
+
+        // ── Engine worker JVMs ───────────────────────────────────────
+        // GenFactura and DUK calls leave this process for -Dworkers.count
+        // child JVMs; started in the background, each warms up on its own
+        int workerCount = Integer.getInteger("workers.count", 0);
+        if (workerCount > 0 && (pdfReady || dukReady)) {
+            int workerHeapMb = Integer.getInteger("workers.heapMb", 384);
+            workerPool = new WorkerPool(workerCount, workerHeapMb,
+                Math.max(1, Integer.getInteger("workers.maxJobs", 500)),
+                Long.getLong("workers.maxHeapMb", workerHeapMb * 3L / 4) * 1024 * 1024,
+                Long.getLong("workers.timeoutMs", 120_000L));
+            workerPool.start();
+            if (dukRegistry != null) dukRegistry.onReload(workerPool::recycleAll);
+        }
+
+        // ── Start HTTP server ────────────────────────────────────────
+        // The server's own threads only dispatch: each endpoint runs on its
+        // lane (-Dlane.<name>.threads / -Dlane.<name>.queue), /health inline.
+        retryAfterSeconds = Integer.getInteger("lane.retryAfter", 1);
+        int dispatchThreads = Integer.getInteger("http.dispatchThreads", 2);
+        if ("virtual".equalsIgnoreCase(System.getProperty("executor.mode", "platform"))) {
+            if (newVirtualThreadExecutor() != null) {
+                virtualThreads = true;
+                cpuGate = new CpuGate(Integer.getInteger("cpu.permits", cores));
+            } else {
+                System.err.println("[JavaServices] WARNING: virtual threads need Java 21+ (running " +
+                    Runtime.version().feature() + "), using platform threads");
+            }
+        }
+        if (Boolean.parseBoolean(System.getProperty("http.gzip", "true"))) {
+            gzipLevel = Math.max(1, Math.min(9, Integer.getInteger("http.gzip.level", 1)));
+        }
+        gzipMinBytes = Integer.getInteger("http.gzip.minBytes", 1024);
+        gzipPdf = Boolean.parseBoolean(System.getProperty("http.gzip.pdf", "false"));
+
+        // Keep-alive: hold idle connections longer than curl's 118s
+        // connection max age (CURLOPT_MAXAGE_CONN), so Symfony HttpClient
+        // always retires a connection before the server closes it and never
+        // sends a request into a half-closed socket. Read at first use of
+        // the server classes, so these must be set before HttpServer.create.
+        setDefaultProperty("sun.net.httpserver.idleInterval",
+            System.getProperty("http.keepAlive.idleSeconds", "125"));
+        setDefaultProperty("sun.net.httpserver.maxIdleConnections",
+            System.getProperty("http.keepAlive.maxIdle", "256"));
+        // The server writes headers and body as separate segments; with
+        // Nagle on, a reused connection stalls ~40ms on the client's delayed ACK
+        setDefaultProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/validate",
+            lane(Metrics.VALIDATE, new ValidateHandler(), Math.max(2, cores), 64));
+        server.createContext("/validate/batch",
+            lane(Metrics.BATCH, new ValidateBatchHandler(), 2, 2));
+        server.createContext("/validate/cache/invalidate", new CacheInvalidateHandler());
+        server.createContext("/generate-pdf",
+            lane(Metrics.PDF, new PdfHandler(), Math.max(2, cores / 2), 32));
+        server.createContext("/verify-signature",
+            lane(Metrics.SIGNATURE, new SignatureHandler(), Math.max(2, cores / 2), 32));
+        server.createContext("/process-archive",
+            lane(Metrics.ARCHIVE, new ArchiveHandler(), 2, 4));
+        server.createContext("/etransport/validate",
+            lane(Metrics.ETRANSPORT, new ETransportValidateHandler(), Math.max(2, cores / 2), 64));
+        server.createContext("/duk/validate",
+            lane(Metrics.DUK_VALIDATE, new DukValidateHandler(), 2, 16));
+        server.createContext("/duk/generate-pdf",
+            lane(Metrics.DUK_PDF, new DukPdfHandler(), 2, 16));
+        // Jobs call the instrumented handlers directly, so their requests and
+        // stages show up under the target endpoint's metrics
+        jobStore = new JobStore(Map.of(
+                "validate", Metrics.VALIDATE.instrument(new ValidateHandler()),
+                "etransport-validate", Metrics.ETRANSPORT.instrument(new ETransportValidateHandler()),
+                "pdf", Metrics.PDF.instrument(new PdfHandler()),
+                "duk-validate", Metrics.DUK_VALIDATE.instrument(new DukValidateHandler()),
+                "duk-pdf", Metrics.DUK_PDF.instrument(new DukPdfHandler())),
+            Math.max(1, Integer.getInteger("jobs.threads", 2)),
+            Math.max(1, Integer.getInteger("jobs.max", 500)),
+            Long.getLong("jobs.maxResultBytes", 256L * 1024 * 1024),
+            Long.getLong("jobs.ttl", 900L) * 1000);
+        server.createContext("/jobs", lane(Metrics.JOBS, new JobsHandler(), 2, 64));
+        server.createContext("/health", new HealthHandler());
+        server.createContext("/metrics", new MetricsHandler());
+        server.setExecutor(virtualThreads
+            ? newVirtualThreadExecutor() : Executors.newFixedThreadPool(dispatchThreads));
+        server.start();
+        startup.ready();
+
+        System.out.println("[JavaServices] Ready — http://127.0.0.1:" + port + " " +
+            startup.describeReady());
+        System.out.println("[JavaServices]   /validate          " +
+            (schematronReady ? "OK" : "UNAVAILABLE"));
+        System.out.println("[JavaServices]   /validate/batch    " +
+            (schematronReady ? "OK" : "UNAVAILABLE"));
+        System.out.println("[JavaServices]   /generate-pdf      " +
+            (pdfReady ? "OK" : "UNAVAILABLE"));
+        System.out.println("[JavaServices]   /verify-signature  " +
+            (signatureReady ? "OK" : "UNAVAILABLE"));
+        System.out.println("[JavaServices]   /process-archive   " +
+            (signatureReady || schematronReady || pdfReady ? "OK" : "UNAVAILABLE"));
+        System.out.println("[JavaServices]   /etransport/validate " +
+            (etransportSchema != null || etransportSchematron != null ? "OK" : "UNAVAILABLE"));
+        System.out.println("[JavaServices]   /duk/validate      " +
+            (dukReady ? "OK" : "UNAVAILABLE"));
+        System.out.println("[JavaServices]   /duk/generate-pdf  " +
+            (dukReady ? "OK" : "UNAVAILABLE"));
+        System.out.println("[JavaServices]   Schematron:  " + schematronEngine);
+        System.out.println("[JavaServices]   PDF cache:   " + (pdfCache != null
+            ? pdfCache.heapMaxBytes / (1024 * 1024) + " MiB heap, " +
+                pdfCache.diskMaxBytes / (1024 * 1024) + " MiB disk"
+            : "off"));
+        System.out.println("[JavaServices]   Signature:   " + (nativeVerifier != null
+            ? "native" + (santuarioReady ? ", Santuario fallback" : "")
+            : santuarioReady ? "santuario" : "unavailable"));
+        System.out.println("[JavaServices]   Executor:    " + (virtualThreads
+            ? "virtual threads, " + cpuGate.permits() + " CPU permits"
+            : "platform, " + dispatchThreads + " dispatch threads"));
+        for (Lane lane : lanes) {
+            System.out.println("[JavaServices]   Lane " + lane.describe());
+        }
+        System.out.println("[JavaServices]   Batch pool:  " + batchThreads);
+        System.out.println("[JavaServices]   Archive pool: " + archiveThreads);
+        System.out.println("[JavaServices]   Jobs:        " + jobStore.threads() + " threads");
+        System.out.println("[JavaServices]   Engines:     " + (workerPool != null
+            ? workerPool.size() + " worker JVMs" : "in-process"));
+        System.out.println("[JavaServices]   HTTP:        " + (gzipLevel >= 0
+            ? "gzip level " + gzipLevel + " from " + gzipMinBytes + "b" + (gzipPdf ? " incl. PDF" : "")
+            : "no compression") + ", keep-alive " +
+            System.getProperty("sun.net.httpserver.idleInterval") + "s idle, " +
+            System.getProperty("sun.net.httpserver.maxIdleConnections") + " idle connections");
+    }
+
+    /** CIUS-RO Schematron, pure or compiled to XSLT (-Dschematron.engine). */
+    private static void initSchematron() throws Exception {
         // ── Load Schematron ──────────────────────────────────────────
         long start = System.currentTimeMillis();
         try {
             File schFile = new File(schemaDir,
                 "ro16931-ubl-1.0.9/EN16931-CIUS_RO-UBL-validation.sch");
-            if (schFile.exists()) {
+            if (schFile.exists() && "xslt".equals(schematronEngine)) {
+                schematronXslt = CompiledSchematron.fromSchematron(schFile);
+                schematronReady = true;
+                System.out.println("[JavaServices] Schematron compiled to XSLT in " +
+                    (System.currentTimeMillis() - start) + "ms");
+            } else if (schFile.exists()) {
                 schematronRO = SchematronResourcePure.fromFile(schFile);
                 if (schematronRO.isValidSchematron()) {
                     schematronReady = true;
@@ -99,29 +500,78 @@ public class JavaServiceServer {
             System.err.println("[JavaServices] WARNING: Schematron load failed: " +
                 e.getMessage());
         }
+    }
 
-        // ── Load XSD ─────────────────────────────────────────────────
-        start = System.currentTimeMillis();
+    /**
+     * One compiled Schema per UBL root; requests are routed by peeking at
+     * the root element namespace, so credit notes stay in-process too.
+     * Each root is its own startup step, with its own (single-threaded)
+     * SchemaFactory.
+     */
+    private static void initUblXsd(String namespace, String path) {
+        long start = System.currentTimeMillis();
         try {
-            File xsdFile = new File(schemaDir, "maindoc/UBL-Invoice-2.1.xsd");
+            File xsdFile = new File(schemaDir, path);
             if (xsdFile.exists()) {
-                SchemaFactory factory = SchemaFactory.newInstance(
-                    "http://www.w3.org/2001/XMLSchema");
-                xsdSchema = factory.newSchema(xsdFile);
+                xsdSchemas.put(namespace, SchemaFactory.newInstance(
+                    "http://www.w3.org/2001/XMLSchema").newSchema(xsdFile));
                 xsdReady = true;
-                System.out.println("[JavaServices] XSD loaded in " +
-                    (System.currentTimeMillis() - start) + "ms");
+                System.out.println("[JavaServices] XSD " + xsdFile.getName() +
+                    " loaded in " + (System.currentTimeMillis() - start) + "ms");
+            } else {
+                System.err.println("[JavaServices] WARNING: XSD not found: " +
+                    xsdFile.getAbsolutePath());
+            }
+        } catch (Exception e) {
+            System.err.println("[JavaServices] WARNING: XSD load failed (" +
+                path + "): " + e.getMessage());
+        }
+    }
+
+    /**
+     * e-Transport XSD and compiled Schematron. The .sch ships already
+     * compiled to XSLT 2.0, so startup only has to build the Templates; no
+     * ISO skeleton pass as for CIUS-RO.
+     */
+    private static void initETransport() {
+        File etransportDir = new File(schemaDir, "etransport");
+        long start = System.currentTimeMillis();
+        try {
+            File xsdFile = new File(etransportDir, "schema_ETR_v2.xsd");
+            if (xsdFile.exists()) {
+                etransportSchema = SchemaFactory.newInstance(
+                    "http://www.w3.org/2001/XMLSchema").newSchema(xsdFile);
+                System.out.println("[JavaServices] XSD " + xsdFile.getName() +
+                    " loaded in " + (System.currentTimeMillis() - start) + "ms");
             } else {
                 System.err.println("[JavaServices] WARNING: XSD not found: " +
                     xsdFile.getAbsolutePath());
             }
         } catch (Exception e) {
-            System.err.println("[JavaServices] WARNING: XSD load failed: " +
+            System.err.println("[JavaServices] WARNING: e-Transport XSD load failed: " +
+                e.getMessage());
+        }
+        start = System.currentTimeMillis();
+        try {
+            File xslFile = new File(etransportDir, "eTransport-validation_v2.0.2.compiled.xsl");
+            if (xslFile.exists()) {
+                etransportSchematron = CompiledSchematron.fromXsl(xslFile);
+                System.out.println("[JavaServices] e-Transport Schematron loaded in " +
+                    (System.currentTimeMillis() - start) + "ms");
+            } else {
+                System.err.println("[JavaServices] WARNING: e-Transport Schematron not found: " +
+                    xslFile.getAbsolutePath());
+            }
+        } catch (Exception e) {
+            System.err.println("[JavaServices] WARNING: e-Transport Schematron load failed: " +
                 e.getMessage());
         }
+    }
 
+    /** GenFactura, the Jasper templates and the PDF render cache. */
+    private static void initPdf() throws Exception {
         // ── Warm up GenFactura ───────────────────────────────────────
-        start = System.currentTimeMillis();
+        long start = System.currentTimeMillis();
         try {
             new GenFactura();
             pdfReady = true;
@@ -132,11 +582,54 @@ public class JavaServiceServer {
                 e.getMessage());
         }
 
+        // ── In-memory PDF rendering (Jasper) ─────────────────────────
+        // -Dpdf.engine=genfactura keeps the temp-file GenFactura path only
+        jasperDir = new File(System.getProperty("pdf.jasper.dir",
+            new File(System.getProperty("user.dir"), "tools/pdf-generator/jasper").getPath()));
+        if (pdfReady && !"genfactura".equalsIgnoreCase(System.getProperty("pdf.engine", "jasper"))) {
+            try {
+                Class.forName("net.sf.jasperreports.engine.JasperFillManager");
+                ReportRegistry registry = new ReportRegistry(jasperDir);
+                int loaded = registry.refresh();
+                if (registry.get("factura_complet2.jasper") != null
+                        && registry.get("factura_complet2_c.jasper") != null) {
+                    reportRegistry = registry;
+                    jasperReady = true;
+                    System.out.println("[JavaServices] Jasper templates: " + loaded +
+                        " loaded in " + registry.loadMillis() + "ms (" + jasperDir + ")");
+                } else {
+                    System.err.println("[JavaServices] WARNING: Jasper reports not found in " +
+                        jasperDir + ", using GenFactura");
+                }
+            } catch (ClassNotFoundException e) {
+                System.err.println("[JavaServices] WARNING: JasperReports not on classpath, " +
+                    "using GenFactura");
+            } catch (Exception e) {
+                System.err.println("[JavaServices] WARNING: Jasper template load failed, " +
+                    "using GenFactura: " + e.getMessage());
+            }
+        }
+
+        // ── PDF render cache ─────────────────────────────────────────
+        if (pdfReady && Boolean.parseBoolean(System.getProperty("pdf.cache", "true"))) {
+            File cacheDir = new File(System.getProperty("pdf.cache.dir",
+                new File(System.getProperty("java.io.tmpdir"), "javaservices-pdf-cache").getPath()));
+            pdfCache = new PdfCache(
+                Long.getLong("pdf.cache.heapBytes", 32L * 1024 * 1024),
+                Long.getLong("pdf.cache.diskBytes", 1024L * 1024 * 1024),
+                cacheDir);
+            System.out.println("[JavaServices] PDF cache: " + cacheDir + ", templates " +
+                pdfCache.version());
+        }
+    }
+
+    /** Santuario wrapper and the native XMLDSig verifier. */
+    private static void initSignature() throws Exception {
         // ── Warm up Signature Verifier ───────────────────────────────
-        start = System.currentTimeMillis();
+        long start = System.currentTimeMillis();
         try {
             Class.forName("ro.mfinante.ValidateDetachedSignatureSanturio");
-            signatureReady = true;
+            santuarioReady = true;
             System.out.println("[JavaServices] Signature verifier loaded in " +
                 (System.currentTimeMillis() - start) + "ms");
         } catch (Exception e) {
@@ -144,8 +637,40 @@ public class JavaServiceServer {
                 e.getMessage());
         }
 
+        // ── Native signature verification (javax.xml.crypto.dsig) ────
+        // -Dsignature.engine=santuario keeps the temp-file wrapper only
+        if (!"santuario".equalsIgnoreCase(System.getProperty("signature.engine", "native"))) {
+            File certsDir = new File(System.getProperty("signature.certs.dir",
+                new File(schemaDir, "certs").getPath()));
+            try {
+                List<X509Certificate> pinned = SignerCertCache.loadPinned(certsDir);
+                String truststore = System.getProperty("signature.truststore", "");
+                Set<TrustAnchor> anchors = truststore.isEmpty() ? null
+                    : SignerCertCache.loadAnchors(new File(truststore),
+                        System.getProperty("signature.truststore.password", "changeit").toCharArray());
+                if (!pinned.isEmpty() || anchors != null) {
+                    nativeVerifier = new NativeSignatureVerifier(new SignerCertCache(pinned, anchors,
+                        Integer.getInteger("signature.cache.size", 256),
+                        Long.getLong("signature.cache.ttl", 3600L) * 1000));
+                    System.out.println("[JavaServices] Native signature verifier: " +
+                        pinned.size() + " pinned signer certificates (" + certsDir + ")" +
+                        (anchors != null ? ", " + anchors.size() + " trust anchors" : ""));
+                } else {
+                    System.err.println("[JavaServices] WARNING: No mf*.cer certificates in " +
+                        certsDir + ", native signature verification disabled");
+                }
+            } catch (Exception e) {
+                System.err.println("[JavaServices] WARNING: Signer certificates failed to load: " +
+                    e.getMessage());
+            }
+        }
+        signatureReady = santuarioReady || nativeVerifier != null;
+    }
+
+    /** DUKIntegrator class loaders and the declaration XSDs checked before it. */
+    private static void initDuk() throws Exception {
         // ── Warm up DUKIntegrator ───────────────────────────────────
-        start = System.currentTimeMillis();
+        long start = System.currentTimeMillis();
         dukDir = System.getProperty("duk.dir", "");
         if (dukDir.isEmpty()) {
             // Auto-detect: look for DUKIntegrator.jar in tools/duk-integrator/
@@ -157,44 +682,194 @@ public class JavaServiceServer {
         }
         try {
             if (!dukDir.isEmpty() && new File(dukDir, "DUKIntegrator.jar").exists()) {
-                // Verify we can load the Integrator class (package: general)
-                Class.forName("general.Integrator");
+                // Core jars in their own loader; resolves the Integrator API (package: general)
+                dukRegistry = DukRegistry.configured(new File(dukDir),
+                    new File(System.getProperty("duk.snapshot.dir",
+                        new File(System.getProperty("java.io.tmpdir"), "javaservices-duk").getPath())));
+                dukRegistry.loadCore();
                 dukReady = true;
                 System.out.println("[JavaServices] DUKIntegrator loaded in " +
                     (System.currentTimeMillis() - start) + "ms (dir: " + dukDir + ")");
+
+                // Each type's validator/PDF jars in a loader of their own, warmed
+                dukRegistry.loadConfiguredTypes();
+                if (Boolean.parseBoolean(System.getProperty("duk.reload", "true"))) {
+                    long quietMs = Long.getLong("duk.reload.quietMs", 2000L);
+                    dukRegistry.watch(quietMs);
+                    System.out.println("[JavaServices] DUK: watching " + dukDir +
+                        " for jar updates (quiet period " + quietMs + "ms)");
+                }
             } else {
                 System.err.println("[JavaServices] WARNING: DUKIntegrator not found" +
                     (dukDir.isEmpty() ? "" : " in " + dukDir));
             }
-        } catch (Exception e) {
+        } catch (Exception | LinkageError e) {
             System.err.println("[JavaServices] WARNING: DUKIntegrator load failed: " +
                 e.getMessage());
         }
 
-        // ── Start HTTP server ────────────────────────────────────────
-        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
-        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
-        server.createContext("/validate", new ValidateHandler());
-        server.createContext("/generate-pdf", new PdfHandler());
-        server.createContext("/verify-signature", new SignatureHandler());
-        server.createContext("/duk/validate", new DukValidateHandler());
-        server.createContext("/duk/generate-pdf", new DukPdfHandler());
-        server.createContext("/health", new HealthHandler());
-        server.setExecutor(Executors.newFixedThreadPool(threads));
-        server.start();
+        // ── Declaration XSDs for DUK pre-validation ──────────────────
+        if (dukReady && Boolean.parseBoolean(System.getProperty("duk.xsd", "true"))) {
+            File declarationsDir = new File(System.getProperty("duk.xsd.dir",
+                new File(schemaDir, "declarations").getPath()));
+            declarationSchemas = DeclarationSchemas.load(declarationsDir);
+            System.out.println("[JavaServices] DUK XSD: " + declarationSchemas.types() +
+                " loaded in " + declarationSchemas.loadMillis() + "ms (" + declarationsDir + ")");
+        }
+    }
 
-        System.out.println("[JavaServices] Ready — http://127.0.0.1:" + port);
-        System.out.println("[JavaServices]   /validate          " +
-            (schematronReady ? "OK" : "UNAVAILABLE"));
-        System.out.println("[JavaServices]   /generate-pdf      " +
-            (pdfReady ? "OK" : "UNAVAILABLE"));
-        System.out.println("[JavaServices]   /verify-signature  " +
-            (signatureReady ? "OK" : "UNAVAILABLE"));
-        System.out.println("[JavaServices]   /duk/validate      " +
-            (dukReady ? "OK" : "UNAVAILABLE"));
-        System.out.println("[JavaServices]   /duk/generate-pdf  " +
-            (dukReady ? "OK" : "UNAVAILABLE"));
-        System.out.println("[JavaServices]   Thread pool: " + threads);
+    // ═════════════════════════════════════════════════════════════════
+    // Startup — subsystems loaded side by side, timed
+    // ═════════════════════════════════════════════════════════════════
+
+    /**
+     * Loads the subsystems and keeps the startup timeline: JVM launch (from
+     * the RuntimeMXBean) to main, each subsystem's load time, to the HTTP
+     * server listening, and to the first response of an instrumented
+     * endpoint. Whether the application CDS archive (build-cds.sh,
+     * -XX:SharedArchiveFile) was actually mapped is reported alongside, so
+     * /health shows which startup a figure belongs to.
+     */
+    static final class Startup {
+        interface Init {
+            void run() throws Exception;
+        }
+
+        record Step(String name, Init init) {}
+
+        private final long jvmStartedAt = ManagementFactory.getRuntimeMXBean().getStartTime();
+        private final long mainAt = System.currentTimeMillis();
+        private volatile boolean appCds;
+        private final Map<String, Long> stepMillis = Collections.synchronizedMap(new LinkedHashMap<>());
+        private final AtomicLong firstResponseAt = new AtomicLong();
+        private boolean parallel;
+        private long loadMillis;
+        private volatile long readyAt;
+
+        /**
+         * Runs every step, each on its own thread when parallel, and returns
+         * once all have finished; the first step that throws fails startup
+         * as it did when the steps were inline in main.
+         */
+        void load(boolean parallel, Step... steps) throws Exception {
+            this.parallel = parallel;
+            for (Step step : steps) stepMillis.put(step.name(), null);
+            long start = System.currentTimeMillis();
+            if (!parallel) {
+                for (Step step : steps) run(step);
+            } else {
+                List<Thread> threads = new ArrayList<>();
+                List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+                for (Step step : steps) {
+                    Thread t = new Thread(() -> {
+                        try {
+                            run(step);
+                        } catch (Throwable e) {
+                            failures.add(e);
+                        }
+                    }, "startup-" + step.name());
+                    t.start();
+                    threads.add(t);
+                }
+                for (Thread t : threads) t.join();
+                if (!failures.isEmpty()) {
+                    Throwable e = failures.get(0);
+                    if (e instanceof Exception ex) throw ex;
+                    throw (Error) e;
+                }
+            }
+            loadMillis = System.currentTimeMillis() - start;
+        }
+
+        private void run(Step step) throws Exception {
+            long start = System.currentTimeMillis();
+            step.init().run();
+            stepMillis.put(step.name(), System.currentTimeMillis() - start);
+        }
+
+        void ready() {
+            readyAt = System.currentTimeMillis();
+            appCds = appCdsMapped();
+        }
+
+        /**
+         * Whether the -XX:SharedArchiveFile archive is in use. Under
+         * -Xshare:auto an archive that does not match the class path or the
+         * JDK is dropped with a warning while the JDK's base archive still
+         * maps, so "sharing" in java.vm.info proves nothing. On Linux the
+         * archive file is in /proc/self/maps only when it was mapped;
+         * elsewhere VM.info's "CDS archive(s) mapped at: [base-static
+         * top-top)" ends past the base archive only with ours on top.
+         */
+        private static boolean appCdsMapped() {
+            String archive = null;
+            for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if (arg.startsWith("-XX:SharedArchiveFile=")) {
+                    String[] files = arg.substring(arg.indexOf('=') + 1).split(File.pathSeparator);
+                    archive = files[files.length - 1];
+                }
+            }
+            if (archive == null) return false;
+            try {
+                File maps = new File("/proc/self/maps");
+                if (maps.canRead()) {
+                    String mapped = " " + new File(archive).getCanonicalPath();
+                    try (var lines = Files.lines(maps.toPath())) {
+                        return lines.anyMatch(l -> l.endsWith(mapped));
+                    }
+                }
+                String info = (String) ManagementFactory.getPlatformMBeanServer().invoke(
+                    new ObjectName("com.sun.management:type=DiagnosticCommand"), "vmInfo",
+                    new Object[] {null}, new String[] {String[].class.getName()});
+                Matcher m = Pattern.compile("CDS archive\\(s\\) mapped at: \\[(\\w+)-(\\w+)-(\\w+)\\)")
+                    .matcher(info);
+                return m.find() && !m.group(2).equals(m.group(3));
+            } catch (Exception e) {
+                System.err.println("[JavaServices] WARNING: cannot tell whether the CDS archive " +
+                    "was mapped: " + e.getMessage());
+                return false;
+            }
+        }
+
+        void responded() {
+            if (firstResponseAt.get() == 0) firstResponseAt.compareAndSet(0, System.currentTimeMillis());
+        }
+
+        String describeLoad() {
+            StringBuilder sb = new StringBuilder().append(loadMillis).append("ms (")
+                .append(parallel ? "parallel" : "sequential");
+            synchronized (stepMillis) {
+                for (Map.Entry<String, Long> e : stepMillis.entrySet()) {
+                    sb.append(", ").append(e.getKey()).append(' ').append(e.getValue()).append("ms");
+                }
+            }
+            return sb.append(')').toString();
+        }
+
+        String describeReady() {
+            return "(" + (readyAt - jvmStartedAt) + "ms after JVM launch, " +
+                (mainAt - jvmStartedAt) + "ms to main, app CDS " + (appCds ? "on" : "off") + ")";
+        }
+
+        String statsJson() {
+            long first = firstResponseAt.get();
+            StringBuilder sb = new StringBuilder("{\"appCds\":").append(appCds)
+                .append(",\"parallel\":").append(parallel)
+                .append(",\"jvmToMainMs\":").append(mainAt - jvmStartedAt)
+                .append(",\"loadMs\":").append(loadMillis)
+                .append(",\"readyMs\":").append(readyAt == 0 ? "null" : String.valueOf(readyAt - jvmStartedAt))
+                .append(",\"firstResponseMs\":").append(first == 0 ? "null" : String.valueOf(first - jvmStartedAt))
+                .append(",\"steps\":{");
+            synchronized (stepMillis) {
+                boolean firstStep = true;
+                for (Map.Entry<String, Long> e : stepMillis.entrySet()) {
+                    if (!firstStep) sb.append(',');
+                    firstStep = false;
+                    sb.append('"').append(e.getKey()).append("\":").append(e.getValue());
+                }
+            }
+            return sb.append("}}").toString();
+        }
     }
 
     // ═════════════════════════════════════════════════════════════════
@@ -206,221 +881,538 @@ public class JavaServiceServer {
         public void handle(HttpExchange ex) throws IOException {
             String json = "{\"status\":\"ok\"" +
                 ",\"schematron\":" + schematronReady +
+                ",\"schematronEngine\":" + escapeJson(schematronEngine) +
                 ",\"xsd\":" + xsdReady +
                 ",\"pdf\":" + pdfReady +
+                ",\"pdfEngine\":\"" + (jasperReady ? "jasper" : "genfactura") + "\"" +
+                ",\"pdfTemplates\":" +
+                    (reportRegistry != null ? reportRegistry.statsJson() : "null") +
                 ",\"signature\":" + signatureReady +
+                ",\"signatureEngine\":" + escapeJson(nativeVerifier != null ? "native"
+                    : santuarioReady ? "santuario" : null) +
+                ",\"etransport\":{\"xsd\":" + (etransportSchema != null) +
+                    ",\"schematron\":" + (etransportSchematron != null) + "}" +
                 ",\"duk\":" + dukReady +
+                ",\"startup\":" + (startup != null ? startup.statsJson() : "null") +
+                ",\"dukVersions\":" + (dukRegistry != null ? dukRegistry.versionsJson() : "null") +
                 ",\"stats\":{" +
                     "\"validations\":" + validateCount.get() +
                     ",\"pdfs\":" + pdfCount.get() +
+                    ",\"pdfCache\":" + (pdfCache != null ? pdfCache.statsJson() : "null") +
                     ",\"signatures\":" + signatureCount.get() +
+                    ",\"signatureFallbacks\":" + signatureFallbacks.get() +
+                    ",\"signerCerts\":" +
+                        (nativeVerifier != null ? nativeVerifier.certs().statsJson() : "null") +
                     ",\"dukValidations\":" + dukValidateCount.get() +
                     ",\"dukPdfs\":" + dukPdfCount.get() +
+                    ",\"dukIntegrators\":" +
+                        (dukRegistry != null ? dukRegistry.statsJson() : "null") +
+                    ",\"dukXsd\":" +
+                        (declarationSchemas != null ? declarationSchemas.statsJson() : "null") +
+                    ",\"batches\":" + batchCount.get() +
+                    ",\"archives\":" + archiveCount.get() +
+                    ",\"etransportValidations\":" + etransportCount.get() +
+                    ",\"jobs\":" + (jobStore != null ? jobStore.statsJson() : "null") +
+                    ",\"workers\":" + (workerPool != null ? workerPool.statsJson() : "null") +
+                    ",\"validateCache\":" +
+                        (validationCache != null ? validationCache.statsJson() : "null") +
+                    ",\"lanes\":" + lanesJson() +
+                    ",\"cpuGate\":" + (cpuGate != null ? cpuGate.statsJson() : "null") +
                 "}}";
             sendJson(ex, 200, json);
         }
     }
 
     // ═════════════════════════════════════════════════════════════════
-    // POST /validate — Schematron + XSD validation
+    // Request lanes — one bounded executor per endpoint
     // ═════════════════════════════════════════════════════════════════
 
-    static class ValidateHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange ex) throws IOException {
-            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
-                sendJson(ex, 405, "{\"error\":\"Method not allowed\"}");
-                return;
-            }
+    /**
+     * Runs one endpoint's handler on its own fixed pool with a bounded queue.
+     * The HTTP dispatcher threads only hand the exchange over, so a burst of
+     * slow PDF or DUK requests fills its own lane instead of every request
+     * thread, and /health (registered without a lane) always answers within
+     * the PHP probe's 2s timeout.
+     *
+     * A full queue is answered with 503 and Retry-After straight from the
+     * dispatcher; clients already fall back on non-200 responses.
+     *
+     * In virtual-thread mode the lane admits the same threads + queue depth
+     * of requests, but each runs at once on its own virtual thread: blocking
+     * I/O no longer holds a pool slot, and CPU-bound stages wait on the
+     * CpuGate instead.
+     */
+    static final class Lane implements HttpHandler {
+        private final String name;
+        private final HandlerMetrics metrics;
+        private final HttpHandler handler;
+        private final ThreadPoolExecutor pool;      // platform mode
+        private final ExecutorService virtual;      // virtual mode
+        private final Semaphore admission;          // virtual mode
+        private final int threads;
+        private final int queueDepth;
+        private final AtomicLong started = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong waitNanosTotal = new AtomicLong();
+        private final AtomicLong waitNanosMax = new AtomicLong();
 
-            String xml = readBody(ex);
-            if (xml.isEmpty()) {
-                sendJson(ex, 400, "{\"error\":\"Empty body\"}");
+        Lane(String name, HandlerMetrics metrics, HttpHandler handler, int threads,
+             int queueDepth) {
+            this.name = name;
+            this.metrics = metrics;
+            this.handler = handler;
+            this.threads = threads;
+            this.queueDepth = queueDepth;
+            if (virtualThreads) {
+                pool = null;
+                virtual = newVirtualThreadExecutor();
+                admission = new Semaphore(threads + queueDepth);
                 return;
             }
+            virtual = null;
+            admission = null;
+            AtomicLong seq = new AtomicLong();
+            pool = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                queueDepth > 0 ? new ArrayBlockingQueue<>(queueDepth) : new SynchronousQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "lane-" + name + "-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        }
 
-            // Reject if validation services not ready
-            if (!xsdReady && !schematronReady) {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            long queuedAt = System.nanoTime();
+            try {
+                if (virtual != null) {
+                    if (!admission.tryAcquire()) throw new RejectedExecutionException();
+                    virtual.execute(() -> {
+                        try {
+                            run(ex, queuedAt);
+                        } finally {
+                            admission.release();
+                        }
+                    });
+                } else {
+                    pool.execute(() -> run(ex, queuedAt));
+                }
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                metrics.status(503);
+                ex.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
                 sendJson(ex, 503,
-                    "{\"error\":\"Validation services unavailable (XSD and Schematron not loaded)\"}");
-                return;
+                    "{\"error\":" + escapeJson("Server busy: " + name + " queue full") + "}");
             }
+        }
 
-            validateCount.incrementAndGet();
-            long start = System.currentTimeMillis();
-            List<ErrorEntry> errors = new ArrayList<>();
-
-            // XSD validation
-            if (xsdReady) {
-                try {
-                    Validator v = xsdSchema.newValidator();
-                    v.validate(new StreamSource(new StringReader(xml)));
-                } catch (org.xml.sax.SAXException e) {
-                    errors.add(new ErrorEntry(e.getMessage(), "xsd", null, null));
-                } catch (Exception e) {
-                    errors.add(new ErrorEntry(
-                        "XSD error: " + e.getMessage(), "xsd", null, null));
-                }
+        private void run(HttpExchange ex, long queuedAt) {
+            long wait = System.nanoTime() - queuedAt;
+            metrics.stage(Stage.QUEUE_WAIT, wait);
+            started.incrementAndGet();
+            waitNanosTotal.addAndGet(wait);
+            waitNanosMax.accumulateAndGet(wait, Math::max);
+            try {
+                handler.handle(ex);
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                System.err.println("[JavaServices] " + name + " handler error: " + e.getMessage());
+            } finally {
+                ex.close();  // no-op when the handler already closed it
             }
+        }
 
-            // Schematron validation (skip if XSD failed)
-            if (errors.isEmpty() && schematronReady) {
-                try {
-                    SchematronOutputType result =
-                        schematronRO.applySchematronValidationToSVRL(
-                            new StreamSource(new StringReader(xml)));
-                    if (result != null) {
-                        for (Object item :
-                                result.getActivePatternAndFiredRuleAndFailedAssert()) {
-                            if (item instanceof FailedAssert fa) {
-                                errors.add(new ErrorEntry(
-                                    extractText(fa.getDiagnosticReferenceOrPropertyReferenceOrText()),
-                                    "schematron", fa.getId(), fa.getLocation()));
-                            } else if (item instanceof SuccessfulReport sr) {
-                                errors.add(new ErrorEntry(
-                                    extractText(sr.getDiagnosticReferenceOrPropertyReferenceOrText()),
-                                    "schematron", sr.getId(), sr.getLocation()));
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    errors.add(new ErrorEntry(
-                        "Schematron error: " + e.getMessage(),
-                        "schematron", null, null));
-                }
-            }
+        int queued() {
+            return virtual != null ? 0 : pool.getQueue().size();
+        }
 
-            long elapsed = System.currentTimeMillis() - start;
-            StringBuilder json = new StringBuilder();
-            json.append("{\"valid\":").append(errors.isEmpty());
-            json.append(",\"schematronAvailable\":").append(schematronReady);
-            json.append(",\"xsdAvailable\":").append(xsdReady);
-            json.append(",\"elapsed_ms\":").append(elapsed);
-            json.append(",\"errors\":[");
-            for (int i = 0; i < errors.size(); i++) {
-                if (i > 0) json.append(",");
-                json.append(errors.get(i).toJson());
-            }
-            json.append("]}");
-            sendJson(ex, 200, json.toString());
-        }
-
-        private String extractText(List<?> items) {
-            for (Object item : items) {
-                if (item instanceof Text text) {
-                    for (Object content : text.getContent()) {
-                        if (content instanceof String s) {
-                            return s.replaceAll("[\\t\\r\\n\"]", "").trim();
-                        }
-                    }
-                }
-            }
+        String describe() {
+            return virtual != null
+                ? String.format("%-13s virtual, %d in flight", name, threads + queueDepth)
+                : String.format("%-13s %d threads, queue %d", name, threads, queueDepth);
+        }
+
+        String statsJson() {
+            long n = started.get();
+            int active = virtual != null
+                ? threads + queueDepth - admission.availablePermits() : pool.getActiveCount();
+            return "{\"threads\":" + (virtual != null ? "\"virtual\"" : threads) +
+                ",\"active\":" + active +
+                ",\"queued\":" + queued() +
+                ",\"queueDepth\":" + queueDepth +
+                ",\"started\":" + n +
+                ",\"rejected\":" + rejected.get() +
+                ",\"failed\":" + failed.get() +
+                ",\"waitMsAvg\":" + (n > 0 ? waitNanosTotal.get() / n / 1_000_000 : 0) +
+                ",\"waitMsMax\":" + waitNanosMax.get() / 1_000_000 + "}";
+        }
+    }
+
+    /** Sets a system property unless the command line already did. */
+    private static void setDefaultProperty(String name, String value) {
+        if (System.getProperty(name) == null) System.setProperty(name, value);
+    }
+
+    /** Executors.newVirtualThreadPerTaskExecutor() when running on Java 21+, else null. */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
             return null;
         }
     }
 
-    // ═════════════════════════════════════════════════════════════════
-    // POST /generate-pdf — PDF generation
-    // ═════════════════════════════════════════════════════════════════
+    /**
+     * Caps concurrently running CPU-bound stages (parse + XSD + Schematron,
+     * Jasper fill) at the core count, so thousands of virtual threads cannot
+     * oversubscribe the CPU. Waiting here is cheap on a virtual thread.
+     */
+    static final class CpuGate {
+        private final Semaphore permits;
+        private final int size;
+        private final AtomicLong acquired = new AtomicLong();
+        private final AtomicLong waitNanosTotal = new AtomicLong();
 
-    static class PdfHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange ex) throws IOException {
-            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
-                sendJson(ex, 405, "{\"error\":\"Method not allowed\"}");
-                return;
-            }
+        CpuGate(int size) {
+            this.size = Math.max(1, size);
+            this.permits = new Semaphore(this.size, true);
+        }
 
-            if (!pdfReady) {
-                sendJson(ex, 503,
-                    "{\"error\":\"PDF generation unavailable (GenFactura not loaded)\"}");
-                return;
-            }
+        int permits() {
+            return size;
+        }
 
-            byte[] xmlBytes;
-            try (InputStream is = ex.getRequestBody()) {
-                xmlBytes = is.readAllBytes();
-            }
-            if (xmlBytes.length == 0) {
-                sendJson(ex, 400, "{\"error\":\"Empty body\"}");
-                return;
-            }
+        String statsJson() {
+            long n = acquired.get();
+            return "{\"permits\":" + size +
+                ",\"inUse\":" + (size - permits.availablePermits()) +
+                ",\"waiting\":" + permits.getQueueLength() +
+                ",\"acquired\":" + n +
+                ",\"waitMsAvg\":" + (n > 0 ? waitNanosTotal.get() / n / 1_000_000 : 0) + "}";
+        }
+    }
 
-            long reqId = pdfCount.incrementAndGet();
-            String id = UUID.randomUUID().toString();
-            File tmpXml = new File(System.getProperty("java.io.tmpdir"),
-                "pdfgen_" + id + ".xml");
-            File tmpPdf = new File(System.getProperty("java.io.tmpdir"),
-                "pdfgen_" + id + ".pdf");
-            File tmpAtas = new File(System.getProperty("java.io.tmpdir"),
-                "pdfgen_" + id + "_ATAS");
+    interface CpuStage<T, E extends Exception> {
+        T run() throws E;
+    }
 
-            try {
-                Files.write(tmpXml.toPath(), xmlBytes);
-                long start = System.currentTimeMillis();
+    /** Runs a CPU-bound stage under the CpuGate; a plain call in platform mode. */
+    static <T, E extends Exception> T onCpu(CpuStage<T, E> stage) throws E {
+        CpuGate gate = cpuGate;
+        if (gate == null) return stage.run();
+        long start = System.nanoTime();
+        gate.permits.acquireUninterruptibly();
+        gate.acquired.incrementAndGet();
+        gate.waitNanosTotal.addAndGet(System.nanoTime() - start);
+        try {
+            return stage.run();
+        } finally {
+            gate.permits.release();
+        }
+    }
 
-                GenFactura gen = new GenFactura();
-                String type = gen.identificaDeclaratie(tmpXml.getAbsolutePath());
-                String error = gen.getError();
+    private static Lane lane(HandlerMetrics metrics, HttpHandler handler, int defaultThreads,
+                             int defaultQueue) {
+        String name = metrics.handler;
+        Lane lane = new Lane(name, metrics, metrics.instrument(handler),
+            Math.max(1, Integer.getInteger("lane." + name + ".threads", defaultThreads)),
+            Math.max(0, Integer.getInteger("lane." + name + ".queue", defaultQueue)));
+        lanes.add(lane);
+        return lane;
+    }
 
-                if (error != null && !error.isEmpty()) {
-                    sendJson(ex, 422,
-                        "{\"error\":" + escapeJson("Document type error: " + error) + "}");
-                    return;
-                }
-                if (type == null || type.isEmpty()) {
-                    sendJson(ex, 422, "{\"error\":\"Unknown document type\"}");
-                    return;
-                }
+    private static String lanesJson() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Lane lane : lanes) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append('"').append(lane.name).append("\":").append(lane.statsJson());
+        }
+        return sb.append('}').toString();
+    }
 
-                String pdfPath = gen.generarePDF(tmpXml.getAbsolutePath(), type);
-                String genError = gen.getError();
-                if (genError != null && !genError.isEmpty()) {
-                    sendJson(ex, 500,
-                        "{\"error\":" + escapeJson("PDF error: " + genError) + "}");
-                    return;
-                }
+    // ═════════════════════════════════════════════════════════════════
+    // GET /metrics — Prometheus text exposition
+    // ═════════════════════════════════════════════════════════════════
 
-                File pdfFile = (pdfPath != null && !pdfPath.isEmpty())
-                    ? new File(pdfPath) : tmpPdf;
-                if (!pdfFile.exists()) {
-                    sendJson(ex, 500, "{\"error\":\"PDF not created\"}");
-                    return;
-                }
+    /** Timed stages within a handler (the "stage" label). */
+    enum Stage {
+        QUEUE_WAIT("queue_wait"),
+        BODY_READ("body_read"),
+        TEMP_IO("temp_io"),
+        PARSE("parse"),
+        XSD("xsd"),
+        SCHEMATRON("schematron"),
+        JASPER_FILL("jasper_fill"),
+        JASPER_EXPORT("jasper_export"),
+        GENFACTURA("genfactura"),
+        PDF_CACHE("pdf_cache"),
+        SIGNATURE_VERIFY("signature_verify"),
+        DUK_PARSE("duk_parse"),
+        DUK_PDF("duk_pdf");
 
-                long elapsed = System.currentTimeMillis() - start;
-                System.out.println("[JavaServices] PDF #" + reqId + " " +
-                    elapsed + "ms (" + type + ", " + pdfFile.length() + "b)");
+        final String label;
 
-                byte[] pdfBytes = Files.readAllBytes(pdfFile.toPath());
-                ex.getResponseHeaders().set("Content-Type", "application/pdf");
-                ex.getResponseHeaders().set("X-Generation-Time-Ms",
-                    String.valueOf(elapsed));
-                ex.sendResponseHeaders(200, pdfBytes.length);
-                try (OutputStream os = ex.getResponseBody()) {
-                    os.write(pdfBytes);
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * Fixed-bucket latency histogram on LongAdders: recording is a bucket
+     * scan plus two adds, lock-free and allocation-free. Buckets are stored
+     * per-bucket and made cumulative only when scraped.
+     */
+    static final class Histogram {
+        private static final String[] LE = {
+            "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1",
+            "0.25", "0.5", "1", "2.5", "5", "10", "30", "60"
+        };
+        private static final long[] BOUNDS_NANOS = new long[LE.length];
+        static {
+            for (int i = 0; i < LE.length; i++) {
+                BOUNDS_NANOS[i] = Math.round(Double.parseDouble(LE[i]) * 1e9);
+            }
+        }
+
+        private final LongAdder[] buckets = new LongAdder[LE.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            int i = 0;
+            while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) i++;
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        long count() {
+            long n = 0;
+            for (LongAdder b : buckets) n += b.sum();
+            return n;
+        }
+
+        void write(StringBuilder out, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(i < LE.length ? LE[i] : "+Inf").append("\"} ")
+                    .append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum{").append(labels).append("} ")
+                .append(sumNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ")
+                .append(cumulative).append('\n');
+        }
+    }
+
+    /** Request/stage histograms, status and error-source counters for one handler. */
+    static final class HandlerMetrics {
+        private static final int[] STATUS_CODES = { 200, 400, 404, 405, 413, 422, 500, 503 };
+        private static final String[] ERROR_SOURCES = { "xsd", "schematron", "batch", "archive" };
+
+        final String handler;
+        final Histogram requests = new Histogram();
+        private final Histogram[] stages = new Histogram[Stage.values().length];
+        private final LongAdder inFlight = new LongAdder();
+        private final LongAdder[] statuses = new LongAdder[STATUS_CODES.length + 1];
+        private final LongAdder[] errorSources = new LongAdder[ERROR_SOURCES.length + 1];
+
+        HandlerMetrics(String handler) {
+            this.handler = handler;
+            for (int i = 0; i < stages.length; i++) stages[i] = new Histogram();
+            for (int i = 0; i < statuses.length; i++) statuses[i] = new LongAdder();
+            for (int i = 0; i < errorSources.length; i++) errorSources[i] = new LongAdder();
+        }
+
+        void stage(Stage stage, long nanos) {
+            stages[stage.ordinal()].record(nanos);
+        }
+
+        void status(int code) {
+            int i = 0;
+            while (i < STATUS_CODES.length && STATUS_CODES[i] != code) i++;
+            statuses[i].increment();
+        }
+
+        /** Stage timings and error sources of a validation; cache hits have no stages. */
+        void validation(ValidationResult result) {
+            if (!result.cached()) {
+                stage(Stage.PARSE, result.parseNanos());
+                stage(Stage.XSD, result.xsdNanos());
+                stage(Stage.SCHEMATRON, result.schematronNanos());
+            }
+            List<ErrorEntry> errors = result.errors();
+            for (int e = 0; e < errors.size(); e++) {
+                String source = errors.get(e).source();
+                int i = 0;
+                while (i < ERROR_SOURCES.length && !ERROR_SOURCES[i].equals(source)) i++;
+                errorSources[i].increment();
+            }
+        }
+
+        /** Wraps a handler with the request histogram, in-flight gauge and status counter. */
+        HttpHandler instrument(HttpHandler inner) {
+            return ex -> {
+                inFlight.increment();
+                long start = System.nanoTime();
+                try {
+                    inner.handle(ex);
+                } finally {
+                    requests.record(System.nanoTime() - start);
+                    status(ex.getResponseCode());
+                    inFlight.decrement();
+                    if (startup != null) startup.responded();
                 }
+            };
+        }
 
-                if (!pdfFile.equals(tmpPdf)) pdfFile.delete();
+        void write(StringBuilder requestsOut, StringBuilder stagesOut, StringBuilder statusOut,
+                   StringBuilder errorsOut, StringBuilder inFlightOut) {
+            String labels = "handler=\"" + handler + "\"";
+            requests.write(requestsOut, "javaservices_request_duration_seconds", labels);
+            for (Stage stage : Stage.values()) {
+                Histogram h = stages[stage.ordinal()];
+                if (h.count() == 0) continue;
+                h.write(stagesOut, "javaservices_stage_duration_seconds",
+                    labels + ",stage=\"" + stage.label + "\"");
+            }
+            for (int i = 0; i < statuses.length; i++) {
+                long n = statuses[i].sum();
+                if (n == 0) continue;
+                statusOut.append("javaservices_responses_total{").append(labels)
+                    .append(",code=\"").append(i < STATUS_CODES.length ? STATUS_CODES[i] : "other")
+                    .append("\"} ").append(n).append('\n');
+            }
+            for (int i = 0; i < errorSources.length; i++) {
+                long n = errorSources[i].sum();
+                if (n == 0) continue;
+                errorsOut.append("javaservices_validation_errors_total{").append(labels)
+                    .append(",source=\"").append(i < ERROR_SOURCES.length ? ERROR_SOURCES[i] : "other")
+                    .append("\"} ").append(n).append('\n');
+            }
+            inFlightOut.append("javaservices_in_flight{").append(labels).append("} ")
+                .append(inFlight.sum()).append('\n');
+        }
+    }
 
-            } catch (Exception e) {
-                System.err.println("[JavaServices] PDF #" + reqId +
-                    " error: " + e.getMessage());
-                sendJson(ex, 500,
-                    "{\"error\":" + escapeJson("PDF failed: " + e.getMessage()) + "}");
-            } finally {
-                tmpXml.delete();
-                tmpPdf.delete();
-                tmpAtas.delete();
+    /** One HandlerMetrics per laned endpoint; the handler label matches the lane name. */
+    static final class Metrics {
+        static final List<HandlerMetrics> ALL = new ArrayList<>();
+        static final HandlerMetrics VALIDATE = register("validate");
+        static final HandlerMetrics BATCH = register("batch");
+        static final HandlerMetrics PDF = register("pdf");
+        static final HandlerMetrics SIGNATURE = register("signature");
+        static final HandlerMetrics ARCHIVE = register("archive");
+        static final HandlerMetrics JOBS = register("jobs");
+        static final HandlerMetrics ETRANSPORT = register("etransport");
+        static final HandlerMetrics DUK_VALIDATE = register("duk-validate");
+        static final HandlerMetrics DUK_PDF = register("duk-pdf");
+
+        private static HandlerMetrics register(String handler) {
+            HandlerMetrics m = new HandlerMetrics(handler);
+            ALL.add(m);
+            return m;
+        }
+    }
+
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            StringBuilder requests = new StringBuilder();
+            StringBuilder stages = new StringBuilder();
+            StringBuilder statuses = new StringBuilder();
+            StringBuilder errors = new StringBuilder();
+            StringBuilder inFlight = new StringBuilder();
+            for (HandlerMetrics m : Metrics.ALL) {
+                m.write(requests, stages, statuses, errors, inFlight);
+            }
+
+            StringBuilder out = new StringBuilder(16384);
+            family(out, "javaservices_request_duration_seconds", "histogram",
+                "Handler latency, excluding lane queue wait.", requests);
+            family(out, "javaservices_stage_duration_seconds", "histogram",
+                "Latency of stages within a handler.", stages);
+            family(out, "javaservices_responses_total", "counter",
+                "Responses by status code, including lane rejections.", statuses);
+            family(out, "javaservices_validation_errors_total", "counter",
+                "Validation errors reported, by source.", errors);
+            family(out, "javaservices_in_flight", "gauge",
+                "Requests currently executing in a handler.", inFlight);
+
+            StringBuilder queued = new StringBuilder();
+            StringBuilder rejected = new StringBuilder();
+            for (Lane lane : lanes) {
+                queued.append("javaservices_lane_queued{lane=\"").append(lane.name).append("\"} ")
+                    .append(lane.queued()).append('\n');
+                rejected.append("javaservices_lane_rejected_total{lane=\"").append(lane.name)
+                    .append("\"} ").append(lane.rejected.get()).append('\n');
+            }
+            family(out, "javaservices_lane_queued", "gauge",
+                "Requests waiting in a lane queue.", queued);
+            family(out, "javaservices_lane_rejected_total", "counter",
+                "Requests rejected with 503 because a lane was full.", rejected);
+
+            if (validationCache != null) {
+                family(out, "javaservices_validate_cache_hits_total", "counter",
+                    "Validation cache hits.",
+                    sample("javaservices_validate_cache_hits_total", validationCache.hits()));
+                family(out, "javaservices_validate_cache_misses_total", "counter",
+                    "Validation cache misses.",
+                    sample("javaservices_validate_cache_misses_total", validationCache.misses()));
+            }
+            if (pdfCache != null) {
+                family(out, "javaservices_pdf_cache_hits_total", "counter",
+                    "PDF render cache hits, by tier.", new StringBuilder()
+                        .append("javaservices_pdf_cache_hits_total{tier=\"heap\"} ")
+                        .append(pdfCache.heapHits()).append('\n')
+                        .append("javaservices_pdf_cache_hits_total{tier=\"disk\"} ")
+                        .append(pdfCache.diskHits()).append('\n'));
+                family(out, "javaservices_pdf_cache_misses_total", "counter",
+                    "PDF render cache misses.",
+                    sample("javaservices_pdf_cache_misses_total", pdfCache.misses()));
             }
+            if (nativeVerifier != null) {
+                SignerCertCache certs = nativeVerifier.certs();
+                family(out, "javaservices_signer_cert_cache_hits_total", "counter",
+                    "Signer certificate trust cache hits.",
+                    sample("javaservices_signer_cert_cache_hits_total", certs.hits()));
+                family(out, "javaservices_signer_cert_cache_misses_total", "counter",
+                    "Signer certificate trust cache misses.",
+                    sample("javaservices_signer_cert_cache_misses_total", certs.misses()));
+            }
+
+            byte[] bytes = out.toString().getBytes(StandardCharsets.UTF_8);
+            try (OutputStream os = openResponse(ex, 200,
+                    "text/plain; version=0.0.4; charset=utf-8", bytes.length)) {
+                os.write(bytes);
+            }
+        }
+
+        private static StringBuilder sample(String name, long value) {
+            return new StringBuilder(name).append(' ').append(value).append('\n');
+        }
+
+        private static void family(StringBuilder out, String name, String type, String help,
+                                   StringBuilder samples) {
+            if (samples.length() == 0) return;
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            out.append(samples);
         }
     }
 
     // ═════════════════════════════════════════════════════════════════
-    // POST /verify-signature — ANAF signature verification
+    // POST /validate — Schematron + XSD validation
     // ═════════════════════════════════════════════════════════════════
 
-    static class SignatureHandler implements HttpHandler {
+    static class ValidateHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange ex) throws IOException {
             if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
@@ -428,165 +1420,2876 @@ public class JavaServiceServer {
                 return;
             }
 
-            if (!signatureReady) {
-                sendJson(ex, 503,
-                    "{\"error\":\"Signature verification unavailable (verifier not loaded)\"}");
-                return;
+            long readStart = System.nanoTime();
+            byte[] xml;
+            try (InputStream is = ex.getRequestBody()) {
+                xml = is.readAllBytes();
             }
-
-            String body = readBody(ex);
-            if (body.isEmpty()) {
+            Metrics.VALIDATE.stage(Stage.BODY_READ, System.nanoTime() - readStart);
+            if (xml.length == 0) {
                 sendJson(ex, 400, "{\"error\":\"Empty body\"}");
                 return;
             }
 
-            String xmlContent = extractJsonField(body, "xml");
-            String sigContent = extractJsonField(body, "signature");
-            if (xmlContent == null || sigContent == null) {
-                sendJson(ex, 400,
-                    "{\"error\":\"Body must contain 'xml' and 'signature' fields\"}");
+            // Reject if validation services not ready
+            if (!xsdReady && !schematronReady) {
+                sendJson(ex, 503,
+                    "{\"error\":\"Validation services unavailable (XSD and Schematron not loaded)\"}");
                 return;
             }
 
-            long reqId = signatureCount.incrementAndGet();
-            String id = UUID.randomUUID().toString();
-            File tmpXml = new File(System.getProperty("java.io.tmpdir"),
-                "sigverif_" + id + ".xml");
-            File tmpSig = new File(System.getProperty("java.io.tmpdir"),
-                "sigverif_" + id + "_sig.xml");
+            validateCount.incrementAndGet();
+            long start = System.currentTimeMillis();
+            ValidationResult result = validateCached(xml);
+            Metrics.VALIDATE.validation(result);
+            List<ErrorEntry> errors = result.errors();
 
-            try {
-                Files.writeString(tmpXml.toPath(), xmlContent);
-                Files.writeString(tmpSig.toPath(), sigContent);
+            long elapsed = System.currentTimeMillis() - start;
+            // Error lists run to hundreds of entries: the writer streams them
+            // chunked (gzipped when accepted) once they outgrow its buffer
+            try (JsonWriter w = new JsonWriter(ex, 200)) {
+                w.beginObject();
+                w.name("valid").value(errors.isEmpty());
+                w.name("schematronAvailable").value(schematronReady);
+                w.name("xsdAvailable").value(xsdReady);
+                w.name("elapsed_ms").value(elapsed);
+                w.name("parse_ms").value(result.parseNanos() / 1_000_000);
+                w.name("xsd_ms").value(result.xsdNanos() / 1_000_000);
+                w.name("schematron_ms").value(result.schematronNanos() / 1_000_000);
+                w.name("cached").value(result.cached());
+                w.name("errors").beginArray();
+                for (ErrorEntry e : errors) e.writeJson(w);
+                w.endArray().endObject();
+            }
+        }
+    }
 
-                long start = System.currentTimeMillis();
-                String result = ValidateDetachedSignatureSanturio.verify(
-                    tmpXml.getAbsolutePath(), tmpSig.getAbsolutePath());
-                long elapsed = System.currentTimeMillis() - start;
+    /**
+     * engineFailure marks a result that carries an XSD or Schematron engine
+     * exception rather than a verdict on the document; it is never cached.
+     */
+    record ValidationResult(List<ErrorEntry> errors, long parseNanos, long xsdNanos,
+                            long schematronNanos, boolean cached, boolean engineFailure) {
+        ValidationResult(List<ErrorEntry> errors, long parseNanos, long xsdNanos,
+                         long schematronNanos, boolean cached) {
+            this(errors, parseNanos, xsdNanos, schematronNanos, cached, false);
+        }
+    }
 
-                boolean valid = result != null
-                    && result.contains("validate cu succes")
-                    && !result.contains("Nu au putut fi validate");
+    /**
+     * XSD then Schematron validation of a single document. The body is
+     * parsed once into a DOM that both passes read, and Schematron is skipped
+     * when XSD already failed. Safe to call concurrently: a fresh Validator is
+     * created per call and the Schematron resource is shared.
+     */
+    static ValidationResult validateDocument(byte[] xml) {
+        // Route to the matching UBL schema before paying for a full parse
+        long t0 = System.nanoTime();
+        if (xsdReady) {
+            QName root = peekRootElement(xml);
+            if (root != null && !xsdSchemas.containsKey(root.getNamespaceURI())) {
+                return unsupportedRoot(root, System.nanoTime() - t0);
+            }
+        }
 
-                String message = result != null ? result : "No result";
+        Document doc;
+        try {
+            doc = parseXml(xml);
+        } catch (Exception e) {
+            return new ValidationResult(List.of(parseError(e)), System.nanoTime() - t0, 0, 0, false);
+        }
+        return validateParsed(doc, System.nanoTime() - t0);
+    }
 
-                System.out.println("[JavaServices] Sig #" + reqId + " " +
-                    elapsed + "ms — " + (valid ? "VALID" : "INVALID"));
+    static ErrorEntry parseError(Exception e) {
+        return e instanceof org.xml.sax.SAXException
+            ? new ErrorEntry(e.getMessage(), "xsd", null, null)
+            : new ErrorEntry("XML parse error: " + e.getMessage(), "xsd", null, null);
+    }
 
-                sendJson(ex, 200,
-                    "{\"valid\":" + valid +
-                    ",\"message\":" + escapeJson(message) +
-                    ",\"elapsed_ms\":" + elapsed + "}");
+    private static ValidationResult unsupportedRoot(QName root, long parseNanos) {
+        return new ValidationResult(List.of(new ErrorEntry("Unsupported document root: " + root +
+            " (expected UBL Invoice or CreditNote)", "xsd", null, null)), parseNanos, 0, 0, false);
+    }
 
+    /**
+     * XSD then Schematron over an already parsed document. Neither pass
+     * modifies the DOM, so the caller may render from it afterwards.
+     */
+    static ValidationResult validateParsed(Document doc, long parseNanos) {
+        List<ErrorEntry> errors = new ArrayList<>();
+        boolean engineFailure = false;
+        Schema schema = null;
+        if (xsdReady) {
+            Element root = doc.getDocumentElement();
+            schema = xsdSchemas.get(root.getNamespaceURI());
+            if (schema == null) {
+                return unsupportedRoot(
+                    new QName(root.getNamespaceURI(), root.getLocalName()), parseNanos);
+            }
+        }
+
+        // XSD validation
+        long t1 = System.nanoTime();
+        if (schema != null) {
+            try {
+                Validator v = schema.newValidator();
+                v.validate(new DOMSource(doc));
+            } catch (org.xml.sax.SAXException e) {
+                errors.add(new ErrorEntry(e.getMessage(), "xsd", null, null));
             } catch (Exception e) {
-                System.err.println("[JavaServices] Sig #" + reqId +
-                    " error: " + e.getMessage());
-                sendJson(ex, 200,
-                    "{\"valid\":false,\"message\":" +
-                    escapeJson("Error: " + e.getMessage()) + "}");
-            } finally {
-                tmpXml.delete();
-                tmpSig.delete();
+                errors.add(new ErrorEntry(
+                    "XSD error: " + e.getMessage(), "xsd", null, null));
+                engineFailure = true;
+            }
+        }
+        long xsdNanos = System.nanoTime() - t1;
+
+        // Schematron validation (skip if XSD failed)
+        long t2 = System.nanoTime();
+        if (errors.isEmpty() && schematronXslt != null) {
+            try {
+                errors.addAll(schematronXslt.validate(new DOMSource(doc)));
+            } catch (Exception e) {
+                errors.add(new ErrorEntry(
+                    "Schematron error: " + e.getMessage(),
+                    "schematron", null, null));
+                engineFailure = true;
+            }
+        } else if (errors.isEmpty() && schematronReady) {
+            try {
+                errors.addAll(toErrorEntries(
+                    schematronRO.applySchematronValidationToSVRL(doc, null)));
+            } catch (Exception e) {
+                errors.add(new ErrorEntry(
+                    "Schematron error: " + e.getMessage(),
+                    "schematron", null, null));
+                engineFailure = true;
             }
         }
+        long schematronNanos = System.nanoTime() - t2;
+
+        return new ValidationResult(errors, parseNanos, xsdNanos, schematronNanos, false,
+            engineFailure);
     }
 
-    // ═════════════════════════════════════════════════════════════════
-    // POST /duk/validate — DUKIntegrator validation
-    // ═════════════════════════════════════════════════════════════════
+    /** validateDocument() behind the content-addressed result cache, when enabled. */
+    static ValidationResult validateCached(byte[] xml) {
+        return validateCached(xml, () -> validateDocument(xml));
+    }
 
-    static class DukValidateHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange ex) throws IOException {
-            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
-                sendJson(ex, 405, "{\"error\":\"Method not allowed\"}");
-                return;
-            }
+    /** Runs {@code validation} for {@code xml} unless the cache already has the result. */
+    static ValidationResult validateCached(byte[] xml,
+                                           CpuStage<ValidationResult, RuntimeException> validation) {
+        if (validationCache == null) return onCpu(validation);
+        String key = validationCache.keyFor(xml);
+        ValidationResult hit = validationCache.get(key);
+        if (hit != null) {
+            return new ValidationResult(hit.errors(), 0, 0, 0, true);
+        }
+        ValidationResult result = onCpu(validation);
+        // A transient engine failure must not become the document's verdict
+        if (!result.engineFailure()) validationCache.put(key, result);
+        return result;
+    }
 
-            if (!dukReady) {
-                sendJson(ex, 503,
-                    "{\"error\":\"DUK validation unavailable (DUKIntegrator not loaded)\"}");
-                return;
+    /** Maps pure-engine SVRL output to ErrorEntry items. */
+    static List<ErrorEntry> toErrorEntries(SchematronOutputType result) {
+        List<ErrorEntry> errors = new ArrayList<>();
+        if (result == null) return errors;
+        for (Object item : result.getActivePatternAndFiredRuleAndFailedAssert()) {
+            if (item instanceof FailedAssert fa) {
+                errors.add(new ErrorEntry(
+                    extractText(fa.getDiagnosticReferenceOrPropertyReferenceOrText()),
+                    "schematron", fa.getId(), fa.getLocation()));
+            } else if (item instanceof SuccessfulReport sr) {
+                errors.add(new ErrorEntry(
+                    extractText(sr.getDiagnosticReferenceOrPropertyReferenceOrText()),
+                    "schematron", sr.getId(), sr.getLocation()));
             }
+        }
+        return errors;
+    }
 
-            byte[] xmlBytes;
-            try (InputStream is = ex.getRequestBody()) {
-                xmlBytes = is.readAllBytes();
+    private static String extractText(List<?> items) {
+        for (Object item : items) {
+            if (item instanceof Text text) {
+                for (Object content : text.getContent()) {
+                    if (content instanceof String s) {
+                        return cleanSvrlText(s);
+                    }
+                }
             }
-            if (xmlBytes.length == 0) {
-                sendJson(ex, 400, "{\"error\":\"Empty body\"}");
-                return;
+        }
+        return null;
+    }
+
+    /** Drops tabs, line breaks and quotes from an SVRL message and trims it; no regex. */
+    static String cleanSvrlText(String s) {
+        StringBuilder sb = null;
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '\t' || c == '\r' || c == '\n' || c == '"') {
+                if (sb == null) sb = new StringBuilder(n).append(s, 0, i);
+            } else if (sb != null) {
+                sb.append(c);
             }
+        }
+        return (sb == null ? s : sb.toString()).trim();
+    }
 
-            // Extract ?type=D394 from query string
-            String type = parseQueryParam(ex.getRequestURI().getRawQuery(), "type");
-            if (type == null || type.isEmpty()) {
-                sendJson(ex, 400, "{\"error\":\"Missing query parameter: type (e.g. ?type=D394)\"}");
-                return;
+    /**
+     * Schematron compiled to XSLT once, with the resulting {@link Templates}
+     * shared across requests and a small pool of reusable Transformers.
+     * SVRL failed-asserts and successful-reports map to the same ErrorEntry
+     * shape as the pure engine.
+     */
+    static final class CompiledSchematron {
+        private static final String SVRL_NS = "http://purl.oclc.org/dsdl/svrl";
+
+        private final Templates templates;
+        private final ArrayBlockingQueue<Transformer> idle;
+
+        CompiledSchematron(Templates templates) {
+            this.templates = templates;
+            this.idle = new ArrayBlockingQueue<>(
+                Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+        }
+
+        /** Compiles a .sch file to XSLT (ISO skeleton via ph-schematron). */
+        static CompiledSchematron fromSchematron(File schFile) throws Exception {
+            SchematronResourceSCH sch = SchematronResourceSCH.fromFile(schFile);
+            ISchematronXSLTBasedProvider provider = sch.getXSLTProvider();
+            if (provider == null || !provider.isValidSchematron()) {
+                throw new IllegalStateException("Invalid schematron: " + schFile.getName());
             }
+            return new CompiledSchematron(newXsltFactory().newTemplates(
+                new DOMSource(provider.getXSLTDocument(), schFile.toURI().toString())));
+        }
 
-            long reqId = dukValidateCount.incrementAndGet();
-            String id = UUID.randomUUID().toString();
-            File tmpXml = new File(System.getProperty("java.io.tmpdir"),
-                "dukval_" + id + ".xml");
-            // DUKIntegrator writes errors to <filename>.err.txt
-            File tmpErr = new File(System.getProperty("java.io.tmpdir"),
-                "dukval_" + id + ".xml.err.txt");
+        /** Loads an already compiled Schematron XSL. */
+        static CompiledSchematron fromXsl(File xslFile) throws TransformerException {
+            return new CompiledSchematron(
+                newXsltFactory().newTemplates(new StreamSource(xslFile)));
+        }
 
+        /**
+         * The GenFactura lib ships xalan-2.4.0, which registers itself as the
+         * default TransformerFactory and only speaks XSLT 1.0. The CIUS-RO
+         * rules are xslt2, so ask for Saxon explicitly.
+         */
+        static TransformerFactory newXsltFactory() throws TransformerException {
             try {
-                Files.write(tmpXml.toPath(), xmlBytes);
-                long start = System.currentTimeMillis();
+                return TransformerFactory.newInstance(
+                    "net.sf.saxon.TransformerFactoryImpl", null);
+            } catch (TransformerFactoryConfigurationError e) {
+                throw new TransformerException("Saxon not on classpath: " + e.getMessage());
+            }
+        }
 
-                // Use general.Integrator API (from DUKIntegrator.jar)
-                // parseDocument(xmlPath, type) returns int: 0=success, >0=errors
-                Class<?> intClass = Class.forName("general.Integrator");
-                Object integrator = intClass.getDeclaredConstructor().newInstance();
+        List<ErrorEntry> validate(Source source) throws TransformerException {
+            return validate(source, null);
+        }
 
-                // Set declaration type
-                Method setType = intClass.getMethod("setDeclType", String.class);
-                setType.invoke(integrator, type);
+        /**
+         * As {@link #validate(Source)}, but asserts and reports with
+         * flag="warning" go to warnings instead, when it is not null.
+         */
+        List<ErrorEntry> validate(Source source, List<ErrorEntry> warnings)
+                throws TransformerException {
+            Transformer t = idle.poll();
+            if (t == null) t = templates.newTransformer();
+            DOMResult svrl = new DOMResult();
+            t.transform(source, svrl);
+            // Only recycle transformers that completed cleanly
+            t.reset();
+            idle.offer(t);
+            return toErrors(svrl.getNode(), warnings);
+        }
 
-                // Set config path to the DUK directory
-                Method setConfig = intClass.getMethod("setConfigPath", String.class);
-                setConfig.invoke(integrator, dukDir + "/");
+        static List<ErrorEntry> toErrors(Node svrl) {
+            return toErrors(svrl, null);
+        }
 
-                Method parseMethod = intClass.getMethod("parseDocument", String.class, String.class);
-                int result = (Integer) parseMethod.invoke(integrator, tmpXml.getAbsolutePath(), type);
-                boolean valid = (result == 0);
+        static List<ErrorEntry> toErrors(Node svrl, List<ErrorEntry> warnings) {
+            List<ErrorEntry> errors = new ArrayList<>();
+            Element root = svrl instanceof Document d ? d.getDocumentElement() : (Element) svrl;
+            if (root == null) return errors;
+            for (Node n = root.getFirstChild(); n != null; n = n.getNextSibling()) {
+                if (!(n instanceof Element e) || !SVRL_NS.equals(e.getNamespaceURI())) continue;
+                String name = e.getLocalName();
+                if (!"failed-assert".equals(name) && !"successful-report".equals(name)) continue;
+                ErrorEntry entry = new ErrorEntry(svrlText(e), "schematron",
+                    attrOrNull(e, "id"), attrOrNull(e, "location"));
+                if (warnings != null && "warning".equals(e.getAttribute("flag"))) {
+                    warnings.add(entry);
+                } else {
+                    errors.add(entry);
+                }
+            }
+            return errors;
+        }
 
-                long elapsed = System.currentTimeMillis() - start;
+        private static String svrlText(Element e) {
+            for (Node n = e.getFirstChild(); n != null; n = n.getNextSibling()) {
+                if (n instanceof Element c && SVRL_NS.equals(c.getNamespaceURI())
+                        && "text".equals(c.getLocalName())) {
+                    return cleanSvrlText(c.getTextContent());
+                }
+            }
+            return null;
+        }
 
-                // Read errors from the integrator's error file
-                List<String> errors = new ArrayList<>();
-                List<String> warnings = new ArrayList<>();
+        private static String attrOrNull(Element e, String name) {
+            return e.hasAttribute(name) ? e.getAttribute(name) : null;
+        }
+    }
 
-                // Try integrator's own error file accessor
-                Method getErrFile = intClass.getMethod("getFisierEroriParsare");
-                String errFilePath = (String) getErrFile.invoke(integrator);
-                File errFile = (errFilePath != null && !errFilePath.isEmpty())
-                    ? new File(errFilePath) : tmpErr;
+    // ═════════════════════════════════════════════════════════════════
+    // Validation result cache
+    // ═════════════════════════════════════════════════════════════════
 
-                if (errFile.exists()) {
-                    String errContent = Files.readString(errFile.toPath(), StandardCharsets.UTF_8);
-                    for (String line : errContent.split("\\r?\\n")) {
-                        line = line.trim();
-                        if (line.isEmpty()) continue;
-                        if (line.startsWith("WARNING:") || line.startsWith("Avertisment:")) {
-                            warnings.add(line);
-                        } else {
-                            errors.add(line);
-                        }
+    /**
+     * LRU + TTL cache of validation results keyed by the SHA-256 of the
+     * request body and a fingerprint of the schema resources. The ERP
+     * resubmits identical drafts many times; those skip XSD and Schematron.
+     *
+     * The fingerprint (size + mtime of every file under the CIUS-RO, maindoc
+     * and common directories, plus the Schematron engine) is rechecked at
+     * most every 30s; a change clears the cache.
+     */
+    static final class ValidationCache {
+        private static final long VERSION_CHECK_INTERVAL_MS = 30_000;
+
+        private record Entry(ValidationResult result, long expiresAt) {}
+
+        private final int maxEntries;
+        private final long ttlMillis;
+        private final LinkedHashMap<String, Entry> entries;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        private volatile String resourceVersion;
+        private volatile long nextVersionCheck;
+
+        ValidationCache(int maxEntries, long ttlMillis) {
+            this.maxEntries = maxEntries;
+            this.ttlMillis = ttlMillis;
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    if (size() > ValidationCache.this.maxEntries) {
+                        evictions.incrementAndGet();
+                        return true;
                     }
-                    errFile.delete();
+                    return false;
                 }
+            };
+            this.resourceVersion = resourceFingerprint();
+            this.nextVersionCheck = System.currentTimeMillis() + VERSION_CHECK_INTERVAL_MS;
+        }
 
-                // Also check the log errors file
-                Method getLogFile = intClass.getMethod("getFisierLogErori");
-                String logFilePath = (String) getLogFile.invoke(integrator);
-                if (logFilePath != null && !logFilePath.isEmpty()) {
-                    File logFile = new File(logFilePath);
-                    if (logFile.exists()) {
-                        String logContent = Files.readString(logFile.toPath(), StandardCharsets.UTF_8);
+        String resourceVersion() {
+            return resourceVersion;
+        }
+
+        String keyFor(byte[] xml) {
+            long now = System.currentTimeMillis();
+            if (now >= nextVersionCheck) {
+                checkResourceVersion(now);
+            }
+            return resourceVersion + ":" + sha256Hex(xml);
+        }
+
+        synchronized ValidationResult get(String key) {
+            Entry e = entries.get(key);
+            if (e != null && e.expiresAt() < System.currentTimeMillis()) {
+                entries.remove(key);
+                e = null;
+            }
+            if (e == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return e.result();
+        }
+
+        synchronized void put(String key, ValidationResult result) {
+            entries.put(key, new Entry(result, System.currentTimeMillis() + ttlMillis));
+        }
+
+        synchronized int invalidate() {
+            int n = entries.size();
+            entries.clear();
+            return n;
+        }
+
+        private synchronized void checkResourceVersion(long now) {
+            if (now < nextVersionCheck) return;
+            nextVersionCheck = now + VERSION_CHECK_INTERVAL_MS;
+            String current = resourceFingerprint();
+            if (!current.equals(resourceVersion)) {
+                int dropped = invalidate();
+                System.out.println("[JavaServices] Schema resources changed (" +
+                    resourceVersion + " -> " + current + "), dropped " +
+                    dropped + " cached validations");
+                resourceVersion = current;
+            }
+        }
+
+        long hits() {
+            return hits.get();
+        }
+
+        long misses() {
+            return misses.get();
+        }
+
+        synchronized String statsJson() {
+            return "{\"hits\":" + hits.get() +
+                ",\"misses\":" + misses.get() +
+                ",\"evictions\":" + evictions.get() +
+                ",\"entries\":" + entries.size() +
+                ",\"maxEntries\":" + maxEntries +
+                ",\"resources\":\"" + resourceVersion + "\"}";
+        }
+
+        private static String resourceFingerprint() {
+            MessageDigest md = sha256();
+            md.update(schematronEngine.getBytes(StandardCharsets.UTF_8));
+            for (String dir : new String[] {"ro16931-ubl-1.0.9", "maindoc", "common"}) {
+                File root = new File(schemaDir, dir);
+                if (!root.isDirectory()) continue;
+                try (var files = Files.walk(root.toPath())) {
+                    files.filter(Files::isRegularFile).sorted().forEach(f -> {
+                        File file = f.toFile();
+                        md.update((f + ":" + file.length() + ":" + file.lastModified())
+                            .getBytes(StandardCharsets.UTF_8));
+                    });
+                } catch (IOException e) {
+                    md.update(e.toString().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return HexFormat.of().formatHex(md.digest(), 0, 8);
+        }
+    }
+
+    static class CacheInvalidateHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
+                sendJson(ex, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            int dropped = validationCache != null ? validationCache.invalidate() : 0;
+            System.out.println("[JavaServices] Validation cache invalidated (" +
+                dropped + " entries)");
+            sendJson(ex, 200, "{\"invalidated\":" + dropped + "}");
+        }
+    }
+
+    // ═════════════════════════════════════════════════════════════════
+    // POST /validate/batch — many documents per request, validated in parallel
+    // ═════════════════════════════════════════════════════════════════
+
+    /**
+     * Accepts either a multipart/form-data body (one document per part) or
+     * a length-prefixed stream (4-byte big-endian length, then the document
+     * bytes, repeated until EOF). Documents are validated on the bounded
+     * batch pool and results are streamed back in request order as soon as
+     * they are ready, so neither the request nor the response is ever held
+     * in memory as a whole.
+     */
+    static class ValidateBatchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
+                sendJson(ex, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+
+            if (!xsdReady && !schematronReady) {
+                sendJson(ex, 503,
+                    "{\"error\":\"Validation services unavailable (XSD and Schematron not loaded)\"}");
+                return;
+            }
+
+            String contentType = ex.getRequestHeaders().getFirst("Content-Type");
+            DocumentStream docs;
+            try {
+                docs = openDocumentStream(ex.getRequestBody(), contentType);
+            } catch (IllegalArgumentException e) {
+                sendJson(ex, 400, "{\"error\":" + escapeJson(e.getMessage()) + "}");
+                return;
+            }
+
+            long reqId = batchCount.incrementAndGet();
+            long start = System.currentTimeMillis();
+            int window = batchThreads * 2;
+            ArrayDeque<Future<BatchResult>> inFlight = new ArrayDeque<>();
+            int count = 0;
+            int written = 0;
+            int invalid = 0;
+            String streamError = null;
+
+            try (JsonWriter out = new JsonWriter(ex, 200)) {
+                out.beginObject();
+                out.name("schematronAvailable").value(schematronReady);
+                out.name("xsdAvailable").value(xsdReady);
+                out.name("results").beginArray();
+
+                try {
+                    BatchDocument doc;
+                    while ((doc = docs.next()) != null) {
+                        final BatchDocument d = doc;
+                        final int index = count++;
+                        inFlight.add(batchPool.submit(() -> validateBatchDocument(index, d)));
+                        if (inFlight.size() >= window) {
+                            invalid += writeBatchResult(out, inFlight.poll(), written++);
+                        }
+                    }
+                } catch (IOException e) {
+                    streamError = e instanceof EOFException || e.getMessage() == null
+                        ? "unexpected end of stream" : e.getMessage();
+                }
+
+                while (!inFlight.isEmpty()) {
+                    invalid += writeBatchResult(out, inFlight.poll(), written++);
+                }
+
+                long elapsed = System.currentTimeMillis() - start;
+                out.endArray();
+                out.name("count").value(count);
+                out.name("invalid").value(invalid);
+                out.name("elapsed_ms").value(elapsed);
+                if (streamError != null) {
+                    out.name("error").value("Batch truncated: " + streamError);
+                }
+                out.endObject();
+
+                System.out.println("[JavaServices] Batch #" + reqId + " " + elapsed +
+                    "ms — " + count + " docs, " + invalid + " invalid" +
+                    (streamError != null ? " (truncated: " + streamError + ")" : ""));
+            } finally {
+                // Drain anything left behind if the client went away mid-stream
+                for (Future<BatchResult> f : inFlight) f.cancel(true);
+            }
+        }
+
+        /** Writes one result; returns 1 if the document was invalid. */
+        private int writeBatchResult(JsonWriter out, Future<BatchResult> future, int index)
+                throws IOException {
+            BatchResult r;
+            try {
+                r = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Batch interrupted");
+            } catch (ExecutionException e) {
+                r = new BatchResult(index, null, List.of(new ErrorEntry(
+                    "Validation failed: " + e.getCause(), "batch", null, null)), 0);
+            }
+            r.writeJson(out);
+            return r.errors().isEmpty() ? 0 : 1;
+        }
+    }
+
+    static BatchResult validateBatchDocument(int index, BatchDocument doc) {
+        long start = System.currentTimeMillis();
+        if (doc.body().length == 0) {
+            return new BatchResult(index, doc.name(), List.of(
+                new ErrorEntry("Empty document", "batch", null, null)), 0);
+        }
+        validateCount.incrementAndGet();
+        ValidationResult result = validateCached(doc.body());
+        Metrics.BATCH.validation(result);
+        List<ErrorEntry> errors = result.errors();
+        return new BatchResult(index, doc.name(), errors,
+            System.currentTimeMillis() - start);
+    }
+
+    record BatchDocument(String name, byte[] body) {}
+
+    record BatchResult(int index, String name, List<ErrorEntry> errors, long elapsed) {
+        void writeJson(JsonWriter w) throws IOException {
+            w.beginObject();
+            w.name("index").value(index);
+            if (name != null) w.name("name").value(name);
+            w.name("valid").value(errors.isEmpty());
+            w.name("elapsed_ms").value(elapsed);
+            w.name("errors").beginArray();
+            for (ErrorEntry e : errors) e.writeJson(w);
+            w.endArray().endObject();
+        }
+    }
+
+    /** Pull-style reader over the documents of a batch request body. */
+    interface DocumentStream {
+        /** Returns the next document, or null at the end of the batch. */
+        BatchDocument next() throws IOException;
+    }
+
+    static DocumentStream openDocumentStream(InputStream in, String contentType) {
+        if (contentType != null && contentType.toLowerCase().startsWith("multipart/")) {
+            String boundary = parseHeaderParam(contentType, "boundary");
+            if (boundary == null || boundary.isEmpty()) {
+                throw new IllegalArgumentException("Multipart body without boundary");
+            }
+            MultipartReader reader = new MultipartReader(in, boundary);
+            return () -> {
+                MultipartReader.Part part = reader.next();
+                if (part == null) return null;
+                return new BatchDocument(
+                    part.filename() != null ? part.filename() : part.name(), part.body());
+            };
+        }
+
+        // Length-prefixed stream: [int32 length][bytes]...
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        return () -> {
+            int first = data.read();
+            if (first < 0) return null;
+            int length = (first << 24) | (data.readUnsignedByte() << 16)
+                | (data.readUnsignedShort());
+            if (length < 0 || length > batchMaxDocBytes) {
+                throw new IOException("Invalid document length: " + length);
+            }
+            byte[] body = new byte[length];
+            data.readFully(body);
+            return new BatchDocument(null, body);
+        };
+    }
+
+    // ═════════════════════════════════════════════════════════════════
+    // POST /generate-pdf — PDF generation
+    // ═════════════════════════════════════════════════════════════════
+
+    static class PdfHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
+                sendJson(ex, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+
+            if (!pdfReady) {
+                sendJson(ex, 503,
+                    "{\"error\":\"PDF generation unavailable (GenFactura not loaded)\"}");
+                return;
+            }
+
+            long readStart = System.nanoTime();
+            byte[] xmlBytes;
+            try (InputStream is = ex.getRequestBody()) {
+                xmlBytes = is.readAllBytes();
+            }
+            Metrics.PDF.stage(Stage.BODY_READ, System.nanoTime() - readStart);
+            if (xmlBytes.length == 0) {
+                sendJson(ex, 400, "{\"error\":\"Empty body\"}");
+                return;
+            }
+
+            long reqId = pdfCount.incrementAndGet();
+            String cacheKey = null;
+            if (pdfCache != null) {
+                long cacheStart = System.nanoTime();
+                cacheKey = pdfCache.keyFor(xmlBytes);
+                boolean served = pdfCache.serve(ex, cacheKey);
+                Metrics.PDF.stage(Stage.PDF_CACHE, System.nanoTime() - cacheStart);
+                if (served) return;
+            }
+            if (jasperReady && renderWithJasper(ex, xmlBytes, reqId, cacheKey)) {
+                return;
+            }
+            renderWithGenFactura(ex, xmlBytes, reqId, cacheKey);
+        }
+
+        /**
+         * In-memory rendering: fills the preloaded factura_complet2 reports
+         * straight from a DOM of the request body and streams the exported
+         * PDF to the client with chunked encoding. Mirrors what
+         * GenFactura.generarePDF does, minus the temp XML, the PDF on disk and
+         * the read-back. Returns false (nothing sent) when the fill fails, so
+         * the caller can fall back to GenFactura. With a cache key the export
+         * is also captured and stored once it completes.
+         */
+        private boolean renderWithJasper(HttpExchange ex, byte[] xmlBytes, long reqId,
+                                         String cacheKey) throws IOException {
+            QName root = peekRootElement(xmlBytes);
+            String report = root == null ? null : reportFor(root.getLocalPart());
+            if (report == null) {
+                sendJson(ex, 422, "{\"error\":\"Unknown document type\"}");
+                return true;
+            }
+
+            long start = System.currentTimeMillis();
+            JasperPrint print;
+            try {
+                print = onCpu(() -> {
+                    long fillStart = System.nanoTime();
+                    JasperPrint filled = fillReport(report,
+                        JRXmlUtils.parse(new ByteArrayInputStream(xmlBytes)));
+                    Metrics.PDF.stage(Stage.JASPER_FILL, System.nanoTime() - fillStart);
+                    return filled;
+                });
+            } catch (Exception e) {
+                System.err.println("[JavaServices] PDF #" + reqId +
+                    " in-memory fill failed, falling back to GenFactura: " + e.getMessage());
+                return false;
+            }
+            long elapsed = System.currentTimeMillis() - start;
+
+            ex.getResponseHeaders().set("X-Generation-Time-Ms", String.valueOf(elapsed));
+            ex.getResponseHeaders().set("X-Pdf-Engine", "jasper");
+            OutputStream body = openResponse(ex, 200, "application/pdf", -1);
+            long exportStart = System.nanoTime();
+            ByteArrayOutputStream capture = cacheKey != null
+                ? new ByteArrayOutputStream(128 * 1024) : null;
+            try (OutputStream os = new BufferedOutputStream(capture != null
+                    ? new TeeOutputStream(body, capture) : body, 65536)) {
+                JasperExportManager.exportReportToPdfStream(print, os);
+                Metrics.PDF.stage(Stage.JASPER_EXPORT, System.nanoTime() - exportStart);
+            } catch (Exception e) {
+                // Headers are gone; a truncated chunked body is all we can signal
+                System.err.println("[JavaServices] PDF #" + reqId +
+                    " export error: " + e.getMessage());
+                return true;
+            }
+            if (capture != null) pdfCache.put(cacheKey, "jasper", capture.toByteArray());
+
+            System.out.println("[JavaServices] PDF #" + reqId + " " +
+                elapsed + "ms fill, " + (System.currentTimeMillis() - start) +
+                "ms total (" + root.getLocalPart() + ", in-memory)");
+            return true;
+        }
+
+        /** Legacy path: GenFactura through temp files in java.io.tmpdir. */
+        private void renderWithGenFactura(HttpExchange ex, byte[] xmlBytes, long reqId,
+                                          String cacheKey) throws IOException {
+            String id = UUID.randomUUID().toString();
+            File tmpXml = new File(System.getProperty("java.io.tmpdir"),
+                "pdfgen_" + id + ".xml");
+            File tmpPdf = new File(System.getProperty("java.io.tmpdir"),
+                "pdfgen_" + id + ".pdf");
+            File tmpAtas = new File(System.getProperty("java.io.tmpdir"),
+                "pdfgen_" + id + "_ATAS");
+
+            try {
+                long ioStart = System.nanoTime();
+                Files.write(tmpXml.toPath(), xmlBytes);
+                Metrics.PDF.stage(Stage.TEMP_IO, System.nanoTime() - ioStart);
+                long start = System.currentTimeMillis();
+
+                Engines.GenFacturaRun run = Engines.genFactura(tmpXml.getAbsolutePath());
+                String type = run.type();
+                String error = run.typeError();
+
+                if (error != null && !error.isEmpty()) {
+                    sendJson(ex, 422,
+                        "{\"error\":" + escapeJson("Document type error: " + error) + "}");
+                    return;
+                }
+                if (type == null || type.isEmpty()) {
+                    sendJson(ex, 422, "{\"error\":\"Unknown document type\"}");
+                    return;
+                }
+
+                String pdfPath = run.pdfPath();
+                Metrics.PDF.stage(Stage.GENFACTURA, (System.currentTimeMillis() - start) * 1_000_000);
+                String genError = run.pdfError();
+                if (genError != null && !genError.isEmpty()) {
+                    sendJson(ex, 500,
+                        "{\"error\":" + escapeJson("PDF error: " + genError) + "}");
+                    return;
+                }
+
+                File pdfFile = (pdfPath != null && !pdfPath.isEmpty())
+                    ? new File(pdfPath) : tmpPdf;
+                if (!pdfFile.exists()) {
+                    sendJson(ex, 500, "{\"error\":\"PDF not created\"}");
+                    return;
+                }
+
+                long elapsed = System.currentTimeMillis() - start;
+                System.out.println("[JavaServices] PDF #" + reqId + " " +
+                    elapsed + "ms (" + type + ", " + pdfFile.length() + "b)");
+
+                ioStart = System.nanoTime();
+                byte[] pdfBytes = Files.readAllBytes(pdfFile.toPath());
+                Metrics.PDF.stage(Stage.TEMP_IO, System.nanoTime() - ioStart);
+                ex.getResponseHeaders().set("X-Generation-Time-Ms",
+                    String.valueOf(elapsed));
+                ex.getResponseHeaders().set("X-Pdf-Engine", "genfactura");
+                try (OutputStream os = openResponse(ex, 200, "application/pdf", pdfBytes.length)) {
+                    os.write(pdfBytes);
+                }
+                if (cacheKey != null) pdfCache.put(cacheKey, "genfactura", pdfBytes);
+
+                if (!pdfFile.equals(tmpPdf)) pdfFile.delete();
+
+            } catch (Exception e) {
+                System.err.println("[JavaServices] PDF #" + reqId +
+                    " error: " + e.getMessage());
+                sendJson(ex, 500,
+                    "{\"error\":" + escapeJson("PDF failed: " + e.getMessage()) + "}");
+            } finally {
+                tmpXml.delete();
+                tmpPdf.delete();
+                tmpAtas.delete();
+            }
+        }
+    }
+
+    /** Copies everything written to the response into a second stream as well. */
+    static final class TeeOutputStream extends FilterOutputStream {
+        private final OutputStream copy;
+
+        TeeOutputStream(OutputStream out, OutputStream copy) {
+            super(out);
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            copy.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            copy.write(b, off, len);
+        }
+    }
+
+    /** Main report for a UBL root element, or null for other documents. */
+    static String reportFor(String rootLocalName) {
+        return switch (rootLocalName) {
+            case "Invoice" -> "factura_complet2.jasper";
+            case "CreditNote" -> "factura_complet2_c.jasper";
+            default -> null;
+        };
+    }
+
+    /**
+     * Fills a main report from a parsed invoice. The templates select nodes
+     * with local-name() only, so a namespace-aware DOM from parseXml works
+     * as well as JRXmlUtils' own.
+     */
+    static JasperPrint fillReport(String report, Document xml) throws JRException {
+        Map<String, Object> params = new HashMap<>();
+        params.put("XML_DATA_DOCUMENT", xml);
+        params.put("SUBREPORT_DIR", jasperDir + File.separator);
+        return reportRegistry.fill(report, params);
+    }
+
+    // ═════════════════════════════════════════════════════════════════
+    // Jasper report templates — deserialized once, shared across fills
+    // ═════════════════════════════════════════════════════════════════
+
+    /**
+     * Registry of the compiled factura_*.jasper templates, keyed by file name.
+     * Fills run against a JasperReportsContext whose first repository is this
+     * registry, so the {@code $P{SUBREPORT_DIR} + "//factura_x.jasper"}
+     * subreport expressions resolve to the cached instances instead of being
+     * deserialized from disk on every PDF.
+     *
+     * A JasperReport is never modified by the filler, so one instance is shared
+     * by all concurrent fills. File mtimes are rechecked at most every 5s and
+     * only changed or new files are reloaded; a failed reload keeps the
+     * previous templates.
+     */
+    static final class ReportRegistry implements RepositoryService {
+        private static final long CHECK_INTERVAL_MS = 5_000;
+
+        private record Template(JasperReport report, long lastModified, long length) {}
+
+        private final File dir;
+        private final SimpleJasperReportsContext context = new SimpleJasperReportsContext();
+        private volatile Map<String, Template> templates = Map.of();
+        private volatile long lastCheck;
+        private volatile long loadMillis;
+        private final AtomicLong reloads = new AtomicLong();
+        private final AtomicLong lookups = new AtomicLong();
+
+        ReportRegistry(File dir) {
+            this.dir = dir;
+            List<RepositoryService> services = new ArrayList<>();
+            services.add(this);
+            services.addAll(DefaultJasperReportsContext.getInstance()
+                .getExtensions(RepositoryService.class));
+            context.setExtensions(RepositoryService.class, services);
+        }
+
+        /** Scans the directory, loading new or modified templates. Returns how many were loaded. */
+        synchronized int refresh() throws JRException {
+            long start = System.nanoTime();
+            File[] files = dir.listFiles((d, n) -> n.endsWith(".jasper"));
+            if (files == null) throw new JRException("Report directory not found: " + dir);
+
+            Map<String, Template> current = templates;
+            Map<String, Template> next = new HashMap<>();
+            int loaded = 0;
+            for (File f : files) {
+                long mtime = f.lastModified();
+                long length = f.length();
+                Template t = current.get(f.getName());
+                if (t == null || t.lastModified() != mtime || t.length() != length) {
+                    t = new Template((JasperReport) JRLoader.loadObject(f), mtime, length);
+                    loaded++;
+                }
+                next.put(f.getName(), t);
+            }
+            boolean changed = loaded > 0 || next.size() != current.size();
+            if (changed && !current.isEmpty()) reloads.incrementAndGet();
+            templates = Map.copyOf(next);
+            lastCheck = System.currentTimeMillis();
+            if (changed) loadMillis = (System.nanoTime() - start) / 1_000_000;
+            return loaded;
+        }
+
+        JasperReport get(String name) {
+            if (System.currentTimeMillis() - lastCheck > CHECK_INTERVAL_MS) {
+                checkForChanges();
+            }
+            Template t = templates.get(name);
+            return t != null ? t.report() : null;
+        }
+
+        JasperPrint fill(String name, Map<String, Object> params) throws JRException {
+            JasperReport report = get(name);
+            if (report == null) throw new JRException("Report template not found: " + name);
+            return JasperFillManager.getInstance(context).fill(report, params);
+        }
+
+        long loadMillis() {
+            return loadMillis;
+        }
+
+        String statsJson() {
+            return "{\"templates\":" + templates.size() +
+                ",\"loadMs\":" + loadMillis +
+                ",\"reloads\":" + reloads.get() +
+                ",\"subreportLookups\":" + lookups.get() + "}";
+        }
+
+        private synchronized void checkForChanges() {
+            if (System.currentTimeMillis() - lastCheck <= CHECK_INTERVAL_MS) return;
+            try {
+                int loaded = refresh();
+                if (loaded > 0) {
+                    System.out.println("[JavaServices] Jasper templates: reloaded " + loaded +
+                        " in " + loadMillis + "ms");
+                }
+            } catch (Exception e) {
+                lastCheck = System.currentTimeMillis();
+                System.err.println("[JavaServices] WARNING: Jasper template reload failed, " +
+                    "keeping previous: " + e.getMessage());
+            }
+        }
+
+        // ── RepositoryService: serves subreports by file name ──
+
+        @Override
+        public Resource getResource(String uri) {
+            return getResource(uri, Resource.class);
+        }
+
+        @Override
+        public <K extends Resource> K getResource(String uri, Class<K> resourceType) {
+            if (uri == null || !resourceType.isAssignableFrom(ReportResource.class)) return null;
+            String name = uri.substring(Math.max(uri.lastIndexOf('/'), uri.lastIndexOf('\\')) + 1);
+            JasperReport report = get(name);
+            if (report == null) return null;  // let the default repositories try
+            lookups.incrementAndGet();
+            ReportResource resource = new ReportResource();
+            resource.setReport(report);
+            return resourceType.cast(resource);
+        }
+
+        @Override
+        public void saveResource(String uri, Resource resource) {
+            throw new UnsupportedOperationException("Report registry is read-only");
+        }
+    }
+
+    // ═════════════════════════════════════════════════════════════════
+    // PDF render cache — heap LRU over a content-addressed disk store
+    // ═════════════════════════════════════════════════════════════════
+
+    /**
+     * Rendered PDFs keyed by the SHA-256 of the request XML under a template
+     * fingerprint (size + mtime of the factura_*.jasper files and the
+     * GenFactura jar, plus the engine). The same invoice is downloaded again
+     * and again from the UI and the API; after the first render those
+     * downloads cost a file copy instead of a Jasper fill.
+     *
+     * Entries are named by the engine that rendered them, so a document
+     * Jasper could not fill and GenFactura rendered instead is stored, and
+     * served with X-Pdf-Engine, as genfactura. Lookups try Jasper first
+     * when it is loaded, then GenFactura.
+     *
+     * Tier one is an LRU of byte arrays bounded by -Dpdf.cache.heapBytes.
+     * Tier two stores every render as
+     * <dir>/<fingerprint>/<aa>/<sha256>.<engine>.pdf under -Dpdf.cache.dir,
+     * evicting least recently used files once -Dpdf.cache.diskBytes is
+     * exceeded. Disk hits are copied to the client with
+     * FileChannel.transferTo; the target is the exchange's OutputStream
+     * behind Channels.newChannel, so this is an ordinary copy through a heap
+     * buffer, not sendfile. The hit then is promoted to the heap tier. A
+     * fingerprint change, checked at most every 30s, drops the heap tier
+     * and deletes the old fingerprint's directory.
+     */
+    static final class PdfCache {
+        private static final long VERSION_CHECK_INTERVAL_MS = 30_000;
+        private static final String[] JASPER_THEN_GENFACTURA = {"jasper", "genfactura"};
+        private static final String[] GENFACTURA_ONLY = {"genfactura"};
+
+        private final long heapMaxBytes;
+        private final long diskMaxBytes;
+        private final File dir;
+        private final LinkedHashMap<String, byte[]> heap = new LinkedHashMap<>(16, 0.75f, true);
+        // Disk index: key → file size, in access order
+        private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+        private long heapBytes;
+        private long diskBytes;
+        private final AtomicLong heapHits = new AtomicLong();
+        private final AtomicLong diskHits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong heapEvictions = new AtomicLong();
+        private final AtomicLong diskEvictions = new AtomicLong();
+        private final AtomicLong diskErrors = new AtomicLong();
+        private volatile String version;
+        private volatile long nextVersionCheck;
+
+        PdfCache(long heapMaxBytes, long diskMaxBytes, File dir) {
+            this.heapMaxBytes = heapMaxBytes;
+            this.diskMaxBytes = diskMaxBytes;
+            this.dir = dir;
+            this.version = templateFingerprint();
+            this.nextVersionCheck = System.currentTimeMillis() + VERSION_CHECK_INTERVAL_MS;
+            if (diskMaxBytes > 0) loadIndex();
+        }
+
+        String version() {
+            return version;
+        }
+
+        /**
+         * Cache key of a request body: fingerprint/sha256. Renders started
+         * before a template change are stored under the old fingerprint and
+         * never served. Also rechecks the fingerprint when due.
+         */
+        String keyFor(byte[] xml) {
+            long now = System.currentTimeMillis();
+            if (now >= nextVersionCheck) {
+                checkVersion(now);
+            }
+            return version + "/" + sha256Hex(xml);
+        }
+
+        /**
+         * Sends a cached PDF as the whole response, with the engine that
+         * rendered it in X-Pdf-Engine. Returns false, with nothing sent, on
+         * a miss.
+         */
+        boolean serve(HttpExchange ex, String key) throws IOException {
+            for (String engine : engines()) {
+                String entry = key + "." + engine;
+                byte[] pdf = heapGet(entry);
+                if (pdf != null) {
+                    heapHits.incrementAndGet();
+                    ex.getResponseHeaders().set("X-Pdf-Cache", "heap");
+                    ex.getResponseHeaders().set("X-Pdf-Engine", engine);
+                    try (OutputStream os = openResponse(ex, 200, "application/pdf", pdf.length)) {
+                        os.write(pdf);
+                    }
+                    return true;
+                }
+
+                File file = diskFile(entry);
+                if (file == null) continue;
+                long size;
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    size = channel.size();
+                    ex.getResponseHeaders().set("X-Pdf-Cache", "disk");
+                    ex.getResponseHeaders().set("X-Pdf-Engine", engine);
+                    try (OutputStream os = openResponse(ex, 200, "application/pdf", size);
+                         WritableByteChannel out = Channels.newChannel(os)) {
+                        for (long pos = 0; pos < size; ) {
+                            pos += channel.transferTo(pos, size - pos, out);
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    // Evicted between the index lookup and the open
+                    diskRemove(entry);
+                    continue;
+                }
+                diskHits.incrementAndGet();
+                promote(entry, file, size);
+                return true;
+            }
+            misses.incrementAndGet();
+            return false;
+        }
+
+        /** The cached PDF as bytes from either tier, or null on a miss. */
+        byte[] get(String key) {
+            for (String engine : engines()) {
+                String entry = key + "." + engine;
+                byte[] pdf = heapGet(entry);
+                if (pdf != null) {
+                    heapHits.incrementAndGet();
+                    return pdf;
+                }
+                File file = diskFile(entry);
+                if (file != null) {
+                    try {
+                        pdf = Files.readAllBytes(file.toPath());
+                        diskHits.incrementAndGet();
+                        heapPut(entry, pdf);
+                        return pdf;
+                    } catch (IOException e) {
+                        diskRemove(entry);
+                    }
+                }
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+
+        /**
+         * Stores a fresh render by the engine that produced it ("jasper" or
+         * "genfactura") in both tiers; disk failures only count.
+         */
+        void put(String key, String engine, byte[] pdf) {
+            key = key + "." + engine;
+            heapPut(key, pdf);
+            if (diskMaxBytes <= 0 || pdf.length > diskMaxBytes) return;
+            if (!key.startsWith(version)) return;
+            File file = fileFor(key);
+            try {
+                file.getParentFile().mkdirs();
+                File tmp = new File(file.getParentFile(), UUID.randomUUID() + ".tmp");
+                Files.write(tmp.toPath(), pdf);
+                Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                diskErrors.incrementAndGet();
+                return;
+            }
+            List<String> evicted = new ArrayList<>();
+            synchronized (this) {
+                if (!key.startsWith(version)) return;  // fingerprint changed mid-write
+                Long previous = disk.put(key, (long) pdf.length);
+                diskBytes += pdf.length - (previous != null ? previous : 0);
+                var it = disk.entrySet().iterator();
+                while (diskBytes > diskMaxBytes && it.hasNext()) {
+                    Map.Entry<String, Long> eldest = it.next();
+                    if (eldest.getKey().equals(key)) continue;
+                    diskBytes -= eldest.getValue();
+                    evicted.add(eldest.getKey());
+                    it.remove();
+                }
+            }
+            for (String k : evicted) {
+                fileFor(k).delete();
+                diskEvictions.incrementAndGet();
+            }
+        }
+
+        synchronized int invalidate() {
+            int n = heap.size() + disk.size();
+            heap.clear();
+            heapBytes = 0;
+            disk.clear();
+            diskBytes = 0;
+            return n;
+        }
+
+        long hits() {
+            return heapHits.get() + diskHits.get();
+        }
+
+        long misses() {
+            return misses.get();
+        }
+
+        long heapHits() {
+            return heapHits.get();
+        }
+
+        long diskHits() {
+            return diskHits.get();
+        }
+
+        synchronized String statsJson() {
+            long hits = heapHits.get() + diskHits.get();
+            long total = hits + misses.get();
+            return "{\"heapHits\":" + heapHits.get() +
+                ",\"diskHits\":" + diskHits.get() +
+                ",\"misses\":" + misses.get() +
+                ",\"hitRate\":" + (total == 0 ? 0 : Math.round(hits * 1000.0 / total) / 1000.0) +
+                ",\"heapEntries\":" + heap.size() +
+                ",\"heapBytes\":" + heapBytes +
+                ",\"heapMaxBytes\":" + heapMaxBytes +
+                ",\"heapEvictions\":" + heapEvictions.get() +
+                ",\"diskEntries\":" + disk.size() +
+                ",\"diskBytes\":" + diskBytes +
+                ",\"diskMaxBytes\":" + diskMaxBytes +
+                ",\"diskEvictions\":" + diskEvictions.get() +
+                ",\"diskErrors\":" + diskErrors.get() +
+                ",\"templates\":\"" + version + "\"}";
+        }
+
+        private synchronized byte[] heapGet(String key) {
+            return heap.get(key);
+        }
+
+        /** Entries over an eighth of the budget skip the heap tier. */
+        private synchronized void heapPut(String key, byte[] pdf) {
+            if (pdf.length > heapMaxBytes / 8) return;
+            byte[] previous = heap.put(key, pdf);
+            heapBytes += pdf.length - (previous != null ? previous.length : 0);
+            var it = heap.entrySet().iterator();
+            while (heapBytes > heapMaxBytes && it.hasNext()) {
+                heapBytes -= it.next().getValue().length;
+                it.remove();
+                heapEvictions.incrementAndGet();
+            }
+        }
+
+        private void promote(String key, File file, long size) {
+            if (size > heapMaxBytes / 8) return;
+            try {
+                heapPut(key, Files.readAllBytes(file.toPath()));
+            } catch (IOException e) {
+                // Served already; the next hit reads the disk again
+            }
+        }
+
+        /** The file for a key when the disk index has it (touching its LRU position). */
+        private File diskFile(String key) {
+            synchronized (this) {
+                if (disk.get(key) == null) return null;
+            }
+            return fileFor(key);
+        }
+
+        private synchronized void diskRemove(String key) {
+            Long size = disk.remove(key);
+            if (size != null) diskBytes -= size;
+        }
+
+        /** Engines whose renders a lookup accepts, preferred first. */
+        private static String[] engines() {
+            return jasperReady ? JASPER_THEN_GENFACTURA : GENFACTURA_ONLY;
+        }
+
+        /** fingerprint/sha256.engine → <dir>/<fingerprint>/<aa>/<sha256>.<engine>.pdf */
+        private File fileFor(String key) {
+            int slash = key.indexOf('/');
+            String sha = key.substring(slash + 1);
+            return new File(new File(new File(dir, key.substring(0, slash)),
+                sha.substring(0, 2)), sha + ".pdf");
+        }
+
+        /** Indexes the current fingerprint's files, oldest first; deletes other fingerprints. */
+        private void loadIndex() {
+            File[] versions = dir.listFiles(File::isDirectory);
+            if (versions != null) {
+                for (File d : versions) {
+                    if (!d.getName().equals(version)) deleteTree(d);
+                }
+            }
+            File root = new File(dir, version);
+            if (!root.isDirectory()) return;
+            try (var files = Files.walk(root.toPath(), 2)) {
+                List<File> pdfs = new ArrayList<>();
+                files.filter(Files::isRegularFile).map(java.nio.file.Path::toFile).forEach(f -> {
+                    String name = f.getName();
+                    if (name.endsWith(".jasper.pdf") || name.endsWith(".genfactura.pdf")) pdfs.add(f);
+                    else f.delete();  // .tmp left by a crash mid-write, or not named by engine
+                });
+                pdfs.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+                synchronized (this) {
+                    for (File f : pdfs) {
+                        String name = f.getName();
+                        disk.put(version + "/" + name.substring(0, name.length() - 4), f.length());
+                        diskBytes += f.length();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[JavaServices] WARNING: PDF cache index failed: " +
+                    e.getMessage());
+            }
+        }
+
+        private synchronized void checkVersion(long now) {
+            if (now < nextVersionCheck) return;
+            nextVersionCheck = now + VERSION_CHECK_INTERVAL_MS;
+            String current = templateFingerprint();
+            if (!current.equals(version)) {
+                String previous = version;
+                int dropped = invalidate();
+                version = current;
+                System.out.println("[JavaServices] PDF templates changed (" +
+                    previous + " -> " + current + "), dropped " + dropped + " cached PDFs");
+                // Old files are unreachable now; delete them off the request path
+                Thread cleaner = new Thread(() -> deleteTree(new File(dir, previous)),
+                    "pdf-cache-cleanup");
+                cleaner.setDaemon(true);
+                cleaner.start();
+            }
+        }
+
+        private static void deleteTree(File root) {
+            try (var files = Files.walk(root.toPath())) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            } catch (IOException e) {
+                System.err.println("[JavaServices] WARNING: PDF cache cleanup failed (" +
+                    root + "): " + e.getMessage());
+            }
+        }
+
+        private static String templateFingerprint() {
+            MessageDigest md = sha256();
+            md.update((jasperReady ? "jasper" : "genfactura").getBytes(StandardCharsets.UTF_8));
+            List<File> inputs = new ArrayList<>();
+            File[] reports = jasperDir != null
+                ? jasperDir.listFiles((d, n) -> n.endsWith(".jasper")) : null;
+            if (reports != null) inputs.addAll(Arrays.asList(reports));
+            try {
+                inputs.add(new File(GenFactura.class.getProtectionDomain()
+                    .getCodeSource().getLocation().toURI()));
+            } catch (Exception e) {
+                // No code source (unusual class loader): templates alone decide
+            }
+            inputs.sort(Comparator.comparing(File::getName));
+            for (File f : inputs) {
+                md.update((f.getName() + ":" + f.length() + ":" + f.lastModified())
+                    .getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(md.digest(), 0, 8);
+        }
+    }
+
+    // ═════════════════════════════════════════════════════════════════
+    // POST /verify-signature — ANAF signature verification
+    // ═════════════════════════════════════════════════════════════════
+
+    static class SignatureHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
+                sendJson(ex, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+
+            if (!signatureReady) {
+                sendJson(ex, 503,
+                    "{\"error\":\"Signature verification unavailable (verifier not loaded)\"}");
+                return;
+            }
+
+            long readStart = System.nanoTime();
+            Map<String, byte[]> fields;
+            try (InputStream in = ex.getRequestBody()) {
+                fields = readSignatureRequest(in,
+                    ex.getRequestHeaders().getFirst("Content-Type"));
+            } catch (IllegalArgumentException e) {
+                sendJson(ex, 400, "{\"error\":" + escapeJson(e.getMessage()) + "}");
+                return;
+            }
+            Metrics.SIGNATURE.stage(Stage.BODY_READ, System.nanoTime() - readStart);
+
+            byte[] xmlContent = fields.get("xml");
+            byte[] sigContent = fields.get("signature");
+            if (xmlContent == null || sigContent == null) {
+                sendJson(ex, 400,
+                    "{\"error\":\"Body must contain 'xml' and 'signature' fields\"}");
+                return;
+            }
+
+            long reqId = signatureCount.incrementAndGet();
+            if (nativeVerifier != null) {
+                long start = System.currentTimeMillis();
+                try {
+                    NativeSignatureVerifier.Result r =
+                        onCpu(() -> nativeVerifier.verify(xmlContent, sigContent));
+                    long elapsed = System.currentTimeMillis() - start;
+                    Metrics.SIGNATURE.stage(Stage.SIGNATURE_VERIFY, elapsed * 1_000_000);
+
+                    System.out.println("[JavaServices] Sig #" + reqId + " " +
+                        elapsed + "ms — " + (r.valid() ? "VALID" : "INVALID") + " (native)");
+
+                    sendJson(ex, 200,
+                        "{\"valid\":" + r.valid() +
+                        ",\"message\":" + escapeJson(r.message()) +
+                        ",\"engine\":\"native\"" + r.toJson() +
+                        ",\"elapsed_ms\":" + elapsed + "}");
+                    return;
+                } catch (Exception e) {
+                    // Structures the JDK engine cannot process go to Santuario
+                    if (!santuarioReady) {
+                        System.err.println("[JavaServices] Sig #" + reqId +
+                            " error: " + e.getMessage());
+                        sendJson(ex, 200,
+                            "{\"valid\":false,\"message\":" +
+                            escapeJson("Error: " + e.getMessage()) +
+                            ",\"engine\":\"native\"}");
+                        return;
+                    }
+                    signatureFallbacks.incrementAndGet();
+                    System.out.println("[JavaServices] Sig #" + reqId +
+                        " native engine failed (" + e.getMessage() + "), using Santuario");
+                }
+            }
+            verifyWithSantuario(ex, reqId, xmlContent, sigContent);
+        }
+
+        /** Compatibility path: the ANAF wrapper needs both documents on disk. */
+        private static void verifyWithSantuario(HttpExchange ex, long reqId,
+                                                byte[] xmlContent, byte[] sigContent)
+                throws IOException {
+            try {
+                long start = System.currentTimeMillis();
+                String result = santuarioVerify(Metrics.SIGNATURE, xmlContent, sigContent);
+                long elapsed = System.currentTimeMillis() - start;
+                boolean valid = santuarioValid(result);
+
+                String message = result != null ? result : "No result";
+
+                System.out.println("[JavaServices] Sig #" + reqId + " " +
+                    elapsed + "ms — " + (valid ? "VALID" : "INVALID") + " (santuario)");
+
+                sendJson(ex, 200,
+                    "{\"valid\":" + valid +
+                    ",\"message\":" + escapeJson(message) +
+                    ",\"engine\":\"santuario\"" +
+                    ",\"elapsed_ms\":" + elapsed + "}");
+
+            } catch (Exception e) {
+                System.err.println("[JavaServices] Sig #" + reqId +
+                    " error: " + e.getMessage());
+                sendJson(ex, 200,
+                    "{\"valid\":false,\"message\":" +
+                    escapeJson("Error: " + e.getMessage()) + "}");
+            }
+        }
+    }
+
+    /** Runs ValidateDetachedSignatureSanturio over temp copies of both documents. */
+    static String santuarioVerify(HandlerMetrics metrics, byte[] xmlContent, byte[] sigContent)
+            throws Exception {
+        String id = UUID.randomUUID().toString();
+        File tmpXml = new File(System.getProperty("java.io.tmpdir"),
+            "sigverif_" + id + ".xml");
+        File tmpSig = new File(System.getProperty("java.io.tmpdir"),
+            "sigverif_" + id + "_sig.xml");
+        try {
+            long ioStart = System.nanoTime();
+            Files.write(tmpXml.toPath(), xmlContent);
+            Files.write(tmpSig.toPath(), sigContent);
+            metrics.stage(Stage.TEMP_IO, System.nanoTime() - ioStart);
+
+            long start = System.nanoTime();
+            String result = ValidateDetachedSignatureSanturio.verify(
+                tmpXml.getAbsolutePath(), tmpSig.getAbsolutePath());
+            metrics.stage(Stage.SIGNATURE_VERIFY, System.nanoTime() - start);
+            return result;
+        } finally {
+            tmpXml.delete();
+            tmpSig.delete();
+        }
+    }
+
+    /** The wrapper reports success only in its (Romanian) message text. */
+    static boolean santuarioValid(String result) {
+        return result != null
+            && result.contains("validate cu succes")
+            && !result.contains("Nu au putut fi validate");
+    }
+
+    private static final Set<String> SIGNATURE_FIELDS = Set.of("xml", "signature");
+
+    /**
+     * Reads the xml and signature documents as raw bytes, either from a
+     * multipart/form-data body (parts named xml and signature, no escaping)
+     * or from a JSON object decoded in one pass by {@link JsonFieldReader}.
+     * Either malformed body raises IllegalArgumentException.
+     */
+    static Map<String, byte[]> readSignatureRequest(InputStream in, String contentType)
+            throws IOException {
+        if (contentType != null && contentType.toLowerCase().startsWith("multipart/")) {
+            String boundary = parseHeaderParam(contentType, "boundary");
+            if (boundary == null || boundary.isEmpty()) {
+                throw new IllegalArgumentException("Multipart body without boundary");
+            }
+            Map<String, byte[]> fields = new HashMap<>();
+            MultipartReader reader = new MultipartReader(in, boundary);
+            MultipartReader.Part part;
+            try {
+                while ((part = reader.next()) != null) {
+                    if (SIGNATURE_FIELDS.contains(part.name())) fields.put(part.name(), part.body());
+                }
+            } catch (IOException e) {
+                // A truncated or boundary-less body, answered like malformed JSON
+                throw new IllegalArgumentException("Malformed multipart body: " + e.getMessage(), e);
+            }
+            return fields;
+        }
+        return JsonFieldReader.read(in, SIGNATURE_FIELDS);
+    }
+
+    /**
+     * Detached XMLDSig verification with the JDK's javax.xml.crypto.dsig,
+     * entirely in memory. Every reference that is not a same-document
+     * fragment (#id) resolves to the invoice bytes, which is what a detached
+     * semnatura_*.xml signs; fragments go to the default dereferencer so
+     * signed properties inside the signature still verify. A signature is
+     * valid when the SignatureValue verifies, every reference digest matches
+     * and {@link SignerCertCache} trusts the signer certificate. Instances
+     * are thread-safe.
+     */
+    static final class NativeSignatureVerifier {
+        record Result(boolean signatureValid, boolean digestValid,
+                      SignerCertCache.Entry signer) {
+            boolean valid() {
+                return signatureValid && digestValid && signer.trusted();
+            }
+
+            String message() {
+                String subject = signer.cert().getSubjectX500Principal().getName();
+                if (!digestValid) return "Document digest does not match the signature";
+                if (!signatureValid) return "Signature value does not verify";
+                if (!signer.trusted()) {
+                    return "Signer certificate not trusted (" + signer.trust() + "): " + subject;
+                }
+                return "Signature valid, signed by " + subject;
+            }
+
+            /** Result fields as a JSON fragment starting with a comma. */
+            String toJson() {
+                return ",\"signatureValid\":" + signatureValid +
+                    ",\"digestValid\":" + digestValid +
+                    ",\"trusted\":" + signer.trusted() +
+                    ",\"signer\":" + signer.json();
+            }
+        }
+
+        private final XMLSignatureFactory factory = XMLSignatureFactory.getInstance("DOM");
+        private final SignerCertCache certs;
+
+        NativeSignatureVerifier(SignerCertCache certs) {
+            this.certs = certs;
+        }
+
+        SignerCertCache certs() {
+            return certs;
+        }
+
+        /**
+         * Verifies {@code signature} (a document containing ds:Signature)
+         * against the {@code invoice} bytes. Throws when the signature cannot
+         * be processed at all (malformed, unsupported algorithm, no signer
+         * certificate), so the caller can fall back to Santuario.
+         */
+        Result verify(byte[] invoice, byte[] signature) throws Exception {
+            Document doc = parseXml(signature);
+            org.w3c.dom.NodeList found =
+                doc.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
+            if (found.getLength() == 0) {
+                throw new XMLSignatureException("No ds:Signature element in signature document");
+            }
+
+            SignerKeySelector keys = new SignerKeySelector(certs);
+            DOMValidateContext ctx = new DOMValidateContext(keys, found.item(0));
+            registerIds(doc.getDocumentElement(), ctx);
+            URIDereferencer sameDocument = factory.getURIDereferencer();
+            ctx.setURIDereferencer((ref, context) -> {
+                String uri = ref.getURI();
+                if (uri != null && uri.startsWith("#")) {
+                    return sameDocument.dereference(ref, context);
+                }
+                return new OctetStreamData(new ByteArrayInputStream(invoice), uri, null);
+            });
+
+            XMLSignature sig = factory.unmarshalXMLSignature(ctx);
+            boolean signatureValid = sig.getSignatureValue().validate(ctx);
+            List<?> refs = sig.getSignedInfo().getReferences();
+            boolean digestValid = !refs.isEmpty();
+            for (Object ref : refs) {
+                digestValid &= ((Reference) ref).validate(ctx);
+            }
+            return new Result(signatureValid, digestValid, keys.signer);
+        }
+
+        /** Registers Id attributes so #fragment references resolve. */
+        private static void registerIds(Element e, DOMValidateContext ctx) {
+            for (String name : new String[] {"Id", "ID", "id"}) {
+                if (e.hasAttributeNS(null, name)) ctx.setIdAttributeNS(e, null, name);
+            }
+            for (Node n = e.getFirstChild(); n != null; n = n.getNextSibling()) {
+                if (n instanceof Element child) registerIds(child, ctx);
+            }
+        }
+
+        /**
+         * Takes the key from the KeyInfo X509Data, preferring a trusted
+         * certificate when a chain is embedded, and remembers the signer.
+         */
+        private static final class SignerKeySelector extends KeySelector {
+            private final SignerCertCache certs;
+            SignerCertCache.Entry signer;
+
+            SignerKeySelector(SignerCertCache certs) {
+                this.certs = certs;
+            }
+
+            @Override
+            public KeySelectorResult select(KeyInfo keyInfo, Purpose purpose,
+                                            AlgorithmMethod method, XMLCryptoContext context)
+                    throws KeySelectorException {
+                List<X509Certificate> embedded = new ArrayList<>();
+                if (keyInfo != null) {
+                    for (Object item : keyInfo.getContent()) {
+                        if (!(item instanceof X509Data data)) continue;
+                        for (Object c : data.getContent()) {
+                            if (c instanceof X509Certificate cert) embedded.add(cert);
+                        }
+                    }
+                }
+                SignerCertCache.Entry chosen = null;
+                for (X509Certificate cert : embedded) {
+                    SignerCertCache.Entry entry = certs.lookup(cert, embedded);
+                    if (entry.trusted()) {
+                        chosen = entry;
+                        break;
+                    }
+                    if (chosen == null) chosen = entry;
+                }
+                if (chosen == null) throw new KeySelectorException("No X509Certificate in KeyInfo");
+                signer = chosen;
+                PublicKey key = chosen.cert().getPublicKey();
+                return () -> key;
+            }
+        }
+    }
+
+    /**
+     * Trust decisions for signer certificates keyed by SHA-256 fingerprint.
+     * SPV invoices are signed by a handful of Ministerul Finantelor
+     * certificates, so the trust check and the signer JSON are computed once
+     * per certificate instead of on every request.
+     *
+     * A certificate is trusted when it is one of the pinned mf*.cer files,
+     * or, with -Dsignature.truststore, when PKIX path validation against
+     * that store succeeds (no revocation checks). Pinned certificates are
+     * preloaded and never evicted; pinning does not depend on time, so old
+     * invoices signed with a since-expired certificate still verify. Other
+     * decisions, negative ones included, sit in a bounded LRU for ttl, cut
+     * short at the certificate's notAfter while that is still ahead, after
+     * which the path is validated again. The path runs from the signer
+     * through the intermediates embedded next to it in KeyInfo/X509Data, and
+     * those decisions are keyed by the whole chain. With maxEntries 0 every
+     * lookup is evaluated from scratch.
+     */
+    static final class SignerCertCache {
+        record Entry(X509Certificate cert, boolean trusted, String trust, String json,
+                     long expiresAt) {}
+
+        private final List<X509Certificate> pinnedCerts;
+        private final Map<String, Entry> pinned = new HashMap<>();
+        private final PKIXParameters pkix;
+        private final int maxEntries;
+        private final long ttlMillis;
+        private final LinkedHashMap<String, Entry> entries;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        private final AtomicLong expirations = new AtomicLong();
+        private final AtomicLong pathValidations = new AtomicLong();
+
+        /**
+         * @param anchors trust anchors for PKIX path validation, or null to
+         *                trust pinned certificates only
+         */
+        SignerCertCache(List<X509Certificate> pinnedCerts, Set<TrustAnchor> anchors,
+                        int maxEntries) throws GeneralSecurityException {
+            this(pinnedCerts, anchors, maxEntries, 3_600_000L);
+        }
+
+        SignerCertCache(List<X509Certificate> pinnedCerts, Set<TrustAnchor> anchors,
+                        int maxEntries, long ttlMillis) throws GeneralSecurityException {
+            this.pinnedCerts = pinnedCerts;
+            this.maxEntries = maxEntries;
+            this.ttlMillis = ttlMillis;
+            if (anchors != null && !anchors.isEmpty()) {
+                pkix = new PKIXParameters(anchors);
+                pkix.setRevocationEnabled(false);
+            } else {
+                pkix = null;
+            }
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    if (size() > SignerCertCache.this.maxEntries) {
+                        evictions.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+            if (maxEntries > 0) {
+                for (X509Certificate cert : pinnedCerts) {
+                    String fp = fingerprint(cert);
+                    pinned.put(fp, evaluate(List.of(cert), fp));
+                }
+            }
+        }
+
+        /** Loads the mf*.cer signer certificates (DER or PEM). */
+        static List<X509Certificate> loadPinned(File dir)
+                throws IOException, CertificateException {
+            File[] files = dir.listFiles((d, n) -> n.startsWith("mf") && n.endsWith(".cer"));
+            List<X509Certificate> certs = new ArrayList<>();
+            if (files == null) return certs;
+            Arrays.sort(files);
+            CertificateFactory cf = CertificateFactory.getInstance("X.509");
+            for (File f : files) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+                    certs.add((X509Certificate) cf.generateCertificate(in));
+                }
+            }
+            return certs;
+        }
+
+        /** Loads every certificate entry of a keystore as a trust anchor. */
+        static Set<TrustAnchor> loadAnchors(File keystore, char[] password)
+                throws IOException, GeneralSecurityException {
+            KeyStore ks = KeyStore.getInstance(keystore, password);
+            Set<TrustAnchor> anchors = new HashSet<>();
+            for (String alias : Collections.list(ks.aliases())) {
+                if (ks.getCertificate(alias) instanceof X509Certificate cert) {
+                    anchors.add(new TrustAnchor(cert, null));
+                }
+            }
+            return anchors;
+        }
+
+        Entry lookup(X509Certificate cert) {
+            return lookup(cert, List.of());
+        }
+
+        /**
+         * Trust decision for cert, signer of a document whose KeyInfo also
+         * carries the embedded certificates (cert among them or not).
+         */
+        Entry lookup(X509Certificate cert, List<X509Certificate> embedded) {
+            String fp = fingerprint(cert);
+            Entry e = pinned.get(fp);
+            if (e != null) {
+                hits.incrementAndGet();
+                return e;
+            }
+            List<X509Certificate> chain = chain(cert, embedded);
+            if (maxEntries == 0) {
+                misses.incrementAndGet();
+                return evaluate(chain, fp);
+            }
+            String key = fp;
+            for (int i = 1; i < chain.size(); i++) key += "," + fingerprint(chain.get(i));
+            synchronized (this) {
+                e = entries.get(key);
+                if (e != null && e.expiresAt() < System.currentTimeMillis()) {
+                    entries.remove(key);
+                    expirations.incrementAndGet();
+                    e = null;
+                }
+            }
+            if (e != null) {
+                hits.incrementAndGet();
+                return e;
+            }
+            misses.incrementAndGet();
+            e = evaluate(chain, fp);
+            synchronized (this) {
+                entries.put(key, e);
+            }
+            return e;
+        }
+
+        /**
+         * cert followed by its issuers among embedded, nearest first, up to
+         * but not including a self-signed root (that must be a trust anchor).
+         */
+        private static List<X509Certificate> chain(X509Certificate cert,
+                                                   List<X509Certificate> embedded) {
+            List<X509Certificate> chain = new ArrayList<>();
+            chain.add(cert);
+            X509Certificate current = cert;
+            while (chain.size() <= embedded.size()) {
+                X509Certificate issuer = null;
+                for (X509Certificate c : embedded) {
+                    if (!chain.contains(c)
+                            && c.getSubjectX500Principal().equals(current.getIssuerX500Principal())
+                            && !c.getSubjectX500Principal().equals(c.getIssuerX500Principal())) {
+                        issuer = c;
+                        break;
+                    }
+                }
+                if (issuer == null) break;
+                chain.add(issuer);
+                current = issuer;
+            }
+            return chain;
+        }
+
+        private Entry evaluate(List<X509Certificate> chain, String fp) {
+            X509Certificate cert = chain.get(0);
+            boolean trusted;
+            String trust;
+            if (pinnedCerts.contains(cert)) {
+                trusted = true;
+                trust = "pinned";
+            } else if (pkix != null) {
+                pathValidations.incrementAndGet();
+                try {
+                    CertPath path = CertificateFactory.getInstance("X.509").generateCertPath(chain);
+                    CertPathValidator.getInstance("PKIX").validate(path, pkix);
+                    trusted = true;
+                    trust = "chain";
+                } catch (GeneralSecurityException e) {
+                    trusted = false;
+                    trust = "chain: " + e.getMessage();
+                }
+            } else {
+                trusted = false;
+                trust = "not a pinned Ministerul Finantelor certificate";
+            }
+            String json = "{\"subject\":" + escapeJson(cert.getSubjectX500Principal().getName()) +
+                ",\"issuer\":" + escapeJson(cert.getIssuerX500Principal().getName()) +
+                ",\"serial\":\"" + cert.getSerialNumber().toString(16) + "\"" +
+                ",\"notBefore\":\"" + cert.getNotBefore().toInstant() + "\"" +
+                ",\"notAfter\":\"" + cert.getNotAfter().toInstant() + "\"" +
+                ",\"sha256\":\"" + fp + "\"" +
+                ",\"chain\":" + chain.size() +
+                ",\"trust\":" + escapeJson(trust) + "}";
+            // An already-expired signer (every old SPV invoice) keeps the full ttl
+            long now = System.currentTimeMillis();
+            long notAfter = cert.getNotAfter().getTime();
+            long expiresAt = notAfter > now ? Math.min(notAfter, now + ttlMillis) : now + ttlMillis;
+            return new Entry(cert, trusted, trust, json, expiresAt);
+        }
+
+        int pinnedCount() {
+            return pinnedCerts.size();
+        }
+
+        long hits() {
+            return hits.get();
+        }
+
+        long misses() {
+            return misses.get();
+        }
+
+        synchronized String statsJson() {
+            long h = hits.get();
+            long total = h + misses.get();
+            return "{\"hits\":" + h +
+                ",\"misses\":" + misses.get() +
+                ",\"hitRate\":" + (total == 0 ? 0 : Math.round(h * 1000.0 / total) / 1000.0) +
+                ",\"pathValidations\":" + pathValidations.get() +
+                ",\"expirations\":" + expirations.get() +
+                ",\"evictions\":" + evictions.get() +
+                ",\"pinned\":" + pinnedCerts.size() +
+                ",\"entries\":" + entries.size() +
+                ",\"maxEntries\":" + maxEntries +
+                ",\"ttlSeconds\":" + ttlMillis / 1000 +
+                ",\"truststore\":" + (pkix != null) + "}";
+        }
+
+        static String fingerprint(X509Certificate cert) {
+            try {
+                return HexFormat.of().formatHex(sha256().digest(cert.getEncoded()));
+            } catch (CertificateEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    // ═════════════════════════════════════════════════════════════════
+    // POST /process-archive — SPV ZIP: signature, validation and PDF
+    // ═════════════════════════════════════════════════════════════════
+
+    /**
+     * Accepts an SPV download as the raw ZIP (application/zip) or several
+     * of them as multipart/form-data, one archive per part. Entries are
+     * read with ZipInputStream straight from the request, never extracted
+     * to disk. For each archive the signature check runs on the archive
+     * pool alongside a second task that parses the invoice once and feeds
+     * that DOM to XSD, Schematron and the Jasper fill. Up to
+     * archiveThreads archives are in flight, so one archive's rendering
+     * overlaps the next one's verification and validation.
+     *
+     * The response is multipart/mixed in request order: per archive a JSON
+     * part with the signature and validation results, followed by the PDF
+     * part when rendering succeeded.
+     */
+    static class ArchiveHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
+                sendJson(ex, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+
+            String contentType = ex.getRequestHeaders().getFirst("Content-Type");
+            MultipartReader parts = null;
+            if (contentType != null && contentType.toLowerCase().startsWith("multipart/")) {
+                String boundary = parseHeaderParam(contentType, "boundary");
+                if (boundary == null || boundary.isEmpty()) {
+                    sendJson(ex, 400, "{\"error\":\"Multipart body without boundary\"}");
+                    return;
+                }
+                parts = new MultipartReader(ex.getRequestBody(), boundary);
+            }
+
+            long reqId = archiveCount.incrementAndGet();
+            long start = System.currentTimeMillis();
+            String boundary = "archive_" + UUID.randomUUID().toString().replace("-", "");
+            ArrayDeque<ArchiveTasks> inFlight = new ArrayDeque<>();
+            int count = 0;
+            int invalid = 0;
+
+            try (OutputStream out = new BufferedOutputStream(
+                    openResponse(ex, 200, "multipart/mixed; boundary=" + boundary, -1), 65536)) {
+                try {
+                    if (parts == null) {
+                        inFlight.add(submitArchive(readArchive(count++, "archive.zip",
+                            ex.getRequestBody())));
+                    } else {
+                        MultipartReader.Part part;
+                        while ((part = parts.next()) != null) {
+                            String name = part.filename() != null ? part.filename() : part.name();
+                            inFlight.add(submitArchive(readArchive(count++, name,
+                                new ByteArrayInputStream(part.body()))));
+                            if (inFlight.size() >= archiveThreads) {
+                                invalid += writeArchive(out, boundary, inFlight.poll());
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    // Malformed multipart: report it after what was already read
+                    writePart(out, boundary, "application/json", null, ("{\"error\":" +
+                        escapeJson("Request truncated: " + e.getMessage()) + "}")
+                        .getBytes(StandardCharsets.UTF_8));
+                }
+                while (!inFlight.isEmpty()) {
+                    invalid += writeArchive(out, boundary, inFlight.poll());
+                }
+                out.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            } finally {
+                for (ArchiveTasks t : inFlight) t.cancel();
+            }
+
+            System.out.println("[JavaServices] Archive #" + reqId + " " +
+                (System.currentTimeMillis() - start) + "ms — " + count +
+                " archives, " + invalid + " not valid");
+        }
+
+        /** Writes one archive's parts; returns 1 unless signature and validation both passed. */
+        private int writeArchive(OutputStream out, String boundary, ArchiveTasks tasks)
+                throws IOException {
+            Archive a = tasks.archive();
+            StringBuilder json = new StringBuilder("{\"index\":").append(a.index());
+            json.append(",\"archive\":").append(escapeJson(a.name()));
+            if (a.error() != null) {
+                json.append(",\"error\":").append(escapeJson(a.error())).append('}');
+                writePart(out, boundary, "application/json", null,
+                    json.toString().getBytes(StandardCharsets.UTF_8));
+                return 1;
+            }
+
+            SignatureVerdict signature = join(tasks.signature(), e -> new SignatureVerdict(false,
+                "{\"valid\":false,\"message\":" + escapeJson("Error: " + e) + "}"));
+            InvoiceOutcome invoice = join(tasks.invoice(), e -> new InvoiceOutcome(
+                "{\"valid\":false,\"errors\":[" + new ErrorEntry("Processing failed: " + e,
+                    "archive", null, null).toJson() + "]}", false, null, null, String.valueOf(e)));
+
+            json.append(",\"invoice\":").append(escapeJson(a.invoiceName()));
+            json.append(",\"signatureFile\":").append(escapeJson(a.signatureName()));
+            json.append(",\"signature\":").append(signature.json());
+            json.append(",\"validation\":").append(invoice.validationJson());
+            String pdfName = a.invoiceName().replaceFirst("(?i)\\.xml$", "") + ".pdf";
+            if (invoice.pdf() != null) {
+                json.append(",\"pdf\":{\"filename\":").append(escapeJson(pdfName))
+                    .append(",\"engine\":\"").append(invoice.pdfEngine())
+                    .append("\",\"bytes\":").append(invoice.pdf().length).append('}');
+            } else {
+                json.append(",\"pdf\":{\"error\":").append(escapeJson(invoice.pdfError())).append('}');
+            }
+            json.append('}');
+            writePart(out, boundary, "application/json", null,
+                json.toString().getBytes(StandardCharsets.UTF_8));
+            if (invoice.pdf() != null) {
+                writePart(out, boundary, "application/pdf", pdfName, invoice.pdf());
+            }
+            return signature.valid() && invoice.valid() ? 0 : 1;
+        }
+
+        private static <T> T join(Future<T> future, java.util.function.Function<Object, T> onError)
+                throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Archive processing interrupted");
+            } catch (ExecutionException e) {
+                return onError.apply(e.getCause());
+            }
+        }
+
+        private static void writePart(OutputStream out, String boundary, String type,
+                                      String filename, byte[] body) throws IOException {
+            StringBuilder head = new StringBuilder("--").append(boundary).append("\r\n");
+            head.append("Content-Type: ").append(type).append("\r\n");
+            if (filename != null) {
+                head.append("Content-Disposition: attachment; filename=\"")
+                    .append(filename.replace('"', '_')).append("\"\r\n");
+            }
+            head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+            out.write(head.toString().getBytes(StandardCharsets.UTF_8));
+            out.write(body);
+            out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    /** One SPV archive: the invoice XML and its semnatura_*.xml, or why it is unusable. */
+    record Archive(int index, String name, String invoiceName, byte[] invoice,
+                   String signatureName, byte[] signature, String error) {}
+
+    record ArchiveTasks(Archive archive, Future<SignatureVerdict> signature,
+                        Future<InvoiceOutcome> invoice) {
+        void cancel() {
+            if (signature != null) signature.cancel(true);
+            if (invoice != null) invoice.cancel(true);
+        }
+    }
+
+    record InvoiceOutcome(String validationJson, boolean valid, byte[] pdf, String pdfEngine,
+                          String pdfError) {}
+
+    /** A signature verdict and the JSON object reported for it. */
+    record SignatureVerdict(boolean valid, String json) {}
+
+    /**
+     * Streams the ZIP entries into memory. The invoice is the .xml entry not
+     * named semnatura_*; entries beyond batch.maxDocBytes or a dozen files
+     * make the archive unusable rather than exhausting the heap.
+     */
+    static Archive readArchive(int index, String name, InputStream in) throws IOException {
+        long start = System.nanoTime();
+        String invoiceName = null;
+        String signatureName = null;
+        byte[] invoice = null;
+        byte[] signature = null;
+        int entries = 0;
+        try (ZipInputStream zip = new ZipInputStream(in)) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.isDirectory()) continue;
+                if (++entries > 12) {
+                    return new Archive(index, name, null, null, null, null,
+                        "Too many entries in archive");
+                }
+                String entryName = entry.getName();
+                String base = entryName.substring(entryName.lastIndexOf('/') + 1);
+                if (!base.toLowerCase().endsWith(".xml")) continue;
+                byte[] body = zip.readNBytes(batchMaxDocBytes + 1);
+                if (body.length > batchMaxDocBytes) {
+                    return new Archive(index, name, null, null, null, null,
+                        "Entry too large: " + base);
+                }
+                if (base.toLowerCase().startsWith("semnatura_")) {
+                    signatureName = base;
+                    signature = body;
+                } else {
+                    invoiceName = base;
+                    invoice = body;
+                }
+            }
+        } catch (java.util.zip.ZipException e) {
+            return new Archive(index, name, null, null, null, null,
+                "Invalid ZIP: " + e.getMessage());
+        } finally {
+            Metrics.ARCHIVE.stage(Stage.BODY_READ, System.nanoTime() - start);
+        }
+        if (invoice == null) {
+            return new Archive(index, name, null, null, signatureName, signature,
+                entries == 0 ? "Empty or invalid ZIP" : "No invoice XML in archive");
+        }
+        return new Archive(index, name, invoiceName, invoice, signatureName, signature, null);
+    }
+
+    static ArchiveTasks submitArchive(Archive a) {
+        if (a.error() != null) return new ArchiveTasks(a, null, null);
+        Future<SignatureVerdict> signature = a.signature() == null
+            ? java.util.concurrent.CompletableFuture.completedFuture(new SignatureVerdict(false,
+                "{\"valid\":false,\"message\":\"No semnatura_*.xml in archive\"}"))
+            : archivePool.submit(() -> verifySignature(a.invoice(), a.signature()));
+        Future<InvoiceOutcome> invoice = archivePool.submit(() -> processInvoice(a.invoice()));
+        return new ArchiveTasks(a, signature, invoice);
+    }
+
+    /** Signature verdict: native engine, Santuario as fallback. */
+    static SignatureVerdict verifySignature(byte[] xml, byte[] sig) {
+        if (nativeVerifier != null) {
+            long start = System.nanoTime();
+            try {
+                NativeSignatureVerifier.Result r = onCpu(() -> nativeVerifier.verify(xml, sig));
+                Metrics.ARCHIVE.stage(Stage.SIGNATURE_VERIFY, System.nanoTime() - start);
+                return new SignatureVerdict(r.valid(), "{\"valid\":" + r.valid() +
+                    ",\"message\":" + escapeJson(r.message()) +
+                    ",\"engine\":\"native\"" + r.toJson() + "}");
+            } catch (Exception e) {
+                if (!santuarioReady) {
+                    return new SignatureVerdict(false, "{\"valid\":false,\"message\":" +
+                        escapeJson("Error: " + e.getMessage()) + ",\"engine\":\"native\"}");
+                }
+                signatureFallbacks.incrementAndGet();
+            }
+        }
+        if (!santuarioReady) {
+            return new SignatureVerdict(false,
+                "{\"valid\":false,\"message\":\"Signature verification unavailable\"}");
+        }
+        try {
+            String result = santuarioVerify(Metrics.ARCHIVE, xml, sig);
+            boolean valid = santuarioValid(result);
+            return new SignatureVerdict(valid, "{\"valid\":" + valid +
+                ",\"message\":" + escapeJson(result != null ? result : "No result") +
+                ",\"engine\":\"santuario\"}");
+        } catch (Exception e) {
+            return new SignatureVerdict(false, "{\"valid\":false,\"message\":" +
+                escapeJson("Error: " + e.getMessage()) + ",\"engine\":\"santuario\"}");
+        }
+    }
+
+    /**
+     * Parses the invoice once; validation and the Jasper fill read that
+     * DOM one after the other on this thread (a DOM is not safe for
+     * concurrent readers). GenFactura, which only takes files, is the
+     * fallback renderer.
+     */
+    static InvoiceOutcome processInvoice(byte[] xml) {
+        long t0 = System.nanoTime();
+        Document doc;
+        try {
+            doc = parseXml(xml);
+        } catch (Exception e) {
+            ValidationResult failed = new ValidationResult(List.of(parseError(e)),
+                System.nanoTime() - t0, 0, 0, false);
+            Metrics.ARCHIVE.validation(failed);
+            return new InvoiceOutcome(validationJson(failed), false, null, null,
+                "Invoice is not well-formed XML");
+        }
+        long parseNanos = System.nanoTime() - t0;
+
+        ValidationResult validation = null;
+        if (xsdReady || schematronReady) {
+            validateCount.incrementAndGet();
+            validation = validateCached(xml, () -> validateParsed(doc, parseNanos));
+            Metrics.ARCHIVE.validation(validation);
+        }
+        String validationJson = validation != null ? validationJson(validation)
+            : "{\"valid\":false,\"errors\":[],\"message\":\"Validation unavailable\"}";
+        boolean valid = validation != null && validation.errors().isEmpty();
+
+        if (!pdfReady) {
+            return new InvoiceOutcome(validationJson, valid, null, null, "PDF generation unavailable");
+        }
+        pdfCount.incrementAndGet();
+        String cacheKey = pdfCache != null ? pdfCache.keyFor(xml) : null;
+        byte[] cached = cacheKey != null ? pdfCache.get(cacheKey) : null;
+        if (cached != null) {
+            return new InvoiceOutcome(validationJson, valid, cached, "cache", null);
+        }
+        String report = reportFor(doc.getDocumentElement().getLocalName());
+        if (jasperReady && report != null) {
+            try {
+                long fillStart = System.nanoTime();
+                JasperPrint print = onCpu(() -> fillReport(report, doc));
+                Metrics.ARCHIVE.stage(Stage.JASPER_FILL, System.nanoTime() - fillStart);
+                long exportStart = System.nanoTime();
+                ByteArrayOutputStream pdf = new ByteArrayOutputStream(128 * 1024);
+                JasperExportManager.exportReportToPdfStream(print, pdf);
+                Metrics.ARCHIVE.stage(Stage.JASPER_EXPORT, System.nanoTime() - exportStart);
+                byte[] bytes = pdf.toByteArray();
+                if (cacheKey != null) pdfCache.put(cacheKey, "jasper", bytes);
+                return new InvoiceOutcome(validationJson, valid, bytes, "jasper", null);
+            } catch (Exception e) {
+                System.err.println("[JavaServices] Archive in-memory render failed, " +
+                    "falling back to GenFactura: " + e.getMessage());
+            }
+        }
+        try {
+            byte[] bytes = genFacturaPdf(xml);
+            if (cacheKey != null) pdfCache.put(cacheKey, "genfactura", bytes);
+            return new InvoiceOutcome(validationJson, valid, bytes, "genfactura", null);
+        } catch (Exception e) {
+            return new InvoiceOutcome(validationJson, valid, null, null, e.getMessage());
+        }
+    }
+
+    static String validationJson(ValidationResult result) {
+        try (JsonWriter w = new JsonWriter()) {
+            writeValidationJson(w, result);
+            return w.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // in-memory writer, cannot happen
+        }
+    }
+
+    static void writeValidationJson(JsonWriter w, ValidationResult result) throws IOException {
+        List<ErrorEntry> errors = result.errors();
+        w.beginObject();
+        w.name("valid").value(errors.isEmpty());
+        w.name("cached").value(result.cached());
+        w.name("errors").beginArray();
+        for (ErrorEntry e : errors) e.writeJson(w);
+        w.endArray().endObject();
+    }
+
+    /** GenFactura through temp files; returns the PDF bytes. */
+    static byte[] genFacturaPdf(byte[] xml) throws Exception {
+        String id = UUID.randomUUID().toString();
+        File tmpXml = new File(System.getProperty("java.io.tmpdir"), "pdfgen_" + id + ".xml");
+        File tmpPdf = new File(System.getProperty("java.io.tmpdir"), "pdfgen_" + id + ".pdf");
+        File tmpAtas = new File(System.getProperty("java.io.tmpdir"), "pdfgen_" + id + "_ATAS");
+        try {
+            Files.write(tmpXml.toPath(), xml);
+            long start = System.nanoTime();
+            Engines.GenFacturaRun run = Engines.genFactura(tmpXml.getAbsolutePath());
+            if (run.typeError() != null && !run.typeError().isEmpty()) {
+                throw new IOException("Document type error: " + run.typeError());
+            }
+            if (run.type() == null || run.type().isEmpty()) throw new IOException("Unknown document type");
+            Metrics.ARCHIVE.stage(Stage.GENFACTURA, System.nanoTime() - start);
+            if (run.pdfError() != null && !run.pdfError().isEmpty()) {
+                throw new IOException("PDF error: " + run.pdfError());
+            }
+            String pdfPath = run.pdfPath();
+            File pdfFile = (pdfPath != null && !pdfPath.isEmpty()) ? new File(pdfPath) : tmpPdf;
+            if (!pdfFile.exists()) throw new IOException("PDF not created");
+            byte[] pdf = Files.readAllBytes(pdfFile.toPath());
+            if (!pdfFile.equals(tmpPdf)) pdfFile.delete();
+            return pdf;
+        } finally {
+            tmpXml.delete();
+            tmpPdf.delete();
+            tmpAtas.delete();
+        }
+    }
+
+    // ═════════════════════════════════════════════════════════════════
+    // /jobs — asynchronous validate, PDF and DUK work
+    // ═════════════════════════════════════════════════════════════════
+
+    /**
+     * POST /jobs?job=validate|pdf|etransport-validate|duk-validate|duk-pdf
+     * [&type=D394] takes the same body as the synchronous endpoint and
+     * answers 202 with a job id at once. GET /jobs/{id} answers 202 while
+     * the job is queued or running, then replays the endpoint's own
+     * response (status, Content-Type, X-* headers, body) with
+     * X-Job-Status: done. DELETE /jobs/{id} cancels a queued job or drops a
+     * finished one.
+     *
+     * Jobs run on their own pool, not through the lanes: a full lane answers
+     * 503, while an accepted job must wait its turn. A job does not depend on
+     * the connection that submitted it, and a finished result can be fetched
+     * any number of times until it expires, so a client that drops mid-poll
+     * or mid-download simply asks again.
+     */
+    static class JobsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            String path = ex.getRequestURI().getPath();
+            String id = path.length() > "/jobs/".length() ? path.substring("/jobs/".length()) : null;
+            String method = ex.getRequestMethod().toUpperCase();
+
+            if (id == null) {
+                if (!"POST".equals(method)) {
+                    sendJson(ex, 405, "{\"error\":\"Method not allowed\"}");
+                    return;
+                }
+                submit(ex);
+                return;
+            }
+
+            Job job = jobStore.get(id);
+            if (job == null) {
+                sendJson(ex, 404, "{\"error\":\"Unknown or expired job\"}");
+                return;
+            }
+            switch (method) {
+                case "GET" -> poll(ex, job);
+                case "DELETE" -> {
+                    jobStore.remove(job);
+                    sendJson(ex, 200, "{\"id\":\"" + job.id + "\",\"status\":\"deleted\"}");
+                }
+                default -> sendJson(ex, 405, "{\"error\":\"Method not allowed\"}");
+            }
+        }
+
+        private void submit(HttpExchange ex) throws IOException {
+            String query = ex.getRequestURI().getRawQuery();
+            String kind = parseQueryParam(query, "job");
+            String path = kind == null ? null : switch (kind) {
+                case "validate" -> "/validate";
+                case "pdf" -> "/generate-pdf";
+                case "etransport-validate" -> "/etransport/validate";
+                case "duk-validate" -> "/duk/validate";
+                case "duk-pdf" -> "/duk/generate-pdf";
+                default -> null;
+            };
+            if (path == null) {
+                sendJson(ex, 400, "{\"error\":\"job must be validate, pdf, " +
+                    "etransport-validate, duk-validate or duk-pdf\"}");
+                return;
+            }
+
+            byte[] body;
+            try (InputStream is = ex.getRequestBody()) {
+                body = is.readNBytes(batchMaxDocBytes + 1);
+            }
+            if (body.length > batchMaxDocBytes) {
+                sendJson(ex, 413, "{\"error\":\"Body exceeds batch.maxDocBytes\"}");
+                return;
+            }
+
+            // The target handler sees the original query (e.g. type=D394) and Content-Type
+            Headers headers = new Headers();
+            String contentType = ex.getRequestHeaders().getFirst("Content-Type");
+            if (contentType != null) headers.set("Content-Type", contentType);
+            URI uri = URI.create(path + (query != null ? "?" + query : ""));
+            Job job = jobStore.submit(kind, new CapturedExchange(uri, headers, body,
+                ex.getRemoteAddress(), ex.getLocalAddress()));
+            if (job == null) {
+                ex.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+                sendJson(ex, 503, "{\"error\":\"Too many pending jobs\"}");
+                return;
+            }
+            ex.getResponseHeaders().set("Location", "/jobs/" + job.id);
+            sendJson(ex, 202, job.statusJson());
+        }
+
+        private void poll(HttpExchange ex, Job job) throws IOException {
+            CapturedExchange result = job.result();
+            if (result == null) {
+                ex.getResponseHeaders().set("Retry-After", "1");
+                sendJson(ex, 202, job.statusJson());
+                return;
+            }
+            for (Map.Entry<String, List<String>> h : result.getResponseHeaders().entrySet()) {
+                if (h.getKey() != null && h.getKey().toLowerCase().startsWith("x-")) {
+                    ex.getResponseHeaders().put(h.getKey(), h.getValue());
+                }
+            }
+            ex.getResponseHeaders().set("X-Job-Id", job.id);
+            ex.getResponseHeaders().set("X-Job-Status", "done");
+            byte[] body = result.body();
+            // Jobs run without the client's Accept-Encoding; compress on replay
+            try (OutputStream os = openResponse(ex, result.getResponseCode(),
+                    result.getResponseHeaders().getFirst("Content-Type"), body.length)) {
+                os.write(body);
+            }
+        }
+    }
+
+    static final class Job {
+        final String id = UUID.randomUUID().toString();
+        final String kind;
+        final long createdAt = System.currentTimeMillis();
+        final CapturedExchange exchange;
+        volatile Future<?> future;
+        volatile long startedAt;
+        volatile long finishedAt;
+
+        Job(String kind, CapturedExchange exchange) {
+            this.kind = kind;
+            this.exchange = exchange;
+        }
+
+        /** The captured response once the job has finished, else null. */
+        CapturedExchange result() {
+            return finishedAt != 0 ? exchange : null;
+        }
+
+        String status() {
+            return finishedAt != 0 ? "done" : startedAt != 0 ? "running" : "queued";
+        }
+
+        String statusJson() {
+            long now = System.currentTimeMillis();
+            return "{\"id\":\"" + id + "\",\"job\":\"" + kind + "\",\"status\":\"" + status() +
+                "\",\"age_ms\":" + (now - createdAt) + "}";
+        }
+    }
+
+    /**
+     * Bounded job table. At most -Djobs.max jobs (default 500) and
+     * -Djobs.maxResultBytes of finished output (default 256 MiB) are kept;
+     * finished jobs expire -Djobs.ttl seconds (default 900) after completion,
+     * and the oldest finished jobs are evicted first when a bound is hit.
+     * Submissions are refused only when every slot holds a pending job.
+     */
+    static final class JobStore {
+        private static final long SWEEP_INTERVAL_MS = 5_000;
+
+        private final Map<String, HttpHandler> handlers;
+        private final ThreadPoolExecutor pool;
+        private final int maxJobs;
+        private final long maxResultBytes;
+        private final long ttlMillis;
+        // Submission order, so eviction scans oldest first
+        private final LinkedHashMap<String, Job> jobs = new LinkedHashMap<>();
+        private long resultBytes;
+        private long nextSweep;
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong expired = new AtomicLong();
+        private final AtomicLong evicted = new AtomicLong();
+
+        JobStore(Map<String, HttpHandler> handlers, int threads, int maxJobs,
+                 long maxResultBytes, long ttlMillis) {
+            this.handlers = handlers;
+            this.maxJobs = maxJobs;
+            this.maxResultBytes = maxResultBytes;
+            this.ttlMillis = ttlMillis;
+            AtomicLong seq = new AtomicLong();
+            this.pool = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new java.util.concurrent.LinkedBlockingQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "job-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        }
+
+        int threads() {
+            return pool.getCorePoolSize();
+        }
+
+        /** Queues a job; null when the table is full of pending jobs. */
+        Job submit(String kind, CapturedExchange exchange) {
+            Job job = new Job(kind, exchange);
+            synchronized (this) {
+                sweep(System.currentTimeMillis(), true);
+                if (jobs.size() >= maxJobs && !evictOldestFinished()) {
+                    rejected.incrementAndGet();
+                    return null;
+                }
+                jobs.put(job.id, job);
+            }
+            submitted.incrementAndGet();
+            HttpHandler handler = handlers.get(kind);
+            job.future = pool.submit(() -> run(job, handler));
+            return job;
+        }
+
+        synchronized Job get(String id) {
+            sweep(System.currentTimeMillis(), false);
+            return jobs.get(id);
+        }
+
+        void remove(Job job) {
+            Future<?> f = job.future;
+            if (f != null && job.startedAt == 0) f.cancel(false);
+            synchronized (this) {
+                if (jobs.remove(job.id) != null && job.finishedAt != 0) {
+                    resultBytes -= job.exchange.body().length;
+                }
+            }
+        }
+
+        private void run(Job job, HttpHandler handler) {
+            job.startedAt = System.currentTimeMillis();
+            CapturedExchange ex = job.exchange;
+            try {
+                handler.handle(ex);
+            } catch (Exception e) {
+                System.err.println("[JavaServices] Job " + job.id + " (" + job.kind +
+                    ") error: " + e.getMessage());
+                if (ex.getResponseCode() == -1) {
+                    try {
+                        sendJson(ex, 500, "{\"error\":" +
+                            escapeJson("Job failed: " + e.getMessage()) + "}");
+                    } catch (IOException ignored) {
+                        // Captured in memory; cannot fail
+                    }
+                }
+            }
+            ex.finish();
+            completed.incrementAndGet();
+            synchronized (this) {
+                job.finishedAt = System.currentTimeMillis();
+                if (!jobs.containsKey(job.id)) return;  // deleted while running
+                resultBytes += ex.body().length;
+                while (resultBytes > maxResultBytes) {
+                    if (!evictOldestFinished()) break;
+                }
+            }
+        }
+
+        /** Drops expired jobs; a forced sweep ignores the interval. */
+        private void sweep(long now, boolean force) {
+            if (!force && now < nextSweep) return;
+            nextSweep = now + SWEEP_INTERVAL_MS;
+            var it = jobs.values().iterator();
+            while (it.hasNext()) {
+                Job job = it.next();
+                if (job.finishedAt != 0 && now - job.finishedAt > ttlMillis) {
+                    resultBytes -= job.exchange.body().length;
+                    it.remove();
+                    expired.incrementAndGet();
+                }
+            }
+        }
+
+        private boolean evictOldestFinished() {
+            var it = jobs.values().iterator();
+            while (it.hasNext()) {
+                Job job = it.next();
+                if (job.finishedAt != 0) {
+                    resultBytes -= job.exchange.body().length;
+                    it.remove();
+                    evicted.incrementAndGet();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized String statsJson() {
+            int queued = 0;
+            int running = 0;
+            int done = 0;
+            for (Job job : jobs.values()) {
+                if (job.finishedAt != 0) done++;
+                else if (job.startedAt != 0) running++;
+                else queued++;
+            }
+            return "{\"threads\":" + pool.getCorePoolSize() +
+                ",\"queued\":" + queued +
+                ",\"running\":" + running +
+                ",\"done\":" + done +
+                ",\"resultBytes\":" + resultBytes +
+                ",\"submitted\":" + submitted.get() +
+                ",\"completed\":" + completed.get() +
+                ",\"rejected\":" + rejected.get() +
+                ",\"expired\":" + expired.get() +
+                ",\"evicted\":" + evicted.get() +
+                ",\"maxJobs\":" + maxJobs +
+                ",\"ttlSeconds\":" + ttlMillis / 1000 + "}";
+        }
+    }
+
+    /**
+     * An HttpExchange with no connection behind it: the request comes from
+     * memory and the response is captured for a later GET /jobs/{id}. Lets
+     * the synchronous handlers run unchanged as jobs.
+     */
+    static final class CapturedExchange extends HttpExchange {
+        private final URI uri;
+        private final Headers requestHeaders;
+        private final Headers responseHeaders = new Headers();
+        private final InputStream requestBody;
+        private final ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        private final InetSocketAddress remote;
+        private final InetSocketAddress local;
+        private final Map<String, Object> attributes = new HashMap<>();
+        private volatile int responseCode = -1;
+        private volatile byte[] body;
+
+        CapturedExchange(URI uri, Headers requestHeaders, byte[] requestBody,
+                         InetSocketAddress remote, InetSocketAddress local) {
+            this.uri = uri;
+            this.requestHeaders = requestHeaders;
+            this.requestBody = new ByteArrayInputStream(requestBody);
+            this.remote = remote;
+            this.local = local;
+        }
+
+        /** Freezes the captured body; called once the handler has returned. */
+        void finish() {
+            body = responseBody.toByteArray();
+        }
+
+        byte[] body() {
+            byte[] b = body;
+            return b != null ? b : new byte[0];
+        }
+
+        @Override public Headers getRequestHeaders() { return requestHeaders; }
+        @Override public Headers getResponseHeaders() { return responseHeaders; }
+        @Override public URI getRequestURI() { return uri; }
+        @Override public String getRequestMethod() { return "POST"; }
+        @Override public HttpContext getHttpContext() { return null; }
+        @Override public void close() { }
+        @Override public InputStream getRequestBody() { return requestBody; }
+        @Override public OutputStream getResponseBody() { return responseBody; }
+        @Override public InetSocketAddress getRemoteAddress() { return remote; }
+        @Override public int getResponseCode() { return responseCode; }
+        @Override public InetSocketAddress getLocalAddress() { return local; }
+        @Override public String getProtocol() { return "HTTP/1.1"; }
+        @Override public Object getAttribute(String name) { return attributes.get(name); }
+        @Override public void setAttribute(String name, Object value) { attributes.put(name, value); }
+        @Override public void setStreams(InputStream i, OutputStream o) { }
+        @Override public HttpPrincipal getPrincipal() { return null; }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) {
+            responseCode = rCode;
+        }
+    }
+
+    // ═════════════════════════════════════════════════════════════════
+    // POST /etransport/validate — e-Transport declaration validation
+    // ═════════════════════════════════════════════════════════════════
+
+    /**
+     * Validates an e-Transport declaration (notificare, stergere,
+     * confirmare, modifVehicul) against schema_ETR_v2.xsd and the shipped,
+     * already compiled Schematron. Both are loaded once at startup; the
+     * Schematron runs on pooled transformers like the CIUS-RO XSLT engine.
+     *
+     * Asserts flagged "warning" come back under "warnings" and leave the
+     * declaration valid, the way ANAF treats them.
+     */
+    static class ETransportValidateHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
+                sendJson(ex, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+
+            long readStart = System.nanoTime();
+            byte[] xml;
+            try (InputStream is = ex.getRequestBody()) {
+                xml = is.readAllBytes();
+            }
+            Metrics.ETRANSPORT.stage(Stage.BODY_READ, System.nanoTime() - readStart);
+            if (xml.length == 0) {
+                sendJson(ex, 400, "{\"error\":\"Empty body\"}");
+                return;
+            }
+
+            if (etransportSchema == null && etransportSchematron == null) {
+                sendJson(ex, 503,
+                    "{\"error\":\"e-Transport validation unavailable (XSD and Schematron not loaded)\"}");
+                return;
+            }
+
+            etransportCount.incrementAndGet();
+            long start = System.currentTimeMillis();
+            List<ErrorEntry> warnings = new ArrayList<>();
+            ValidationResult result = onCpu(() -> validateETransport(xml, warnings));
+            Metrics.ETRANSPORT.validation(result);
+            List<ErrorEntry> errors = result.errors();
+
+            long elapsed = System.currentTimeMillis() - start;
+            try (JsonWriter w = new JsonWriter(ex, 200)) {
+                w.beginObject();
+                w.name("valid").value(errors.isEmpty());
+                w.name("schematronAvailable").value(etransportSchematron != null);
+                w.name("xsdAvailable").value(etransportSchema != null);
+                w.name("elapsed_ms").value(elapsed);
+                w.name("parse_ms").value(result.parseNanos() / 1_000_000);
+                w.name("xsd_ms").value(result.xsdNanos() / 1_000_000);
+                w.name("schematron_ms").value(result.schematronNanos() / 1_000_000);
+                w.name("errors").beginArray();
+                for (ErrorEntry e : errors) e.writeJson(w);
+                w.endArray();
+                w.name("warnings").beginArray();
+                for (ErrorEntry e : warnings) e.writeJson(w);
+                w.endArray().endObject();
+            }
+        }
+    }
+
+    /**
+     * XSD then the compiled e-Transport Schematron over one declaration,
+     * parsed once into a DOM that both passes read. Schematron is skipped
+     * when XSD already failed; its warning-flagged asserts are added to
+     * warnings instead of the result.
+     */
+    static ValidationResult validateETransport(byte[] xml, List<ErrorEntry> warnings) {
+        long t0 = System.nanoTime();
+        Document doc;
+        try {
+            doc = parseXml(xml);
+        } catch (Exception e) {
+            return new ValidationResult(List.of(parseError(e)), System.nanoTime() - t0, 0, 0, false);
+        }
+        long parseNanos = System.nanoTime() - t0;
+
+        Element root = doc.getDocumentElement();
+        if (!ETRANSPORT_NS.equals(root.getNamespaceURI()) || !"eTransport".equals(root.getLocalName())) {
+            return new ValidationResult(List.of(new ErrorEntry("Unsupported document root: " +
+                new QName(root.getNamespaceURI(), root.getLocalName()) +
+                " (expected e-Transport declaration)", "xsd", null, null)), parseNanos, 0, 0, false);
+        }
+
+        List<ErrorEntry> errors = new ArrayList<>();
+        long t1 = System.nanoTime();
+        if (etransportSchema != null) {
+            try {
+                etransportSchema.newValidator().validate(new DOMSource(doc));
+            } catch (org.xml.sax.SAXException e) {
+                errors.add(new ErrorEntry(e.getMessage(), "xsd", null, null));
+            } catch (Exception e) {
+                errors.add(new ErrorEntry("XSD error: " + e.getMessage(), "xsd", null, null));
+            }
+        }
+        long xsdNanos = System.nanoTime() - t1;
+
+        long t2 = System.nanoTime();
+        if (errors.isEmpty() && etransportSchematron != null) {
+            try {
+                errors.addAll(etransportSchematron.validate(new DOMSource(doc), warnings));
+            } catch (Exception e) {
+                errors.add(new ErrorEntry("Schematron error: " + e.getMessage(),
+                    "schematron", null, null));
+            }
+        }
+        long schematronNanos = System.nanoTime() - t2;
+
+        return new ValidationResult(errors, parseNanos, xsdNanos, schematronNanos, false);
+    }
+
+    // ═════════════════════════════════════════════════════════════════
+    // POST /duk/validate — DUKIntegrator validation
+    // ═════════════════════════════════════════════════════════════════
+
+    static class DukValidateHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
+                sendJson(ex, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+
+            if (!dukReady) {
+                sendJson(ex, 503,
+                    "{\"error\":\"DUK validation unavailable (DUKIntegrator not loaded)\"}");
+                return;
+            }
+
+            long readStart = System.nanoTime();
+            byte[] xmlBytes;
+            try (InputStream is = ex.getRequestBody()) {
+                xmlBytes = is.readAllBytes();
+            }
+            Metrics.DUK_VALIDATE.stage(Stage.BODY_READ, System.nanoTime() - readStart);
+            if (xmlBytes.length == 0) {
+                sendJson(ex, 400, "{\"error\":\"Empty body\"}");
+                return;
+            }
+
+            // Extract ?type=D394 from query string
+            String type = parseQueryParam(ex.getRequestURI().getRawQuery(), "type");
+            if (type == null || type.isEmpty()) {
+                sendJson(ex, 400, "{\"error\":\"Missing query parameter: type (e.g. ?type=D394)\"}");
+                return;
+            }
+
+            long reqId = dukValidateCount.incrementAndGet();
+
+            // Structurally broken documents never reach DUK: the type's XSD
+            // answers with line and column, without temp files or an integrator
+            if (declarationSchemas != null && declarationSchemas.covers(type, xmlBytes)) {
+                long xsdStart = System.nanoTime();
+                List<String> xsdErrors = onCpu(() -> declarationSchemas.validate(type, xmlBytes));
+                long xsdNanos = System.nanoTime() - xsdStart;
+                Metrics.DUK_VALIDATE.stage(Stage.XSD, xsdNanos);
+                if (!xsdErrors.isEmpty()) {
+                    System.out.println("[JavaServices] DUK validate #" + reqId + " " +
+                        xsdNanos / 1_000_000 + "ms — " + type + " INVALID (XSD, " +
+                        xsdErrors.size() + " errors, DUK skipped)");
+                    try (JsonWriter w = new JsonWriter(ex, 200)) {
+                        w.beginObject();
+                        w.name("valid").value(false);
+                        w.name("elapsed_ms").value(xsdNanos / 1_000_000);
+                        w.name("stage").value("xsd");
+                        w.name("errors").beginArray();
+                        for (String e : xsdErrors) w.value(e);
+                        w.endArray();
+                        w.name("warnings").beginArray().endArray();
+                        w.endObject();
+                    }
+                    return;
+                }
+            }
+
+            String id = UUID.randomUUID().toString();
+            File tmpXml = new File(System.getProperty("java.io.tmpdir"),
+                "dukval_" + id + ".xml");
+            // DUKIntegrator writes errors to <filename>.err.txt
+            File tmpErr = new File(System.getProperty("java.io.tmpdir"),
+                "dukval_" + id + ".xml.err.txt");
+
+            try {
+                long ioStart = System.nanoTime();
+                Files.write(tmpXml.toPath(), xmlBytes);
+                Metrics.DUK_VALIDATE.stage(Stage.TEMP_IO, System.nanoTime() - ioStart);
+                long start = System.currentTimeMillis();
+
+                Engines.DukRun run = Engines.dukParse(type, tmpXml.getAbsolutePath());
+                int result = run.result();
+                String errFilePath = run.errPath();
+                String logFilePath = run.logPath();
+                boolean valid = (result == 0);
+
+                long elapsed = System.currentTimeMillis() - start;
+                Metrics.DUK_VALIDATE.stage(Stage.DUK_PARSE, elapsed * 1_000_000);
+                if (declarationSchemas != null) declarationSchemas.dukCall(type, elapsed * 1_000_000);
+                ioStart = System.nanoTime();
+
+                // Read errors from the integrator's error file
+                List<String> errors = new ArrayList<>();
+                List<String> warnings = new ArrayList<>();
+
+                // Try integrator's own error file accessor
+                File errFile = (errFilePath != null && !errFilePath.isEmpty())
+                    ? new File(errFilePath) : tmpErr;
+
+                if (errFile.exists()) {
+                    String errContent = Files.readString(errFile.toPath(), StandardCharsets.UTF_8);
+                    for (String line : errContent.split("\\r?\\n")) {
+                        line = line.trim();
+                        if (line.isEmpty()) continue;
+                        if (line.startsWith("WARNING:") || line.startsWith("Avertisment:")) {
+                            warnings.add(line);
+                        } else {
+                            errors.add(line);
+                        }
+                    }
+                    errFile.delete();
+                }
+
+                // Also check the log errors file
+                if (logFilePath != null && !logFilePath.isEmpty()) {
+                    File logFile = new File(logFilePath);
+                    if (logFile.exists()) {
+                        String logContent = Files.readString(logFile.toPath(), StandardCharsets.UTF_8);
                         for (String line : logContent.split("\\r?\\n")) {
                             line = line.trim();
                             if (line.isEmpty()) continue;
@@ -594,295 +4297,2328 @@ public class JavaServiceServer {
                                 errors.add(line);
                             }
                         }
-                        logFile.delete();
+                        logFile.delete();
+                    }
+                }
+
+                Metrics.DUK_VALIDATE.stage(Stage.TEMP_IO, System.nanoTime() - ioStart);
+
+                // If DUK says invalid but no errors captured, add a generic one
+                if (!valid && errors.isEmpty()) {
+                    errors.add("DUK validation failed for type " + type + " (code: " + result + ")");
+                }
+
+                System.out.println("[JavaServices] DUK validate #" + reqId + " " +
+                    elapsed + "ms — " + type + " " + (valid ? "VALID" : "INVALID") +
+                    " (" + errors.size() + " errors, " + warnings.size() + " warnings)");
+
+                try (JsonWriter w = new JsonWriter(ex, 200)) {
+                    w.beginObject();
+                    w.name("valid").value(valid && errors.isEmpty());
+                    w.name("elapsed_ms").value(elapsed);
+                    w.name("stage").value("duk");
+                    w.name("errors").beginArray();
+                    for (String e : errors) w.value(e);
+                    w.endArray();
+                    w.name("warnings").beginArray();
+                    for (String warning : warnings) w.value(warning);
+                    w.endArray().endObject();
+                }
+
+            } catch (Exception e) {
+                System.err.println("[JavaServices] DUK validate #" + reqId +
+                    " error: " + e.getMessage());
+                sendJson(ex, 500,
+                    "{\"error\":" + escapeJson("DUK validation failed: " + e.getMessage()) + "}");
+            } finally {
+                tmpXml.delete();
+                tmpErr.delete();
+            }
+        }
+    }
+
+    // ═════════════════════════════════════════════════════════════════
+    // POST /duk/generate-pdf — DUKIntegrator PDF generation
+    // ═════════════════════════════════════════════════════════════════
+
+    static class DukPdfHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
+                sendJson(ex, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+
+            if (!dukReady) {
+                sendJson(ex, 503,
+                    "{\"error\":\"DUK PDF generation unavailable (DUKIntegrator not loaded)\"}");
+                return;
+            }
+
+            long readStart = System.nanoTime();
+            byte[] xmlBytes;
+            try (InputStream is = ex.getRequestBody()) {
+                xmlBytes = is.readAllBytes();
+            }
+            Metrics.DUK_PDF.stage(Stage.BODY_READ, System.nanoTime() - readStart);
+            if (xmlBytes.length == 0) {
+                sendJson(ex, 400, "{\"error\":\"Empty body\"}");
+                return;
+            }
+
+            String type = parseQueryParam(ex.getRequestURI().getRawQuery(), "type");
+            if (type == null || type.isEmpty()) {
+                sendJson(ex, 400, "{\"error\":\"Missing query parameter: type (e.g. ?type=D394)\"}");
+                return;
+            }
+
+            long reqId = dukPdfCount.incrementAndGet();
+            String id = UUID.randomUUID().toString();
+            File tmpXml = new File(System.getProperty("java.io.tmpdir"),
+                "dukpdf_" + id + ".xml");
+            File tmpPdf = new File(System.getProperty("java.io.tmpdir"),
+                "dukpdf_" + id + ".pdf");
+            File tmpErr = new File(System.getProperty("java.io.tmpdir"),
+                "dukpdf_" + id + ".xml.err.txt");
+
+            try {
+                long ioStart = System.nanoTime();
+                Files.write(tmpXml.toPath(), xmlBytes);
+                Metrics.DUK_PDF.stage(Stage.TEMP_IO, System.nanoTime() - ioStart);
+                long start = System.currentTimeMillis();
+
+                Engines.DukRun run = Engines.dukPdf(type, tmpXml.getAbsolutePath(),
+                    tmpPdf.getAbsolutePath());
+                int pdfResult = run.result();
+                String pdfPath = run.pdfPath();
+                String logPath = run.logPath();
+                String errPath = run.errPath();
+                Metrics.DUK_PDF.stage(Stage.DUK_PDF,
+                    (System.currentTimeMillis() - start) * 1_000_000);
+
+                System.out.println("[JavaServices] DUK PDF #" + reqId +
+                    " pdfCreation result=" + pdfResult);
+
+                // Generated PDF path as reported by the integrator
+                System.out.println("[JavaServices] DUK PDF #" + reqId +
+                    " pdfPath=" + pdfPath);
+
+                // Check for error log
+                if (logPath != null && !logPath.isEmpty()) {
+                    File logFile = new File(logPath);
+                    if (logFile.exists()) {
+                        String logContent = Files.readString(logFile.toPath(),
+                            StandardCharsets.UTF_8).trim();
+                        if (!logContent.isEmpty()) {
+                            System.out.println("[JavaServices] DUK PDF #" + reqId +
+                                " log: " + logContent);
+                        }
+                    }
+                }
+
+                // Check for parse error file
+                if (errPath != null && !errPath.isEmpty()) {
+                    File errFile = new File(errPath);
+                    if (errFile.exists()) {
+                        String errContent2 = Files.readString(errFile.toPath(),
+                            StandardCharsets.UTF_8).trim();
+                        if (!errContent2.isEmpty()) {
+                            System.out.println("[JavaServices] DUK PDF #" + reqId +
+                                " errors: " + errContent2);
+                        }
+                    }
+                }
+
+                // Check for errors
+                if (tmpErr.exists()) {
+                    String errContent = Files.readString(tmpErr.toPath(), StandardCharsets.UTF_8).trim();
+                    if (!errContent.isEmpty()) {
+                        // Only fail if the error file has actual errors (not warnings)
+                        boolean hasErrors = false;
+                        for (String line : errContent.split("\\r?\\n")) {
+                            if (!line.trim().startsWith("WARNING:") && !line.trim().startsWith("Avertisment:") && !line.trim().isEmpty()) {
+                                hasErrors = true;
+                                break;
+                            }
+                        }
+                        if (hasErrors) {
+                            sendJson(ex, 422,
+                                "{\"error\":" + escapeJson("DUK PDF validation errors: " + errContent) + "}");
+                            return;
+                        }
+                    }
+                }
+
+                File pdfFile = (pdfPath != null && !pdfPath.isEmpty())
+                    ? new File(pdfPath) : tmpPdf;
+
+                if (!pdfFile.exists()) {
+                    // DUK sometimes puts the PDF next to the XML with .pdf extension
+                    File altPdf = new File(tmpXml.getAbsolutePath().replaceAll("\\.xml$", ".pdf"));
+                    if (altPdf.exists()) {
+                        pdfFile = altPdf;
+                    } else {
+                        // List files in outputDir matching our prefix
+                        File[] related = tmpXml.getParentFile().listFiles(
+                            f -> f.getName().startsWith("dukpdf_" + id));
+                        StringBuilder sb = new StringBuilder();
+                        if (related != null) {
+                            for (File f : related) sb.append(f.getName()).append(" ");
+                        }
+                        sendJson(ex, 500,
+                            "{\"error\":\"DUK PDF not created (result=" + pdfResult +
+                            ", pdfPath=" + (pdfPath == null ? "null" : pdfPath) +
+                            ", files=[" + sb.toString().trim() + "])\"}");
+                        return;
+                    }
+                }
+
+                long elapsed = System.currentTimeMillis() - start;
+                System.out.println("[JavaServices] DUK PDF #" + reqId + " " +
+                    elapsed + "ms (" + type + ", " + pdfFile.length() + "b)");
+
+                ioStart = System.nanoTime();
+                byte[] pdfBytes = Files.readAllBytes(pdfFile.toPath());
+                Metrics.DUK_PDF.stage(Stage.TEMP_IO, System.nanoTime() - ioStart);
+                ex.getResponseHeaders().set("X-Generation-Time-Ms",
+                    String.valueOf(elapsed));
+                try (OutputStream os = openResponse(ex, 200, "application/pdf", pdfBytes.length)) {
+                    os.write(pdfBytes);
+                }
+
+                if (!pdfFile.equals(tmpPdf)) pdfFile.delete();
+
+            } catch (Exception e) {
+                System.err.println("[JavaServices] DUK PDF #" + reqId +
+                    " error: " + e.getMessage());
+                sendJson(ex, 500,
+                    "{\"error\":" + escapeJson("DUK PDF failed: " + e.getMessage()) + "}");
+            } finally {
+                tmpXml.delete();
+                tmpPdf.delete();
+                tmpErr.delete();
+            }
+        }
+    }
+
+    // ═════════════════════════════════════════════════════════════════
+    // DUKIntegrator API — per-type class loaders, integrators pre-built
+    // ═════════════════════════════════════════════════════════════════
+
+    /**
+     * general.Integrator entry points as MethodHandles, looked up once per
+     * loaded generation of the DUK jars instead of Class.forName + getMethod on every request. Handles
+     * are adapted to an Object receiver so call sites can use invokeExact.
+     */
+    static final class DukApi {
+        private final MethodHandle newInstance;
+        private final MethodHandle setDeclType;
+        private final MethodHandle setConfigPath;
+        private final MethodHandle setNoCertificate;
+        private final MethodHandle parseDocument;
+        private final MethodHandle pdfCreation;
+        private final MethodHandle getFisierPdf;
+        private final MethodHandle getFisierLogErori;
+        private final MethodHandle getFisierEroriParsare;
+
+        DukApi(Class<?> integrator) throws ReflectiveOperationException {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            newInstance = lookup.unreflectConstructor(integrator.getConstructor())
+                .asType(MethodType.methodType(Object.class));
+            setDeclType = handle(lookup, integrator, "setDeclType", void.class, String.class);
+            setConfigPath = handle(lookup, integrator, "setConfigPath", void.class, String.class);
+            setNoCertificate = handle(lookup, integrator, "setNoCertificate", void.class);
+            parseDocument = handle(lookup, integrator, "parseDocument", int.class,
+                String.class, String.class);
+            pdfCreation = handle(lookup, integrator, "pdfCreation", int.class,
+                String.class, String.class, String.class, String.class);
+            getFisierPdf = handle(lookup, integrator, "getFisierPdf", String.class);
+            getFisierLogErori = handle(lookup, integrator, "getFisierLogErori", String.class);
+            getFisierEroriParsare = handle(lookup, integrator, "getFisierEroriParsare", String.class);
+        }
+
+        // Resolved by name and parameters like getMethod; the return type is
+        // adapted (a non-void setter result is simply dropped).
+        private static MethodHandle handle(MethodHandles.Lookup lookup, Class<?> c, String name,
+                                           Class<?> returns, Class<?>... params)
+                throws ReflectiveOperationException {
+            return lookup.unreflect(c.getMethod(name, params))
+                .asType(MethodType.methodType(returns, Object.class, params));
+        }
+
+        /** New integrator with declaration type and config path set. */
+        Object create(String type) throws Exception {
+            try {
+                Object integrator = (Object) newInstance.invokeExact();
+                setDeclType.invokeExact(integrator, type);
+                setConfigPath.invokeExact(integrator, dukDir + "/");
+                return integrator;
+            } catch (Throwable t) {
+                throw failure(t);
+            }
+        }
+
+        void setNoCertificate(Object integrator) throws Exception {
+            try {
+                setNoCertificate.invokeExact(integrator);
+            } catch (Throwable t) {
+                throw failure(t);
+            }
+        }
+
+        int parseDocument(Object integrator, String xmlPath, String type) throws Exception {
+            try {
+                return (int) parseDocument.invokeExact(integrator, xmlPath, type);
+            } catch (Throwable t) {
+                throw failure(t);
+            }
+        }
+
+        int pdfCreation(Object integrator, String xmlPath, String type, String zipFile,
+                        String pdfPath) throws Exception {
+            try {
+                return (int) pdfCreation.invokeExact(integrator, xmlPath, type, zipFile, pdfPath);
+            } catch (Throwable t) {
+                throw failure(t);
+            }
+        }
+
+        String pdfFile(Object integrator) throws Exception {
+            return getter(getFisierPdf, integrator);
+        }
+
+        String logFile(Object integrator) throws Exception {
+            return getter(getFisierLogErori, integrator);
+        }
+
+        String parseErrorFile(Object integrator) throws Exception {
+            return getter(getFisierEroriParsare, integrator);
+        }
+
+        private static String getter(MethodHandle h, Object integrator) throws Exception {
+            try {
+                return (String) h.invokeExact(integrator);
+            } catch (Throwable t) {
+                throw failure(t);
+            }
+        }
+
+        private static Exception failure(Throwable t) {
+            if (t instanceof Error e) throw e;
+            return t instanceof Exception e ? e : new Exception(t);
+        }
+    }
+
+    /**
+     * DUKIntegrator per declaration type, each in its own URLClassLoader
+     * over the core jars plus that type's Validator and Pdf jars, so jars
+     * that update-jars.sh drops into the DUK directory are picked up without
+     * a restart. Types without jars of their own share one core-only loader.
+     * The loaders' parent is the platform loader: nothing DUK loads can
+     * clash with the service's own classpath.
+     *
+     * A WatchService on the directory collects jar changes until it has
+     * been quiet for duk.reload.quietMs (downloads arrive in pieces), then
+     * builds and warms a new generation off the request path. Jars are
+     * copied into a content-addressed snapshot directory first, so a loader
+     * never reads a file that is being overwritten. A generation whose jars
+     * hash the same as the current one is dropped; otherwise it replaces the
+     * current one in a single reference swap. Requests already holding the
+     * old generation finish on it, and the last one out closes its loader.
+     * A build that fails (a half-written jar, a missing class) leaves the old
+     * generation serving and is retried on the next change.
+     *
+     * An Integrator keeps per-document state (output and error file paths),
+     * so instances are used once and never returned; a background thread
+     * builds the replacement off the request path.
+     */
+    static final class DukRegistry {
+        // Key of the shared core-only generation
+        private static final String CORE = "";
+
+        static final class Generation {
+            final String key;
+            final int number;
+            final URLClassLoader loader;
+            final DukApi api;
+            final List<File> jars;
+            final String fingerprint;
+            final String version;
+            final ArrayBlockingQueue<Object> ready;
+            final long loadedAt = System.currentTimeMillis();
+            final AtomicInteger inFlight = new AtomicInteger();
+            final AtomicBoolean closed = new AtomicBoolean();
+            volatile boolean retired;
+            int classes;
+            long warmupMillis;
+
+            Generation(String key, int number, URLClassLoader loader, DukApi api, List<File> jars,
+                       String fingerprint, String version, int poolSize) {
+                this.key = key;
+                this.number = number;
+                this.loader = loader;
+                this.api = api;
+                this.jars = jars;
+                this.fingerprint = fingerprint;
+                this.version = version;
+                this.ready = key.equals(CORE) ? null : new ArrayBlockingQueue<>(poolSize);
+            }
+
+            String label() {
+                return (key.equals(CORE) ? "core" : key) + " #" + number;
+            }
+        }
+
+        /**
+         * One integrator on one generation, with the thread's context class
+         * loader pointed at it; close() restores the context loader and lets
+         * a retired generation drain.
+         */
+        final class Lease implements AutoCloseable {
+            private final Generation generation;
+            private final Object integrator;
+            private final ClassLoader previousContext;
+
+            private Lease(Generation generation, Object integrator, ClassLoader previousContext) {
+                this.generation = generation;
+                this.integrator = integrator;
+                this.previousContext = previousContext;
+            }
+
+            DukApi api() {
+                return generation.api;
+            }
+
+            Object integrator() {
+                return integrator;
+            }
+
+            @Override
+            public void close() {
+                Thread.currentThread().setContextClassLoader(previousContext);
+                release(generation);
+            }
+        }
+
+        private final File dir;
+        private final File snapshotDir;
+        private final int poolSize;
+        private final boolean warmRun;
+        private final Map<String, AtomicReference<Generation>> current = new ConcurrentHashMap<>();
+        private final Set<Generation> draining = ConcurrentHashMap.newKeySet();
+        // Snapshot copies of generations being built, not yet installed (guarded by this)
+        private final Map<File, Integer> building = new HashMap<>();
+        private final AtomicInteger generations = new AtomicInteger();
+        private final AtomicLong prebuilt = new AtomicLong();
+        private final AtomicLong coldBuilt = new AtomicLong();
+        private final AtomicLong reloads = new AtomicLong();
+        private final AtomicLong reloadFailures = new AtomicLong();
+        private volatile Runnable onReload;
+        private final ExecutorService refill = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "duk-refill");
+            t.setDaemon(true);
+            return t;
+        });
+
+        DukRegistry(File dir, File snapshotDir, int poolSize, boolean warmRun) throws IOException {
+            this.dir = dir;
+            this.snapshotDir = snapshotDir;
+            this.poolSize = Math.max(1, poolSize);
+            this.warmRun = warmRun;
+            Files.createDirectories(snapshotDir.toPath());
+            File[] stale = snapshotDir.listFiles();
+            if (stale != null) for (File f : stale) f.delete();
+        }
+
+        /**
+         * The registry both the service and its engine workers build, sized
+         * by -Dduk.pool.size (2) and warmed per -Dduk.warmup (true).
+         */
+        static DukRegistry configured(File dir, File snapshotDir) throws IOException {
+            return new DukRegistry(dir, snapshotDir, Integer.getInteger("duk.pool.size", 2),
+                Boolean.parseBoolean(System.getProperty("duk.warmup", "true")));
+        }
+
+        /** Startup only: every type in -Dduk.types, by default all the supported declarations. */
+        void loadConfiguredTypes() {
+            String types = System.getProperty("duk.types", "D394,D300,D100,D112,D390,D101,D120,D205");
+            for (String type : types.split(",")) {
+                if (!type.isBlank()) load(type.trim());
+            }
+        }
+
+        /** Runs after each generation swap, on the watcher thread. */
+        void onReload(Runnable listener) {
+            this.onReload = listener;
+        }
+
+        /** Startup: the core-only generation; fails when general.Integrator cannot be loaded. */
+        void loadCore() throws Exception {
+            publish(CORE, build(CORE, false));
+        }
+
+        /** Startup only: the type's own generation, warmed; skipped when it has no jars. */
+        void load(String type) {
+            if (typeJars(type).isEmpty()) {
+                System.err.println("[JavaServices]   DUK " + type + ": no type jars, skipped");
+                return;
+            }
+            try {
+                Generation g = build(type, warmRun);
+                publish(type, g);
+                System.out.println("[JavaServices]   DUK " + type + ": " + g.classes +
+                    " classes, " + g.ready.size() + " integrators ready in " + g.warmupMillis +
+                    "ms (" + describe(g) + ")");
+            } catch (Exception | LinkageError e) {
+                System.err.println("[JavaServices]   DUK " + type + ": load failed: " + e.getMessage());
+            }
+        }
+
+        Lease acquire(String type) throws Exception {
+            while (true) {
+                Generation g = currentFor(type);
+                g.inFlight.incrementAndGet();
+                if (g.retired) {
+                    // Swapped out between the lookup and the increment
+                    release(g);
+                    continue;
+                }
+                Thread thread = Thread.currentThread();
+                ClassLoader previous = thread.getContextClassLoader();
+                thread.setContextClassLoader(g.loader);
+                try {
+                    Object integrator = g.ready != null ? g.ready.poll() : null;
+                    if (g.ready != null) refill.execute(() -> topUp(g));
+                    if (integrator != null) {
+                        prebuilt.incrementAndGet();
+                    } else {
+                        coldBuilt.incrementAndGet();
+                        integrator = g.api.create(type);
+                    }
+                    return new Lease(g, integrator, previous);
+                } catch (Exception | Error e) {
+                    thread.setContextClassLoader(previous);
+                    release(g);
+                    throw e;
+                }
+            }
+        }
+
+        private Generation currentFor(String type) throws Exception {
+            AtomicReference<Generation> ref = current.get(type);
+            if (ref != null) return ref.get();
+            if (typeJars(type).isEmpty()) return current.get(CORE).get();
+            synchronized (this) {
+                // A type with jars that was not warmed at startup: load it once, cold
+                ref = current.get(type);
+                if (ref == null) {
+                    publish(type, build(type, false));
+                    ref = current.get(type);
+                }
+            }
+            return ref.get();
+        }
+
+        private void release(Generation g) {
+            if (g.inFlight.decrementAndGet() == 0 && g.retired) close(g);
+        }
+
+        /** Installs a generation from build() and hands its snapshot copies over to it. */
+        private void publish(String key, Generation next) {
+            install(key, next);
+            releaseSnapshots(next.jars);
+        }
+
+        private void install(String key, Generation next) {
+            Generation old = current.computeIfAbsent(key, k -> new AtomicReference<>()).getAndSet(next);
+            if (old != null) retire(old);
+        }
+
+        private void retire(Generation old) {
+            old.retired = true;
+            draining.add(old);
+            if (old.inFlight.get() == 0) close(old);
+        }
+
+        private void close(Generation g) {
+            if (!g.closed.compareAndSet(false, true)) return;
+            draining.remove(g);
+            try {
+                g.loader.close();
+            } catch (IOException e) {
+                System.err.println("[JavaServices] DUK " + g.label() + ": loader close failed: " +
+                    e.getMessage());
+            }
+            sweepSnapshots();
+            if (g.retired) {
+                System.out.println("[JavaServices] DUK " + g.label() + " drained and unloaded");
+            }
+        }
+
+        private Generation build(String key, boolean warm) throws Exception {
+            long start = System.currentTimeMillis();
+            List<File> sources = new ArrayList<>(coreJars());
+            if (sources.stream().noneMatch(f -> f.getName().equals("DUKIntegrator.jar"))) {
+                throw new FileNotFoundException("DUKIntegrator.jar not in " + dir);
+            }
+            List<File> own = key.equals(CORE) ? List.of() : typeJars(key);
+            sources.addAll(own);
+
+            // The copies stay held until the caller publishes or drops the
+            // generation, so a sweep from a draining generation cannot delete them
+            MessageDigest fp = sha256();
+            List<File> jars = new ArrayList<>();
+            URL[] urls = new URL[sources.size()];
+            try {
+                for (int i = 0; i < sources.size(); i++) {
+                    File copy = snapshot(sources.get(i));
+                    jars.add(copy);
+                    fp.update((sources.get(i).getName() + "=" + copy.getName() + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                    urls[i] = copy.toURI().toURL();
+                }
+            } catch (IOException e) {
+                releaseSnapshots(jars);
+                throw e;
+            }
+            int number = generations.incrementAndGet();
+            URLClassLoader loader = new URLClassLoader(
+                "duk-" + (key.equals(CORE) ? "core" : key) + "-" + number, urls,
+                ClassLoader.getPlatformClassLoader());
+            try {
+                DukApi api = new DukApi(loader.loadClass("general.Integrator"));
+                File versionJar = own.isEmpty() ? new File(dir, "DUKIntegrator.jar") : own.get(0);
+                Generation g = new Generation(key, number, loader, api, jars,
+                    HexFormat.of().formatHex(fp.digest()).substring(0, 12),
+                    manifestVersion(jars.get(sources.indexOf(versionJar))), poolSize);
+                for (int i = sources.size() - own.size(); i < jars.size(); i++) {
+                    g.classes += preloadClasses(jars.get(i), loader);
+                }
+                if (g.ready != null) {
+                    ClassLoader previous = Thread.currentThread().getContextClassLoader();
+                    Thread.currentThread().setContextClassLoader(loader);
+                    try {
+                        if (warm) warmParse(g);
+                        while (g.ready.remainingCapacity() > 0) g.ready.add(api.create(key));
+                    } finally {
+                        Thread.currentThread().setContextClassLoader(previous);
+                    }
+                }
+                g.warmupMillis = System.currentTimeMillis() - start;
+                return g;
+            } catch (Exception | LinkageError e) {
+                loader.close();
+                releaseSnapshots(jars);
+                sweepSnapshots();
+                throw e;
+            }
+        }
+
+        /**
+         * Copies jar into the snapshot directory as <sha256 prefix>-<name>,
+         * unless that content is already there, and checks it is a readable
+         * jar. Returns the copy, held against sweeps until
+         * {@link #releaseSnapshots}.
+         */
+        private File snapshot(File jar) throws IOException {
+            byte[] bytes = Files.readAllBytes(jar.toPath());
+            File copy = new File(snapshotDir, sha256Hex(bytes).substring(0, 16) + "-" + jar.getName());
+            synchronized (this) {
+                building.merge(copy, 1, Integer::sum);
+            }
+            try {
+                writeSnapshot(copy, bytes);
+            } catch (IOException e) {
+                releaseSnapshots(List.of(copy));
+                throw e;
+            }
+            return copy;
+        }
+
+        private void writeSnapshot(File copy, byte[] bytes) throws IOException {
+            if (!copy.exists()) {
+                Path tmp = Files.createTempFile(snapshotDir.toPath(), "jar", ".tmp");
+                try {
+                    Files.write(tmp, bytes);
+                    Files.move(tmp, copy.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+            // A half-downloaded jar has no central directory yet
+            try (JarFile jf = new JarFile(copy)) {
+                jf.size();
+            } catch (IOException e) {
+                copy.delete();
+                throw e;
+            }
+        }
+
+        private synchronized void releaseSnapshots(List<File> copies) {
+            for (File f : copies) building.computeIfPresent(f, (k, n) -> n == 1 ? null : n - 1);
+        }
+
+        /** Deletes snapshot copies no open or still-building generation uses. */
+        private synchronized void sweepSnapshots() {
+            Set<File> live = new HashSet<>(building.keySet());
+            for (AtomicReference<Generation> ref : current.values()) {
+                Generation g = ref.get();
+                if (g != null) live.addAll(g.jars);
+            }
+            for (Generation g : draining) live.addAll(g.jars);
+            File[] files = snapshotDir.listFiles((d, n) -> n.endsWith(".jar"));
+            if (files == null) return;
+            for (File f : files) {
+                if (!live.contains(f)) f.delete();
+            }
+        }
+
+        // ── Directory watch ────────────────────────────────────────
+
+        /** Starts the daemon thread that reloads generations when jars change. */
+        void watch(long quietMillis) throws IOException {
+            WatchService watcher = dir.toPath().getFileSystem().newWatchService();
+            dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            Thread t = new Thread(() -> {
+                Set<String> changed = new TreeSet<>();
+                try {
+                    while (true) {
+                        WatchKey key = changed.isEmpty()
+                            ? watcher.take() : watcher.poll(quietMillis, TimeUnit.MILLISECONDS);
+                        if (key == null) {
+                            // Quiet long enough: the writes are done
+                            reload(changed);
+                            changed.clear();
+                            continue;
+                        }
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.context() instanceof Path p && p.toString().endsWith(".jar")) {
+                                changed.add(p.toString());
+                            } else if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                changed.add("DUKIntegrator.jar");
+                            }
+                        }
+                        key.reset();
+                    }
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    // shutting down
+                }
+            }, "duk-watch");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        /** Rebuilds what the changed jars affect: one type, or every generation for a core jar. */
+        private void reload(Set<String> changed) {
+            Set<String> keys = new TreeSet<>();
+            for (String name : changed) {
+                String type = typeOfJar(name);
+                if (type == null) {
+                    keys.addAll(current.keySet());
+                } else {
+                    keys.add(type);
+                }
+            }
+            System.out.println("[JavaServices] DUK jars changed " + changed + ", reloading " +
+                keys.stream().map(k -> k.equals(CORE) ? "core" : k).toList());
+            boolean swapped = false;
+            for (String key : keys) {
+                try {
+                    if (!key.equals(CORE) && typeJars(key).isEmpty()) {
+                        // Type jars removed: the type falls back to the core generation
+                        AtomicReference<Generation> ref = current.remove(key);
+                        if (ref != null && ref.get() != null) retire(ref.get());
+                        System.out.println("[JavaServices] DUK " + key + ": jars removed, using core");
+                        swapped = true;
+                        continue;
+                    }
+                    Generation next = build(key, warmRun && !key.equals(CORE));
+                    AtomicReference<Generation> ref = current.get(key);
+                    Generation cur = ref != null ? ref.get() : null;
+                    if (cur != null && cur.fingerprint.equals(next.fingerprint)) {
+                        next.loader.close();
+                        releaseSnapshots(next.jars);
+                        sweepSnapshots();
+                        continue;
+                    }
+                    System.out.println("[JavaServices] DUK " + next.label() + " live in " +
+                        next.warmupMillis + "ms (" + describe(next) + ")" + (cur == null ? ""
+                            : ", " + cur.label() + " draining " + cur.inFlight.get() + " requests"));
+                    publish(key, next);
+                    reloads.incrementAndGet();
+                    swapped = true;
+                } catch (Exception | LinkageError e) {
+                    reloadFailures.incrementAndGet();
+                    System.err.println("[JavaServices] DUK " + (key.equals(CORE) ? "core" : key) +
+                        " reload failed, keeping the loaded jars: " + e);
+                }
+            }
+            Runnable listener = onReload;
+            if (swapped && listener != null) listener.run();
+        }
+
+        // ── Jars ───────────────────────────────────────────────────
+
+        /** "D394Validator.jar" → "D394"; null for core jars. */
+        static String typeOfJar(String name) {
+            String base = name.endsWith("Validator.jar") ? name.substring(0, name.length() - 13)
+                : name.endsWith("Pdf.jar") ? name.substring(0, name.length() - 7) : null;
+            if (base == null || base.length() < 2 || base.charAt(0) != 'D') return null;
+            for (int i = 1; i < base.length(); i++) {
+                if (!Character.isDigit(base.charAt(i))) return null;
+            }
+            return base;
+        }
+
+        private List<File> coreJars() {
+            File[] files = dir.listFiles((d, n) -> n.endsWith(".jar") && typeOfJar(n) == null);
+            if (files == null) return List.of();
+            Arrays.sort(files);
+            return Arrays.asList(files);
+        }
+
+        private List<File> typeJars(String type) {
+            List<File> jars = new ArrayList<>();
+            for (String suffix : new String[] { "Validator.jar", "Pdf.jar" }) {
+                File f = new File(dir, type + suffix);
+                if (f.isFile()) jars.add(f);
+            }
+            return jars;
+        }
+
+        private static String manifestVersion(File jar) {
+            try (JarFile jf = new JarFile(jar)) {
+                java.util.jar.Manifest m = jf.getManifest();
+                if (m == null) return null;
+                java.util.jar.Attributes a = m.getMainAttributes();
+                String v = a.getValue("Implementation-Version");
+                return v != null ? v : a.getValue("Specification-Version");
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        private static String describe(Generation g) {
+            return (g.version != null ? "version " + g.version + ", " : "") + "jars " + g.fingerprint;
+        }
+
+        // ── Health ─────────────────────────────────────────────────
+
+        /** type → loaded version (manifest version, else jar fingerprint). */
+        String versionsJson() {
+            StringBuilder sb = new StringBuilder("{");
+            for (Map.Entry<String, AtomicReference<Generation>> e : new TreeMap<>(current).entrySet()) {
+                Generation g = e.getValue().get();
+                if (g == null) continue;
+                if (sb.length() > 1) sb.append(',');
+                sb.append(escapeJson(e.getKey().equals(CORE) ? "core" : e.getKey())).append(':')
+                    .append(escapeJson(g.version != null ? g.version : g.fingerprint));
+            }
+            return sb.append('}').toString();
+        }
+
+        String statsJson() {
+            StringBuilder sb = new StringBuilder("{\"prebuilt\":").append(prebuilt.get())
+                .append(",\"coldBuilt\":").append(coldBuilt.get())
+                .append(",\"reloads\":").append(reloads.get())
+                .append(",\"reloadFailures\":").append(reloadFailures.get())
+                .append(",\"draining\":").append(draining.size())
+                .append(",\"types\":{");
+            boolean first = true;
+            for (Map.Entry<String, AtomicReference<Generation>> e : new TreeMap<>(current).entrySet()) {
+                Generation g = e.getValue().get();
+                if (g == null) continue;
+                if (!first) sb.append(',');
+                first = false;
+                sb.append(escapeJson(e.getKey().equals(CORE) ? "core" : e.getKey()))
+                    .append(":{\"version\":").append(escapeJson(g.version))
+                    .append(",\"jars\":").append(escapeJson(g.fingerprint))
+                    .append(",\"generation\":").append(g.number)
+                    .append(",\"loadedAt\":").append(escapeJson(Instant.ofEpochMilli(g.loadedAt).toString()))
+                    .append(",\"inFlight\":").append(g.inFlight.get());
+                if (g.ready != null) {
+                    sb.append(",\"ready\":").append(g.ready.size())
+                        .append(",\"warmupMs\":").append(g.warmupMillis);
+                }
+                sb.append('}');
+            }
+            return sb.append("}}").toString();
+        }
+
+        private void topUp(Generation g) {
+            ClassLoader previous = Thread.currentThread().getContextClassLoader();
+            Thread.currentThread().setContextClassLoader(g.loader);
+            try {
+                while (!g.retired && g.ready.remainingCapacity() > 0) g.ready.offer(g.api.create(g.key));
+            } catch (Exception e) {
+                System.err.println("[JavaServices] DUK " + g.label() + " integrator refill failed: " +
+                    e.getMessage());
+            } finally {
+                Thread.currentThread().setContextClassLoader(previous);
+            }
+        }
+
+        // Loads (without initializing) every class in the jar, so the first
+        // request does not pay for reading and defining them
+        private static int preloadClasses(File jar, ClassLoader loader) {
+            int loaded = 0;
+            try (JarFile jf = new JarFile(jar)) {
+                for (JarEntry entry : Collections.list(jf.entries())) {
+                    String name = entry.getName();
+                    if (!name.endsWith(".class") || name.contains("-")) continue;
+                    try {
+                        Class.forName(name.substring(0, name.length() - 6).replace('/', '.'),
+                            false, loader);
+                        loaded++;
+                    } catch (ClassNotFoundException | LinkageError e) {
+                        // optional dependency missing; the integrator never touches it
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[JavaServices]   DUK: cannot read " + jar + ": " + e.getMessage());
+            }
+            return loaded;
+        }
+
+        // One parse of a placeholder document runs the type's validator once
+        // (static initializers, schema loading); its errors are discarded
+        private static void warmParse(Generation g) {
+            File tmp = new File(System.getProperty("java.io.tmpdir"),
+                "dukwarm_" + UUID.randomUUID() + ".xml");
+            try {
+                Files.writeString(tmp.toPath(), "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                    "<declaratie" + g.key.replaceAll("\\D", "") + "/>\n");
+                Object integrator = g.api.create(g.key);
+                g.api.parseDocument(integrator, tmp.getAbsolutePath(), g.key);
+                for (String f : new String[] { g.api.parseErrorFile(integrator), g.api.logFile(integrator) }) {
+                    if (f != null && !f.isEmpty()) new File(f).delete();
+                }
+            } catch (Exception | LinkageError e) {
+                System.err.println("[JavaServices]   DUK " + g.key + ": warm-up parse failed: " +
+                    e.getMessage());
+            } finally {
+                tmp.delete();
+                new File(tmp.getPath() + ".err.txt").delete();
+            }
+        }
+    }
+
+    /**
+     * Compiled XSD per ANAF declaration type, loaded once from
+     * resources/declarations. The type is the file name's d<number> prefix
+     * upper-cased (d112_10102024.xsd → D112). Two schemas ship with an .xml
+     * extension, so any .xsd or .xml file whose root is xs:schema counts.
+     *
+     * /duk/validate runs a document through its type's schema before
+     * DUKIntegrator and answers with the schema errors, line and column
+     * included, when there are any; only schema-valid documents pay for
+     * temp files and parseDocument. Types without a schema go to DUK as
+     * before. The DUK time a rejection saves is estimated from the mean
+     * parseDocument time seen for that type.
+     */
+    static final class DeclarationSchemas {
+        private static final String XSD_NS = "http://www.w3.org/2001/XMLSchema";
+        private static final int MAX_ERRORS = 50;
+
+        private static final class TypeStats {
+            final LongAdder checked = new LongAdder();
+            final LongAdder rejected = new LongAdder();
+            final LongAdder skipped = new LongAdder();
+            final LongAdder xsdNanos = new LongAdder();
+            final LongAdder dukCalls = new LongAdder();
+            final LongAdder dukNanos = new LongAdder();
+        }
+
+        private final Map<String, Schema> schemas;
+        // Type → the schema's targetNamespace ("" when it has none)
+        private final Map<String, String> namespaces;
+        private final Map<String, TypeStats> stats = new ConcurrentHashMap<>();
+        private final long loadMillis;
+
+        private DeclarationSchemas(Map<String, Schema> schemas, Map<String, String> namespaces,
+                                   long loadMillis) {
+            this.schemas = schemas;
+            this.namespaces = namespaces;
+            this.loadMillis = loadMillis;
+        }
+
+        static DeclarationSchemas load(File dir) {
+            long start = System.currentTimeMillis();
+            Map<String, Schema> schemas = new TreeMap<>();
+            Map<String, String> namespaces = new TreeMap<>();
+            File[] files = dir.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                SchemaFactory factory = SchemaFactory.newInstance(XSD_NS);
+                for (File f : files) {
+                    String type = typeOf(f.getName());
+                    if (type == null) continue;
+                    try {
+                        String targetNamespace = targetNamespace(Files.readAllBytes(f.toPath()));
+                        if (targetNamespace == null) continue;
+                        if (schemas.put(type, factory.newSchema(f)) != null) {
+                            System.err.println("[JavaServices]   DUK XSD " + type +
+                                ": several schemas, using " + f.getName());
+                        }
+                        namespaces.put(type, targetNamespace);
+                    } catch (Exception e) {
+                        System.err.println("[JavaServices]   DUK XSD " + f.getName() +
+                            " failed to load: " + e.getMessage());
+                    }
+                }
+            }
+            return new DeclarationSchemas(Collections.unmodifiableMap(schemas),
+                Collections.unmodifiableMap(namespaces), System.currentTimeMillis() - start);
+        }
+
+        /** The targetNamespace of an xs:schema document ("" if absent); null for anything else. */
+        private static String targetNamespace(byte[] xsd) {
+            XMLStreamReader r = null;
+            try {
+                r = STAX_FACTORY.createXMLStreamReader(new ByteArrayInputStream(xsd));
+                while (r.hasNext()) {
+                    if (r.next() == XMLStreamConstants.START_ELEMENT) {
+                        if (!XSD_NS.equals(r.getNamespaceURI()) || !"schema".equals(r.getLocalName())) {
+                            return null;
+                        }
+                        String ns = r.getAttributeValue(null, "targetNamespace");
+                        return ns != null ? ns : "";
+                    }
+                }
+            } catch (XMLStreamException e) {
+                // not a schema
+            } finally {
+                if (r != null) {
+                    try { r.close(); } catch (XMLStreamException ignored) { }
+                }
+            }
+            return null;
+        }
+
+        /** "d394_20250917.xml" → "D394"; null when the name has no d<number> prefix. */
+        static String typeOf(String fileName) {
+            String name = fileName.toLowerCase();
+            if (!name.endsWith(".xsd") && !name.endsWith(".xml")) return null;
+            int i = 1;
+            while (i < name.length() && Character.isDigit(name.charAt(i))) i++;
+            return name.charAt(0) == 'd' && i > 1 ? "D" + name.substring(1, i) : null;
+        }
+
+        Set<String> types() {
+            return schemas.keySet();
+        }
+
+        long loadMillis() {
+            return loadMillis;
+        }
+
+        /**
+         * Whether type's schema applies to xml: its root element must be in
+         * the schema's targetNamespace. DUK also accepts older and newer
+         * versions of a form, and its jars can be updated at runtime while
+         * these schemas stay as loaded; such documents skip pre-validation
+         * and go straight to DUK (counted as skipped). A root that cannot be
+         * read is left to the schema, which reports the parse error.
+         */
+        boolean covers(String type, byte[] xml) {
+            String ns = namespaces.get(type);
+            if (ns == null) return false;
+            QName root = peekRootElement(xml);
+            if (root == null || ns.equals(root.getNamespaceURI())) return true;
+            stats(type).skipped.increment();
+            return false;
+        }
+
+        /**
+         * Schema errors for xml as "Line L, column C: message", at most
+         * MAX_ERRORS; empty when the document is valid or the type has no
+         * schema. A document that is not well-formed yields its one fatal
+         * error.
+         */
+        List<String> validate(String type, byte[] xml) {
+            Schema schema = schemas.get(type);
+            if (schema == null) return List.of();
+            long start = System.nanoTime();
+            List<String> errors = new ArrayList<>();
+            org.xml.sax.ErrorHandler collect = new org.xml.sax.helpers.DefaultHandler() {
+                @Override
+                public void error(org.xml.sax.SAXParseException e) throws org.xml.sax.SAXException {
+                    errors.add(located(e));
+                    if (errors.size() >= MAX_ERRORS) throw e;
+                }
+
+                @Override
+                public void fatalError(org.xml.sax.SAXParseException e) throws org.xml.sax.SAXException {
+                    throw e;
+                }
+            };
+            try {
+                Validator v = schema.newValidator();
+                v.setProperty(javax.xml.XMLConstants.ACCESS_EXTERNAL_DTD, "");
+                v.setProperty(javax.xml.XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+                v.setErrorHandler(collect);
+                v.validate(new StreamSource(new ByteArrayInputStream(xml)));
+            } catch (org.xml.sax.SAXParseException e) {
+                if (errors.isEmpty() || !errors.get(errors.size() - 1).equals(located(e))) {
+                    errors.add(located(e));
+                }
+            } catch (Exception e) {
+                errors.add("XSD error: " + e.getMessage());
+            }
+            TypeStats s = stats(type);
+            s.checked.increment();
+            if (!errors.isEmpty()) s.rejected.increment();
+            s.xsdNanos.add(System.nanoTime() - start);
+            return errors;
+        }
+
+        /** One parseDocument call for type, for the saved-time estimate. */
+        void dukCall(String type, long nanos) {
+            if (!schemas.containsKey(type)) return;
+            TypeStats s = stats(type);
+            s.dukCalls.increment();
+            s.dukNanos.add(nanos);
+        }
+
+        private TypeStats stats(String type) {
+            return stats.computeIfAbsent(type, t -> new TypeStats());
+        }
+
+        private static String located(org.xml.sax.SAXParseException e) {
+            return "Line " + e.getLineNumber() + ", column " + e.getColumnNumber() + ": " +
+                e.getMessage();
+        }
+
+        String statsJson() {
+            long checked = 0;
+            long rejected = 0;
+            long skipped = 0;
+            long xsdNanos = 0;
+            double savedNanos = 0;
+            // Types never seen passing to DUK borrow the overall mean
+            long allCalls = 0;
+            long allNanos = 0;
+            for (TypeStats s : stats.values()) {
+                allCalls += s.dukCalls.sum();
+                allNanos += s.dukNanos.sum();
+            }
+            double overallMean = allCalls == 0 ? 0 : (double) allNanos / allCalls;
+            StringBuilder perType = new StringBuilder("{");
+            for (Map.Entry<String, TypeStats> e : new TreeMap<>(stats).entrySet()) {
+                TypeStats s = e.getValue();
+                long calls = s.dukCalls.sum();
+                double mean = calls == 0 ? overallMean : (double) s.dukNanos.sum() / calls;
+                long r = s.rejected.sum();
+                checked += s.checked.sum();
+                rejected += r;
+                skipped += s.skipped.sum();
+                xsdNanos += s.xsdNanos.sum();
+                savedNanos += r * mean;
+                if (perType.length() > 1) perType.append(',');
+                perType.append(escapeJson(e.getKey()))
+                    .append(":{\"checked\":").append(s.checked.sum())
+                    .append(",\"rejected\":").append(r)
+                    .append(",\"skipped\":").append(s.skipped.sum())
+                    .append(",\"dukMeanMs\":").append(Math.round(mean / 1_000_000))
+                    .append('}');
+            }
+            return "{\"schemas\":" + schemas.size() +
+                ",\"loadMs\":" + loadMillis +
+                ",\"checked\":" + checked +
+                ",\"rejected\":" + rejected +
+                ",\"skipped\":" + skipped +
+                ",\"xsdMs\":" + xsdNanos / 1_000_000 +
+                ",\"dukMsSaved\":" + Math.round(savedNanos / 1_000_000) +
+                ",\"types\":" + perType.append('}') + "}";
+        }
+    }
+
+    // ═════════════════════════════════════════════════════════════════
+    // Engine workers — GenFactura and DUK in supervised child JVMs
+    // ═════════════════════════════════════════════════════════════════
+
+    /**
+     * The calls into GenFactura and DUKIntegrator, which keep state on the
+     * instance (getError(), output file names) and in statics (the DUK
+     * config path). With -Dworkers.count=N each call runs in one of N child
+     * JVMs, one call per child at a time; otherwise in this JVM, as before.
+     * Either way the caller writes the input to the shared tmpdir and gets
+     * back the paths the engine wrote to, so only a few strings cross the
+     * pipe.
+     */
+    static final class Engines {
+        static final byte GENFACTURA_PDF = 1;
+        static final byte DUK_PARSE = 2;
+        static final byte DUK_PDF = 3;
+        static final byte SHUTDOWN = 9;
+
+        static final byte OK = 0;
+        static final byte FAILED = 1;
+        static final byte READY = 2;
+
+        private static final int MAX_FRAME = 1024 * 1024;
+
+        /** type / typeError come from identificaDeclaratie, pdfPath / pdfError from generarePDF. */
+        record GenFacturaRun(String type, String typeError, String pdfPath, String pdfError) {}
+
+        /** DUK return code and the files it reported; pdfPath is null for a parse. */
+        record DukRun(int result, String pdfPath, String logPath, String errPath) {}
+
+        /**
+         * One message in either direction, length-prefixed:
+         * int length | byte kind | int code | long heapUsed | short count |
+         * count × (int byteLength, -1 for null | UTF-8 bytes).
+         * Requests carry the operation in kind; replies OK, FAILED or READY.
+         */
+        record Frame(byte kind, int code, long heapUsed, String... values) {
+            void write(DataOutputStream out) throws IOException {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+                DataOutputStream d = new DataOutputStream(buf);
+                d.writeByte(kind);
+                d.writeInt(code);
+                d.writeLong(heapUsed);
+                d.writeShort(values.length);
+                for (String v : values) {
+                    if (v == null) {
+                        d.writeInt(-1);
+                    } else {
+                        byte[] b = v.getBytes(StandardCharsets.UTF_8);
+                        d.writeInt(b.length);
+                        d.write(b);
                     }
                 }
+                out.writeInt(buf.size());
+                buf.writeTo(out);
+                out.flush();
+            }
+
+            static Frame read(DataInputStream in) throws IOException {
+                int length = in.readInt();
+                if (length < 15 || length > MAX_FRAME) throw new IOException("Bad frame length " + length);
+                byte[] b = new byte[length];
+                in.readFully(b);
+                DataInputStream d = new DataInputStream(new ByteArrayInputStream(b));
+                byte kind = d.readByte();
+                int code = d.readInt();
+                long heapUsed = d.readLong();
+                String[] values = new String[d.readUnsignedShort()];
+                for (int i = 0; i < values.length; i++) {
+                    int n = d.readInt();
+                    if (n >= 0) values[i] = new String(d.readNBytes(n), StandardCharsets.UTF_8);
+                }
+                return new Frame(kind, code, heapUsed, values);
+            }
+        }
+
+        static GenFacturaRun genFactura(String xmlPath) throws Exception {
+            if (workerPool == null) return genFacturaLocal(xmlPath);
+            String[] v = workerPool.call(GENFACTURA_PDF, xmlPath).values();
+            return new GenFacturaRun(v[0], v[1], v[2], v[3]);
+        }
+
+        static DukRun dukParse(String type, String xmlPath) throws Exception {
+            if (workerPool == null) return dukParseLocal(type, xmlPath);
+            Frame r = workerPool.call(DUK_PARSE, type, xmlPath);
+            return new DukRun(r.code(), null, r.values()[0], r.values()[1]);
+        }
+
+        static DukRun dukPdf(String type, String xmlPath, String pdfPath) throws Exception {
+            if (workerPool == null) return dukPdfLocal(type, xmlPath, pdfPath);
+            Frame r = workerPool.call(DUK_PDF, type, xmlPath, pdfPath);
+            return new DukRun(r.code(), r.values()[0], r.values()[1], r.values()[2]);
+        }
+
+        private static GenFacturaRun genFacturaLocal(String xmlPath) throws Exception {
+            GenFactura gen = new GenFactura();
+            String type = gen.identificaDeclaratie(xmlPath);
+            String error = gen.getError();
+            if ((error != null && !error.isEmpty()) || type == null || type.isEmpty()) {
+                return new GenFacturaRun(type, error, null, null);
+            }
+            String pdfPath = onCpu(() -> gen.generarePDF(xmlPath, type));
+            return new GenFacturaRun(type, null, pdfPath, gen.getError());
+        }
+
+        // Pre-built general.Integrator from the type's current jars, type and
+        // config path already set. parseDocument(xmlPath, type) returns
+        // int: 0=success, >0=errors
+        private static DukRun dukParseLocal(String type, String xmlPath) throws Exception {
+            try (DukRegistry.Lease lease = dukRegistry.acquire(type)) {
+                Object integrator = lease.integrator();
+                int result = lease.api().parseDocument(integrator, xmlPath, type);
+                return new DukRun(result, null, lease.api().logFile(integrator),
+                    lease.api().parseErrorFile(integrator));
+            }
+        }
+
+        private static DukRun dukPdfLocal(String type, String xmlPath, String pdfPath) throws Exception {
+            try (DukRegistry.Lease lease = dukRegistry.acquire(type)) {
+                Object integrator = lease.integrator();
+
+                // Don't sign the PDF (we sign separately with USB cert)
+                lease.api().setNoCertificate(integrator);
+
+                // pdfCreation(xmlPath, type, zipFile, pdfOutputPath) returns int: 0=success
+                // null zipFile = no zip, null pdfOutputPath = auto from XML (.xml→.pdf)
+                int result = lease.api().pdfCreation(integrator, xmlPath, type, null, pdfPath);
+                return new DukRun(result, lease.api().pdfFile(integrator),
+                    lease.api().logFile(integrator), lease.api().parseErrorFile(integrator));
+            }
+        }
+
+        // ── Child side ─────────────────────────────────────────────
+
+        /**
+         * Entry point of a worker JVM (JavaServiceServer --worker): loads
+         * GenFactura and the DUK types, answers READY, then runs one request
+         * at a time until told to shut down or stdin closes (parent gone).
+         * stdout carries the frames, so everything the engines print goes to
+         * stderr, which the parent inherits.
+         */
+        static void serve() throws IOException {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+            System.setOut(System.err);
+            String name = "[JavaServices] worker " + ProcessHandle.current().pid();
+            long maxHeapBytes = Long.getLong("worker.maxHeapBytes", Long.MAX_VALUE);
+
+            try {
+                new GenFactura();
+                pdfReady = true;
+            } catch (Exception | LinkageError e) {
+                System.err.println(name + ": GenFactura load failed: " + e.getMessage());
+            }
+            dukDir = System.getProperty("duk.dir", "");
+            if (!dukDir.isEmpty()) {
+                try {
+                    dukRegistry = DukRegistry.configured(new File(dukDir),
+                        new File(System.getProperty("duk.snapshot.dir")));
+                    dukRegistry.loadCore();
+                    dukReady = true;
+                    dukRegistry.loadConfiguredTypes();
+                } catch (Exception | LinkageError e) {
+                    System.err.println(name + ": DUKIntegrator load failed: " + e.getMessage());
+                }
+            }
+            new Frame(READY, 0, heapUsed(maxHeapBytes),
+                String.valueOf(pdfReady), String.valueOf(dukReady)).write(out);
+
+            while (true) {
+                Frame request;
+                try {
+                    request = Frame.read(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (request.kind() == SHUTDOWN) break;
+                Frame reply;
+                try {
+                    reply = run(request, maxHeapBytes);
+                } catch (Exception | LinkageError e) {
+                    reply = new Frame(FAILED, 0, heapUsed(maxHeapBytes),
+                        e.getMessage() != null ? e.getMessage() : e.toString());
+                }
+                reply.write(out);
+            }
+            System.exit(0);
+        }
+
+        private static Frame run(Frame request, long maxHeapBytes) throws Exception {
+            String[] a = request.values();
+            switch (request.kind()) {
+                case GENFACTURA_PDF -> {
+                    GenFacturaRun r = genFacturaLocal(a[0]);
+                    return new Frame(OK, 0, heapUsed(maxHeapBytes),
+                        r.type(), r.typeError(), r.pdfPath(), r.pdfError());
+                }
+                case DUK_PARSE -> {
+                    DukRun r = dukParseLocal(a[0], a[1]);
+                    return new Frame(OK, r.result(), heapUsed(maxHeapBytes), r.logPath(), r.errPath());
+                }
+                case DUK_PDF -> {
+                    DukRun r = dukPdfLocal(a[0], a[1], a[2]);
+                    return new Frame(OK, r.result(), heapUsed(maxHeapBytes),
+                        r.pdfPath(), r.logPath(), r.errPath());
+                }
+                default -> throw new IOException("Unknown operation " + request.kind());
+            }
+        }
+
+        // Live heap after the call; collected first when it looks over the
+        // limit, so garbage from one large document does not recycle a worker
+        private static long heapUsed(long maxHeapBytes) {
+            Runtime rt = Runtime.getRuntime();
+            long used = rt.totalMemory() - rt.freeMemory();
+            if (used > maxHeapBytes) {
+                System.gc();
+                used = rt.totalMemory() - rt.freeMemory();
+            }
+            return used;
+        }
+    }
+
+    /**
+     * Supervises the worker JVMs. Idle workers wait in a queue and a call
+     * takes whichever has been idle longest, so work spreads across them;
+     * a call that finds none idle waits up to workers.timeoutMs. A worker
+     * is replaced after workers.maxJobs calls, when its live heap passes
+     * workers.maxHeapMb, after the DUK jars were reloaded, and when it dies
+     * or runs past workers.timeoutMs (it is killed; that call fails, the
+     * others are untouched). A replacement is started only once the worker
+     * it replaces has exited, since both would use the slot's DUK snapshot
+     * directory.
+     */
+    static final class WorkerPool {
+        final class Worker {
+            final int slot;
+            final Process process;
+            final DataInputStream in;
+            final DataOutputStream out;
+            final int epoch;
+            final long startedAt = System.currentTimeMillis();
+            volatile int jobs;
+            volatile long heapUsed;
+            volatile boolean timedOut;
+
+            Worker(int slot, Process process, int epoch) {
+                this.slot = slot;
+                this.process = process;
+                this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+                this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+                this.epoch = epoch;
+            }
+
+            long pid() {
+                return process.pid();
+            }
+        }
+
+        private final int size;
+        private final int heapMb;
+        private final int maxJobs;
+        private final long maxHeapBytes;
+        private final long timeoutMillis;
+        private final File snapshotBase;
+        private final BlockingQueue<Worker> idle;
+        private final Map<Integer, Worker> live = new ConcurrentHashMap<>();
+        private final AtomicInteger epoch = new AtomicInteger();
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong started = new AtomicLong();
+        private final AtomicLong recycledJobs = new AtomicLong();
+        private final AtomicLong recycledHeap = new AtomicLong();
+        private final AtomicLong recycledReload = new AtomicLong();
+        private final AtomicLong crashes = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final ExecutorService spawner = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "worker-spawn");
+            t.setDaemon(true);
+            return t;
+        });
+        private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "worker-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+
+        WorkerPool(int size, int heapMb, int maxJobs, long maxHeapBytes, long timeoutMillis) {
+            this.size = size;
+            this.heapMb = heapMb;
+            this.maxJobs = maxJobs;
+            this.maxHeapBytes = maxHeapBytes;
+            this.timeoutMillis = timeoutMillis;
+            this.snapshotBase = new File(System.getProperty("java.io.tmpdir"), "javaservices-worker");
+            this.idle = new ArrayBlockingQueue<>(size);
+        }
+
+        /** Starts every worker in the background; calls wait until one is ready. */
+        void start() {
+            for (int slot = 0; slot < size; slot++) {
+                int s = slot;
+                spawner.execute(() -> spawn(s));
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                for (Worker w : live.values()) w.process.destroy();
+            }, "worker-shutdown"));
+        }
+
+        int size() {
+            return size;
+        }
+
+        Engines.Frame call(byte op, String... args) throws IOException, InterruptedException {
+            Worker w = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (w == null) {
+                failures.incrementAndGet();
+                throw new IOException("No engine worker free within " + timeoutMillis + "ms");
+            }
+            calls.incrementAndGet();
+            ScheduledFuture<?> kill = watchdog.schedule(() -> {
+                w.timedOut = true;
+                w.process.destroyForcibly();
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            Engines.Frame reply;
+            try {
+                new Engines.Frame(op, 0, 0, args).write(w.out);
+                reply = Engines.Frame.read(w.in);
+            } catch (IOException e) {
+                kill.cancel(false);
+                failures.incrementAndGet();
+                lost(w);
+                throw new IOException("Engine worker " + w.pid() + (w.timedOut
+                    ? " killed after " + timeoutMillis + "ms" : " died") + " during the call");
+            }
+            kill.cancel(false);
+            w.jobs++;
+            w.heapUsed = reply.heapUsed();
+            release(w);
+            if (reply.kind() == Engines.FAILED) {
+                failures.incrementAndGet();
+                throw new IOException(reply.values()[0]);
+            }
+            return reply;
+        }
+
+        /** DUK jars changed: every worker is replaced once it is idle. */
+        void recycleAll() {
+            epoch.incrementAndGet();
+            List<Worker> drained = new ArrayList<>();
+            idle.drainTo(drained);
+            for (Worker w : drained) retire(w, recycledReload, "DUK jars reloaded");
+        }
+
+        private void release(Worker w) {
+            if (w.epoch != epoch.get()) {
+                retire(w, recycledReload, "DUK jars reloaded");
+            } else if (w.jobs >= maxJobs) {
+                retire(w, recycledJobs, w.jobs + " jobs");
+            } else if (w.heapUsed > maxHeapBytes) {
+                retire(w, recycledHeap, "heap " + (w.heapUsed >> 20) + " MiB");
+            } else {
+                idle.offer(w);
+            }
+        }
+
+        private void retire(Worker w, AtomicLong counter, String reason) {
+            counter.incrementAndGet();
+            live.remove(w.slot, w);
+            System.out.println("[JavaServices] Engine worker " + w.pid() + " recycled (" + reason + ")");
+            spawner.execute(() -> {
+                try {
+                    new Engines.Frame(Engines.SHUTDOWN, 0, 0).write(w.out);
+                    if (!w.process.waitFor(10, TimeUnit.SECONDS)) w.process.destroyForcibly().waitFor();
+                } catch (IOException e) {
+                    w.process.destroyForcibly();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                spawn(w.slot);
+            });
+        }
+
+        private void lost(Worker w) {
+            if (!live.remove(w.slot, w)) return;
+            (w.timedOut ? timeouts : crashes).incrementAndGet();
+            w.process.destroyForcibly();
+            System.err.println("[JavaServices] Engine worker " + w.pid() + (w.timedOut
+                ? " timed out" : " exited") + " after " + w.jobs + " jobs, replacing it");
+            spawner.execute(() -> {
+                try {
+                    w.process.waitFor();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                spawn(w.slot);
+            });
+        }
+
+        private void spawn(int slot) {
+            long start = System.currentTimeMillis();
+            Process process = null;
+            try {
+                process = new ProcessBuilder(command(slot))
+                    .directory(new File(System.getProperty("user.dir")))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+                Worker w = new Worker(slot, process, epoch.get());
+                // A worker that never answers READY is killed; the read then fails
+                Process p = process;
+                ScheduledFuture<?> kill = watchdog.schedule(() -> p.destroyForcibly(),
+                    Math.max(timeoutMillis, 120_000), TimeUnit.MILLISECONDS);
+                Engines.Frame ready = Engines.Frame.read(w.in);
+                kill.cancel(false);
+                if (ready.kind() != Engines.READY) throw new IOException("unexpected first frame");
+                started.incrementAndGet();
+                w.heapUsed = ready.heapUsed();
+                live.put(slot, w);
+                process.onExit().thenRun(() -> {
+                    // Died while idle: nobody else will notice
+                    if (idle.remove(w)) lost(w);
+                });
+                idle.offer(w);
+                System.out.println("[JavaServices] Engine worker " + slot + " (pid " + w.pid() +
+                    ") ready in " + (System.currentTimeMillis() - start) + "ms (genfactura " +
+                    ready.values()[0] + ", duk " + ready.values()[1] + ")");
+            } catch (IOException e) {
+                if (process != null) process.destroyForcibly();
+                System.err.println("[JavaServices] Engine worker " + slot +
+                    " failed to start, retrying in 5s: " + e.getMessage());
+                watchdog.schedule(() -> spawner.execute(() -> spawn(slot)), 5, TimeUnit.SECONDS);
+            }
+        }
+
+        // Same java, JVM flags and classpath as this process (so the same CDS
+        // archive), minus the heap size, debugger agent and a CDS dump
+        // (build-cds.sh), which are this JVM's own
+        private List<String> command(int slot) {
+            List<String> cmd = new ArrayList<>();
+            cmd.add(ProcessHandle.current().info().command()
+                .orElse(new File(System.getProperty("java.home"), "bin/java").getPath()));
+            for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if (arg.startsWith("-Xmx") || arg.startsWith("-Xms") || arg.startsWith("-agentlib:jdwp")
+                        || arg.startsWith("-XX:ArchiveClassesAtExit=")
+                        || arg.startsWith("-Dduk.snapshot.dir=") || arg.startsWith("-Dduk.dir=")) {
+                    continue;
+                }
+                cmd.add(arg);
+            }
+            cmd.add("-Xmx" + heapMb + "m");
+            cmd.add("-Dworker.maxHeapBytes=" + maxHeapBytes);
+            if (dukReady) {
+                cmd.add("-Dduk.dir=" + dukDir);
+                cmd.add("-Dduk.snapshot.dir=" + new File(snapshotBase, "duk-" + slot));
+            }
+            cmd.add("-cp");
+            cmd.add(System.getProperty("java.class.path"));
+            cmd.add("JavaServiceServer");
+            cmd.add("--worker");
+            return cmd;
+        }
+
+        String statsJson() {
+            StringBuilder sb = new StringBuilder("{\"size\":").append(size)
+                .append(",\"live\":").append(live.size())
+                .append(",\"idle\":").append(idle.size())
+                .append(",\"calls\":").append(calls.get())
+                .append(",\"failures\":").append(failures.get())
+                .append(",\"started\":").append(started.get())
+                .append(",\"recycled\":{\"jobs\":").append(recycledJobs.get())
+                .append(",\"heap\":").append(recycledHeap.get())
+                .append(",\"reload\":").append(recycledReload.get())
+                .append("},\"crashes\":").append(crashes.get())
+                .append(",\"timeouts\":").append(timeouts.get())
+                .append(",\"workers\":[");
+            boolean first = true;
+            for (Worker w : new TreeMap<>(live).values()) {
+                if (!first) sb.append(',');
+                first = false;
+                sb.append("{\"slot\":").append(w.slot)
+                    .append(",\"pid\":").append(w.pid())
+                    .append(",\"jobs\":").append(w.jobs)
+                    .append(",\"heapMb\":").append(w.heapUsed >> 20)
+                    .append(",\"uptimeS\":").append((System.currentTimeMillis() - w.startedAt) / 1000)
+                    .append('}');
+            }
+            return sb.append("]}").toString();
+        }
+    }
+
+    // ═════════════════════════════════════════════════════════════════
+    // Helpers
+    // ═════════════════════════════════════════════════════════════════
+
+    record ErrorEntry(String message, String source, String ruleId, String location) {
+        String toJson() {
+            try (JsonWriter w = new JsonWriter()) {
+                writeJson(w);
+                return w.toString();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);  // in-memory writer, cannot happen
+            }
+        }
+
+        void writeJson(JsonWriter w) throws IOException {
+            w.beginObject();
+            w.name("message").value(message);
+            w.name("source").value(source);
+            if (ruleId != null) w.name("ruleId").value(ruleId);
+            if (location != null) w.name("location").value(location);
+            w.endObject();
+        }
+    }
+
+    /**
+     * Streaming JSON writer. Strings are escaped and UTF-8 encoded in a
+     * single pass straight into a byte buffer, so an error list of any
+     * length costs no intermediate Strings. Buffers are borrowed from a small
+     * pool shared by all threads (-Djson.buffers, default two per core)
+     * rather than a per-thread one, which would never be reused under
+     * executor.mode=virtual where every request gets a new thread; when the
+     * pool is empty the writer allocates its own and close() keeps it only
+     * if there is room. toBytes() / toString() must be called before close().
+     *
+     * Built with an HttpExchange it becomes the response body: a document
+     * that fits in the buffer goes out with Content-Length on close, a
+     * larger one opens the response chunked (gzipped when accepted) at the
+     * first overflow and streams from there. Built with an OutputStream it
+     * flushes there whenever the buffer fills. Built with neither it grows
+     * in memory and {@link #toBytes()} / {@link #toString()} return the
+     * result.
+     *
+     * Commas are tracked by the writer; names and values are written in
+     * document order. Control characters are escaped as \\uXXXX (with the
+     * short forms for \\b \\f \\n \\r \\t), supplementary characters are
+     * encoded as four-byte UTF-8 and lone surrogates, which have no UTF-8
+     * form, are escaped rather than replaced by '?'.
+     */
+    static final class JsonWriter implements Closeable {
+        private static final int BUFFER_SIZE = 16384;
+        private static final BlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<>(
+            Math.max(1, Integer.getInteger("json.buffers",
+                2 * Runtime.getRuntime().availableProcessors())));
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        private final HttpExchange ex;
+        private final int code;
+        private final byte[] pooled;
+        private OutputStream out;
+        private byte[] buf;
+        private int pos;
+        private boolean comma;
+        private boolean closed;
+
+        /** In-memory writer. */
+        JsonWriter() {
+            this(null, 0, null);
+        }
+
+        /** Writer for the response body of ex, sent with status code. */
+        JsonWriter(HttpExchange ex, int code) {
+            this(ex, code, null);
+        }
+
+        /** Writer onto out, which is closed with the writer. */
+        JsonWriter(OutputStream out) {
+            this(null, 0, Objects.requireNonNull(out));
+        }
+
+        private JsonWriter(HttpExchange ex, int code, OutputStream out) {
+            this.ex = ex;
+            this.code = code;
+            this.out = out;
+            byte[] b = BUFFERS.poll();
+            if (b == null) b = new byte[BUFFER_SIZE];
+            pooled = b;
+            buf = b;
+        }
+
+        JsonWriter beginObject() throws IOException {
+            separate();
+            put((byte) '{');
+            comma = false;
+            return this;
+        }
+
+        JsonWriter endObject() throws IOException {
+            put((byte) '}');
+            comma = true;
+            return this;
+        }
+
+        JsonWriter beginArray() throws IOException {
+            separate();
+            put((byte) '[');
+            comma = false;
+            return this;
+        }
+
+        JsonWriter endArray() throws IOException {
+            put((byte) ']');
+            comma = true;
+            return this;
+        }
+
+        JsonWriter name(String name) throws IOException {
+            separate();
+            string(name);
+            put((byte) ':');
+            comma = false;
+            return this;
+        }
+
+        JsonWriter value(String s) throws IOException {
+            separate();
+            if (s == null) ascii("null");
+            else string(s);
+            comma = true;
+            return this;
+        }
+
+        JsonWriter value(long v) throws IOException {
+            separate();
+            if (v == Long.MIN_VALUE) {
+                ascii(Long.toString(v));
+            } else {
+                if (buf.length - pos < 20) spill();
+                if (v < 0) {
+                    buf[pos++] = '-';
+                    v = -v;
+                }
+                int start = pos;
+                do {
+                    buf[pos++] = (byte) ('0' + v % 10);
+                    v /= 10;
+                } while (v > 0);
+                for (int i = start, j = pos - 1; i < j; i++, j--) {
+                    byte t = buf[i];
+                    buf[i] = buf[j];
+                    buf[j] = t;
+                }
+            }
+            comma = true;
+            return this;
+        }
 
-                // If DUK says invalid but no errors captured, add a generic one
-                if (!valid && errors.isEmpty()) {
-                    errors.add("DUK validation failed for type " + type + " (code: " + result + ")");
+        JsonWriter value(boolean v) throws IOException {
+            separate();
+            ascii(v ? "true" : "false");
+            comma = true;
+            return this;
+        }
+
+        byte[] toBytes() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        @Override
+        public String toString() {
+            return new String(buf, 0, pos, StandardCharsets.UTF_8);
+        }
+
+        /** Sends what is buffered (or ends the chunked stream) and offers the buffer back to the pool. */
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                if (ex != null && out == null) out = openResponse(ex, code, "application/json", pos);
+                if (out != null) {
+                    out.write(buf, 0, pos);
+                    out.close();
                 }
+            } finally {
+                buf = null;
+                BUFFERS.offer(pooled);
+            }
+        }
 
-                System.out.println("[JavaServices] DUK validate #" + reqId + " " +
-                    elapsed + "ms — " + type + " " + (valid ? "VALID" : "INVALID") +
-                    " (" + errors.size() + " errors, " + warnings.size() + " warnings)");
+        private void separate() throws IOException {
+            if (comma) put((byte) ',');
+        }
+
+        private void ascii(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) put((byte) s.charAt(i));
+        }
+
+        private void put(byte b) throws IOException {
+            if (pos == buf.length) spill();
+            buf[pos++] = b;
+        }
 
-                StringBuilder json = new StringBuilder();
-                json.append("{\"valid\":").append(valid && errors.isEmpty());
-                json.append(",\"elapsed_ms\":").append(elapsed);
-                json.append(",\"errors\":[");
-                for (int i = 0; i < errors.size(); i++) {
-                    if (i > 0) json.append(",");
-                    json.append(escapeJson(errors.get(i)));
+        private void string(String s) throws IOException {
+            put((byte) '"');
+            int n = s.length();
+            for (int i = 0; i < n; i++) {
+                if (buf.length - pos < 12) spill();
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    if (c >= 0x20 && c != '"' && c != '\\') {
+                        buf[pos++] = (byte) c;
+                    } else {
+                        escape(c);
+                    }
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xC0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    char low = i + 1 < n ? s.charAt(i + 1) : 0;
+                    if (Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+                        int cp = Character.toCodePoint(c, low);
+                        buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                        buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                        buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                        buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+                        i++;
+                    } else {
+                        escape(c);
+                    }
+                } else {
+                    buf[pos++] = (byte) (0xE0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
                 }
-                json.append("],\"warnings\":[");
-                for (int i = 0; i < warnings.size(); i++) {
-                    if (i > 0) json.append(",");
-                    json.append(escapeJson(warnings.get(i)));
+            }
+            put((byte) '"');
+        }
+
+        /** Writes the escape for c; the caller has made room for six bytes. */
+        private void escape(char c) {
+            buf[pos++] = '\\';
+            switch (c) {
+                case '"' -> buf[pos++] = '"';
+                case '\\' -> buf[pos++] = '\\';
+                case '\n' -> buf[pos++] = 'n';
+                case '\r' -> buf[pos++] = 'r';
+                case '\t' -> buf[pos++] = 't';
+                case '\b' -> buf[pos++] = 'b';
+                case '\f' -> buf[pos++] = 'f';
+                default -> {
+                    buf[pos++] = 'u';
+                    buf[pos++] = HEX[(c >> 12) & 0xF];
+                    buf[pos++] = HEX[(c >> 8) & 0xF];
+                    buf[pos++] = HEX[(c >> 4) & 0xF];
+                    buf[pos++] = HEX[c & 0xF];
                 }
-                json.append("]}");
-                sendJson(ex, 200, json.toString());
+            }
+        }
 
-            } catch (Exception e) {
-                System.err.println("[JavaServices] DUK validate #" + reqId +
-                    " error: " + e.getMessage());
-                sendJson(ex, 500,
-                    "{\"error\":" + escapeJson("DUK validation failed: " + e.getMessage()) + "}");
-            } finally {
-                tmpXml.delete();
-                tmpErr.delete();
+        /** Buffer full: stream it out, or grow when writing to memory. */
+        private void spill() throws IOException {
+            if (ex == null && out == null) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+                return;
             }
+            if (out == null) out = openResponse(ex, code, "application/json", -1);
+            out.write(buf, 0, pos);
+            pos = 0;
         }
     }
 
-    // ═════════════════════════════════════════════════════════════════
-    // POST /duk/generate-pdf — DUKIntegrator PDF generation
-    // ═════════════════════════════════════════════════════════════════
+    /**
+     * Minimal streaming multipart/form-data reader. Part bodies are located
+     * with a KMP scan for the CRLF-prefixed boundary, so the request is read
+     * exactly once and only one part is buffered at a time.
+     */
+    static final class MultipartReader {
+        record Part(String name, String filename, String contentType, byte[] body) {}
 
-    static class DukPdfHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange ex) throws IOException {
-            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
-                sendJson(ex, 405, "{\"error\":\"Method not allowed\"}");
-                return;
+        private final InputStream in;
+        private final byte[] delimiter;
+        private final int[] failure;
+        private final byte[] buf = new byte[16384];
+        private int pos;
+        private int lim;
+        private boolean started;
+        private boolean finished;
+
+        MultipartReader(InputStream in, String boundary) {
+            this.in = in;
+            this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            this.failure = new int[delimiter.length];
+            for (int i = 1, k = 0; i < delimiter.length; i++) {
+                while (k > 0 && delimiter[i] != delimiter[k]) k = failure[k - 1];
+                if (delimiter[i] == delimiter[k]) k++;
+                failure[i] = k;
             }
+        }
 
-            if (!dukReady) {
-                sendJson(ex, 503,
-                    "{\"error\":\"DUK PDF generation unavailable (DUKIntegrator not loaded)\"}");
-                return;
+        Part next() throws IOException {
+            if (finished) return null;
+            if (!started) {
+                // The first boundary may not be preceded by CRLF; skip the preamble
+                started = true;
+                scanToDelimiter(null, 2);
             }
 
-            byte[] xmlBytes;
-            try (InputStream is = ex.getRequestBody()) {
-                xmlBytes = is.readAllBytes();
+            // After a delimiter: "--" closes the body, otherwise CRLF + headers
+            int a = read();
+            int b = read();
+            if (a == '-' && b == '-') {
+                finished = true;
+                return null;
             }
-            if (xmlBytes.length == 0) {
-                sendJson(ex, 400, "{\"error\":\"Empty body\"}");
-                return;
+            while (a != '\r' || b != '\n') {
+                if (b < 0) throw new IOException("Unexpected end of multipart body");
+                a = b;
+                b = read();
             }
 
-            String type = parseQueryParam(ex.getRequestURI().getRawQuery(), "type");
-            if (type == null || type.isEmpty()) {
-                sendJson(ex, 400, "{\"error\":\"Missing query parameter: type (e.g. ?type=D394)\"}");
-                return;
+            String name = null;
+            String filename = null;
+            String partType = null;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) continue;
+                String header = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (header.equalsIgnoreCase("Content-Disposition")) {
+                    name = parseHeaderParam(value, "name");
+                    filename = parseHeaderParam(value, "filename");
+                } else if (header.equalsIgnoreCase("Content-Type")) {
+                    partType = value;
+                }
             }
 
-            long reqId = dukPdfCount.incrementAndGet();
-            String id = UUID.randomUUID().toString();
-            File tmpXml = new File(System.getProperty("java.io.tmpdir"),
-                "dukpdf_" + id + ".xml");
-            File tmpPdf = new File(System.getProperty("java.io.tmpdir"),
-                "dukpdf_" + id + ".pdf");
-            File tmpErr = new File(System.getProperty("java.io.tmpdir"),
-                "dukpdf_" + id + ".xml.err.txt");
-
-            try {
-                Files.write(tmpXml.toPath(), xmlBytes);
-                long start = System.currentTimeMillis();
-
-                // Use general.Integrator API for PDF generation
-                // pdfCreation(xmlPath, type, outputDir, null) returns int: 0=success
-                Class<?> intClass = Class.forName("general.Integrator");
-                Object integrator = intClass.getDeclaredConstructor().newInstance();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            scanToDelimiter(body, 0);
+            return new Part(name, filename, partType, body.toByteArray());
+        }
 
-                Method setType = intClass.getMethod("setDeclType", String.class);
-                setType.invoke(integrator, type);
+        /**
+         * Copies bytes into {@code out} (or discards them when null) until the
+         * delimiter has been consumed. {@code matched} pre-seeds the match
+         * state, which lets the preamble scan accept a boundary without CRLF.
+         */
+        private void scanToDelimiter(ByteArrayOutputStream out, int matched)
+                throws IOException {
+            int j = matched;
+            int c;
+            while ((c = read()) >= 0) {
+                while (j > 0 && c != (delimiter[j] & 0xff)) {
+                    int f = failure[j - 1];
+                    if (out != null) out.write(delimiter, 0, j - f);
+                    j = f;
+                }
+                if (c == (delimiter[j] & 0xff)) {
+                    if (++j == delimiter.length) return;
+                } else if (out != null) {
+                    out.write(c);
+                }
+            }
+            throw new IOException("Unexpected end of multipart body");
+        }
 
-                Method setConfig = intClass.getMethod("setConfigPath", String.class);
-                setConfig.invoke(integrator, dukDir + "/");
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = read()) >= 0) {
+                if (c == '\n') break;
+                if (c != '\r') sb.append((char) c);
+            }
+            if (c < 0) throw new IOException("Unexpected end of multipart headers");
+            return sb.toString();
+        }
 
-                // Don't sign the PDF (we sign separately with USB cert)
-                Method noSign = intClass.getMethod("setNoCertificate");
-                noSign.invoke(integrator);
+        private int read() throws IOException {
+            if (pos == lim) {
+                lim = in.read(buf, 0, buf.length);
+                pos = 0;
+                if (lim <= 0) {
+                    lim = 0;
+                    return -1;
+                }
+            }
+            return buf[pos++] & 0xff;
+        }
+    }
 
-                // pdfCreation(xmlPath, type, zipFile, pdfOutputPath)
-                // null zipFile = no zip, null pdfOutputPath = auto from XML (.xml→.pdf)
-                Method pdfMethod = intClass.getMethod("pdfCreation",
-                    String.class, String.class, String.class, String.class);
-                int pdfResult = (Integer) pdfMethod.invoke(integrator,
-                    tmpXml.getAbsolutePath(), type, null, tmpPdf.getAbsolutePath());
+    /**
+     * Single-pass reader for a JSON object whose interesting values are
+     * strings. Wanted fields are decoded straight from the stream into UTF-8
+     * byte arrays; every other value is skipped without buffering. Field
+     * names only match in key position, so a document that happens to contain
+     * the text "signature" cannot be mistaken for the field. Malformed input
+     * raises IllegalArgumentException.
+     */
+    static final class JsonFieldReader {
+        private final InputStream in;
+        private final byte[] buf = new byte[16384];
+        private int pos;
+        private int lim;
 
-                System.out.println("[JavaServices] DUK PDF #" + reqId +
-                    " pdfCreation result=" + pdfResult);
+        private JsonFieldReader(InputStream in) {
+            this.in = in;
+        }
 
-                // Get the generated PDF path from the integrator
-                Method getPdfFile = intClass.getMethod("getFisierPdf");
-                String pdfPath = (String) getPdfFile.invoke(integrator);
-                System.out.println("[JavaServices] DUK PDF #" + reqId +
-                    " pdfPath=" + pdfPath);
+        static Map<String, byte[]> read(InputStream in, Set<String> fields)
+                throws IOException {
+            return new JsonFieldReader(in).readObject(fields);
+        }
 
-                // Check for error log
-                Method getLogFile = intClass.getMethod("getFisierLogErori");
-                String logPath = (String) getLogFile.invoke(integrator);
-                if (logPath != null && !logPath.isEmpty()) {
-                    File logFile = new File(logPath);
-                    if (logFile.exists()) {
-                        String logContent = Files.readString(logFile.toPath(),
-                            StandardCharsets.UTF_8).trim();
-                        if (!logContent.isEmpty()) {
-                            System.out.println("[JavaServices] DUK PDF #" + reqId +
-                                " log: " + logContent);
-                        }
-                    }
+        private Map<String, byte[]> readObject(Set<String> fields) throws IOException {
+            Map<String, byte[]> values = new HashMap<>();
+            if (nextToken() != '{') throw malformed("expected '{'");
+            int c = nextToken();
+            if (c == '}') return values;
+            while (true) {
+                if (c != '"') throw malformed("expected field name");
+                ByteArrayOutputStream key = new ByteArrayOutputStream(32);
+                readString(key);
+                String name = key.toString(StandardCharsets.UTF_8);
+                if (nextToken() != ':') throw malformed("expected ':' after \"" + name + "\"");
+                c = nextToken();
+                if (c == '"' && fields.contains(name)) {
+                    ByteArrayOutputStream value = new ByteArrayOutputStream(8192);
+                    readString(value);
+                    values.put(name, value.toByteArray());
+                } else {
+                    skipValue(c);
                 }
+                c = nextToken();
+                if (c == '}') return values;
+                if (c != ',') throw malformed("expected ',' or '}'");
+                c = nextToken();
+            }
+        }
 
-                // Check for parse error file
-                Method getErrFile = intClass.getMethod("getFisierEroriParsare");
-                String errPath = (String) getErrFile.invoke(integrator);
-                if (errPath != null && !errPath.isEmpty()) {
-                    File errFile = new File(errPath);
-                    if (errFile.exists()) {
-                        String errContent2 = Files.readString(errFile.toPath(),
-                            StandardCharsets.UTF_8).trim();
-                        if (!errContent2.isEmpty()) {
-                            System.out.println("[JavaServices] DUK PDF #" + reqId +
-                                " errors: " + errContent2);
+        /**
+         * Decodes the rest of a string whose opening quote has been consumed.
+         * Runs without escapes are copied from the buffer in one write;
+         * {@code out} may be null to skip the string.
+         */
+        private void readString(ByteArrayOutputStream out) throws IOException {
+            while (true) {
+                if (pos == lim && !fill()) throw malformed("unterminated string");
+                int start = pos;
+                while (pos < lim && buf[pos] != '"' && buf[pos] != '\\') pos++;
+                if (out != null) out.write(buf, start, pos - start);
+                if (pos == lim) continue;
+                if (buf[pos++] == '"') return;
+                int e = read();
+                int cp;
+                switch (e) {
+                    case '"': case '\\': case '/': cp = e; break;
+                    case 'b': cp = '\b'; break;
+                    case 'f': cp = '\f'; break;
+                    case 'n': cp = '\n'; break;
+                    case 'r': cp = '\r'; break;
+                    case 't': cp = '\t'; break;
+                    case 'u':
+                        cp = readHex4();
+                        if (Character.isHighSurrogate((char) cp)) {
+                            if (read() != '\\' || read() != 'u') throw malformed("unpaired surrogate");
+                            int low = readHex4();
+                            if (!Character.isLowSurrogate((char) low)) throw malformed("unpaired surrogate");
+                            cp = Character.toCodePoint((char) cp, (char) low);
+                        } else if (Character.isLowSurrogate((char) cp)) {
+                            throw malformed("unpaired surrogate");
                         }
-                    }
+                        break;
+                    default:
+                        throw malformed("invalid escape");
                 }
+                if (out != null) writeUtf8(out, cp);
+            }
+        }
 
-                // Check for errors
-                if (tmpErr.exists()) {
-                    String errContent = Files.readString(tmpErr.toPath(), StandardCharsets.UTF_8).trim();
-                    if (!errContent.isEmpty()) {
-                        // Only fail if the error file has actual errors (not warnings)
-                        boolean hasErrors = false;
-                        for (String line : errContent.split("\\r?\\n")) {
-                            if (!line.trim().startsWith("WARNING:") && !line.trim().startsWith("Avertisment:") && !line.trim().isEmpty()) {
-                                hasErrors = true;
-                                break;
-                            }
-                        }
-                        if (hasErrors) {
-                            sendJson(ex, 422,
-                                "{\"error\":" + escapeJson("DUK PDF validation errors: " + errContent) + "}");
-                            return;
-                        }
-                    }
+        private void skipValue(int c) throws IOException {
+            if (c == '"') {
+                readString(null);
+            } else if (c == '{' || c == '[') {
+                int depth = 1;
+                while (depth > 0) {
+                    int x = read();
+                    if (x < 0) throw malformed("unexpected end of input");
+                    if (x == '"') readString(null);
+                    else if (x == '{' || x == '[') depth++;
+                    else if (x == '}' || x == ']') depth--;
                 }
+            } else if (c == '-' || (c >= '0' && c <= '9') || c == 't' || c == 'f' || c == 'n') {
+                // Number or literal: consume up to the next delimiter and push it back
+                int x;
+                while ((x = read()) >= 0 && x != ',' && x != '}' && x != ']'
+                        && x != ' ' && x != '\t' && x != '\n' && x != '\r') { }
+                if (x >= 0) pos--;
+            } else {
+                throw malformed("unexpected value");
+            }
+        }
 
-                File pdfFile = (pdfPath != null && !pdfPath.isEmpty())
-                    ? new File(pdfPath) : tmpPdf;
+        private int readHex4() throws IOException {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                int d = Character.digit(read(), 16);
+                if (d < 0) throw malformed("invalid \\u escape");
+                v = (v << 4) | d;
+            }
+            return v;
+        }
 
-                if (!pdfFile.exists()) {
-                    // DUK sometimes puts the PDF next to the XML with .pdf extension
-                    File altPdf = new File(tmpXml.getAbsolutePath().replaceAll("\\.xml$", ".pdf"));
-                    if (altPdf.exists()) {
-                        pdfFile = altPdf;
-                    } else {
-                        // List files in outputDir matching our prefix
-                        File[] related = tmpXml.getParentFile().listFiles(
-                            f -> f.getName().startsWith("dukpdf_" + id));
-                        StringBuilder sb = new StringBuilder();
-                        if (related != null) {
-                            for (File f : related) sb.append(f.getName()).append(" ");
-                        }
-                        sendJson(ex, 500,
-                            "{\"error\":\"DUK PDF not created (result=" + pdfResult +
-                            ", pdfPath=" + (pdfPath == null ? "null" : pdfPath) +
-                            ", files=[" + sb.toString().trim() + "])\"}");
-                        return;
-                    }
-                }
+        private static void writeUtf8(ByteArrayOutputStream out, int cp) {
+            if (cp < 0x80) {
+                out.write(cp);
+            } else if (cp < 0x800) {
+                out.write(0xc0 | (cp >> 6));
+                out.write(0x80 | (cp & 0x3f));
+            } else if (cp < 0x10000) {
+                out.write(0xe0 | (cp >> 12));
+                out.write(0x80 | ((cp >> 6) & 0x3f));
+                out.write(0x80 | (cp & 0x3f));
+            } else {
+                out.write(0xf0 | (cp >> 18));
+                out.write(0x80 | ((cp >> 12) & 0x3f));
+                out.write(0x80 | ((cp >> 6) & 0x3f));
+                out.write(0x80 | (cp & 0x3f));
+            }
+        }
 
-                long elapsed = System.currentTimeMillis() - start;
-                System.out.println("[JavaServices] DUK PDF #" + reqId + " " +
-                    elapsed + "ms (" + type + ", " + pdfFile.length() + "b)");
+        private int nextToken() throws IOException {
+            int c;
+            while ((c = read()) == ' ' || c == '\t' || c == '\n' || c == '\r') { }
+            return c;
+        }
 
-                byte[] pdfBytes = Files.readAllBytes(pdfFile.toPath());
-                ex.getResponseHeaders().set("Content-Type", "application/pdf");
-                ex.getResponseHeaders().set("X-Generation-Time-Ms",
-                    String.valueOf(elapsed));
-                ex.sendResponseHeaders(200, pdfBytes.length);
-                try (OutputStream os = ex.getResponseBody()) {
-                    os.write(pdfBytes);
-                }
+        private IllegalArgumentException malformed(String what) {
+            return new IllegalArgumentException("Malformed JSON body: " + what);
+        }
 
-                if (!pdfFile.equals(tmpPdf)) pdfFile.delete();
+        private boolean fill() throws IOException {
+            int n = in.read(buf, 0, buf.length);
+            pos = 0;
+            lim = Math.max(n, 0);
+            return n > 0;
+        }
 
-            } catch (Exception e) {
-                System.err.println("[JavaServices] DUK PDF #" + reqId +
-                    " error: " + e.getMessage());
-                sendJson(ex, 500,
-                    "{\"error\":" + escapeJson("DUK PDF failed: " + e.getMessage()) + "}");
-            } finally {
-                tmpXml.delete();
-                tmpPdf.delete();
-                tmpErr.delete();
+        private int read() throws IOException {
+            if (pos == lim && !fill()) return -1;
+            return buf[pos++] & 0xff;
+        }
+    }
+
+    /** Extracts {@code param} from a header value like {@code a/b; param="x"}. */
+    static String parseHeaderParam(String header, String param) {
+        for (String piece : header.split(";")) {
+            String[] kv = piece.trim().split("=", 2);
+            if (kv.length == 2 && kv[0].trim().equalsIgnoreCase(param)) {
+                String v = kv[1].trim();
+                if (v.length() >= 2 && v.startsWith("\"") && v.endsWith("\"")) {
+                    v = v.substring(1, v.length() - 1);
+                }
+                return v;
             }
         }
+        return null;
     }
 
-    // ═════════════════════════════════════════════════════════════════
-    // Helpers
-    // ═════════════════════════════════════════════════════════════════
+    private static final DocumentBuilderFactory DOM_FACTORY = newDomFactory();
 
-    record ErrorEntry(String message, String source, String ruleId, String location) {
-        String toJson() {
-            StringBuilder sb = new StringBuilder("{");
-            sb.append("\"message\":").append(escapeJson(message));
-            sb.append(",\"source\":").append(escapeJson(source));
-            if (ruleId != null) sb.append(",\"ruleId\":").append(escapeJson(ruleId));
-            if (location != null) sb.append(",\"location\":").append(escapeJson(location));
-            sb.append("}");
-            return sb.toString();
-        }
+    // DocumentBuilder is not thread-safe; one per thread, reset between uses
+    private static final ThreadLocal<DocumentBuilder> DOM_BUILDER =
+        ThreadLocal.withInitial(() -> {
+            try {
+                return DOM_FACTORY.newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+    // Fail on the first fatal error instead of printing "[Fatal Error]" to stderr
+    private static final org.xml.sax.ErrorHandler STRICT_ERRORS =
+        new org.xml.sax.helpers.DefaultHandler() {
+            @Override
+            public void fatalError(org.xml.sax.SAXParseException e)
+                    throws org.xml.sax.SAXException {
+                throw e;
+            }
+        };
+
+    private static DocumentBuilderFactory newDomFactory() {
+        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+        f.setNamespaceAware(true);
+        return f;
     }
 
-    static String readBody(HttpExchange ex) throws IOException {
-        try (InputStream is = ex.getRequestBody()) {
-            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
-        }
-    }
-
-    static String extractJsonField(String json, String field) {
-        String key = "\"" + field + "\"";
-        int keyIdx = json.indexOf(key);
-        if (keyIdx < 0) return null;
-        int colonIdx = json.indexOf(':', keyIdx + key.length());
-        if (colonIdx < 0) return null;
-        int startQuote = json.indexOf('"', colonIdx + 1);
-        if (startQuote < 0) return null;
-        StringBuilder sb = new StringBuilder();
-        for (int i = startQuote + 1; i < json.length(); i++) {
-            char c = json.charAt(i);
-            if (c == '\\' && i + 1 < json.length()) {
-                char next = json.charAt(i + 1);
-                switch (next) {
-                    case '"': sb.append('"'); i++; break;
-                    case '\\': sb.append('\\'); i++; break;
-                    case '/': sb.append('/'); i++; break;
-                    case 'n': sb.append('\n'); i++; break;
-                    case 'r': sb.append('\r'); i++; break;
-                    case 't': sb.append('\t'); i++; break;
-                    case 'u':
-                        if (i + 5 < json.length()) {
-                            String hex = json.substring(i + 2, i + 6);
-                            sb.append((char) Integer.parseInt(hex, 16));
-                            i += 5;
-                        } else {
-                            sb.append(c);
-                        }
-                        break;
-                    default: sb.append(c); break;
+    private static final XMLInputFactory STAX_FACTORY = newStaxFactory();
+
+    private static XMLInputFactory newStaxFactory() {
+        XMLInputFactory f = XMLInputFactory.newInstance();
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return f;
+    }
+
+    /**
+     * Streams just far enough to see the root element (normally the first
+     * few hundred bytes). Returns null if the prolog is not well-formed; the
+     * full parse will report that error.
+     */
+    static QName peekRootElement(byte[] xml) {
+        XMLStreamReader r = null;
+        try {
+            r = STAX_FACTORY.createXMLStreamReader(new ByteArrayInputStream(xml));
+            while (r.hasNext()) {
+                if (r.next() == XMLStreamConstants.START_ELEMENT) {
+                    return r.getName();
                 }
-            } else if (c == '"') {
-                return sb.toString();
-            } else {
-                sb.append(c);
+            }
+        } catch (XMLStreamException e) {
+            // fall through
+        } finally {
+            if (r != null) {
+                try { r.close(); } catch (XMLStreamException ignored) { }
             }
         }
         return null;
     }
 
+    /** Parses raw request bytes (honouring the XML declaration's encoding). */
+    static Document parseXml(byte[] xml) throws org.xml.sax.SAXException, IOException {
+        DocumentBuilder b = DOM_BUILDER.get();
+        b.reset();
+        b.setErrorHandler(STRICT_ERRORS);
+        return b.parse(new ByteArrayInputStream(xml));
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String sha256Hex(byte[] data) {
+        return HexFormat.of().formatHex(sha256().digest(data));
+    }
+
+    /**
+     * s as a quoted JSON string, in one pass. Escapes the same characters as
+     * {@link JsonWriter}: quote, backslash, every control character and lone
+     * surrogates. Handlers that stream larger documents use the writer.
+     */
     static String escapeJson(String s) {
         if (s == null) return "null";
-        return "\"" + s.replace("\\", "\\\\")
-                        .replace("\"", "\\\"")
-                        .replace("\n", "\\n")
-                        .replace("\r", "\\r")
-                        .replace("\t", "\\t") + "\"";
+        int n = s.length();
+        int i = 0;
+        while (i < n && !needsEscape(s, i)) i++;
+        if (i == n) return "\"" + s + "\"";
+        StringBuilder sb = new StringBuilder(n + 16).append('"');
+        int run = 0;
+        for (; i < n; i++) {
+            if (!needsEscape(s, i)) continue;
+            sb.append(s, run, i);
+            run = i + 1;
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                case '\b' -> sb.append("\\b");
+                case '\f' -> sb.append("\\f");
+                default -> sb.append(String.format("\\u%04x", (int) c));
+            }
+        }
+        return sb.append(s, run, n).append('"').toString();
+    }
+
+    /** True when the char at i must be escaped; a valid surrogate pair passes at its high half. */
+    private static boolean needsEscape(String s, int i) {
+        char c = s.charAt(i);
+        if (c < 0x20 || c == '"' || c == '\\') return true;
+        if (!Character.isSurrogate(c)) return false;
+        if (Character.isHighSurrogate(c)) {
+            return i + 1 >= s.length() || !Character.isLowSurrogate(s.charAt(i + 1));
+        }
+        return i == 0 || !Character.isHighSurrogate(s.charAt(i - 1));
     }
 
     static String parseQueryParam(String query, String param) {
@@ -902,10 +6638,74 @@ public class JavaServiceServer {
 
     static void sendJson(HttpExchange ex, int code, String body) throws IOException {
         byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
-        ex.getResponseHeaders().set("Content-Type", "application/json");
-        ex.sendResponseHeaders(code, bytes.length);
-        try (OutputStream os = ex.getResponseBody()) {
+        try (OutputStream os = openResponse(ex, code, "application/json", bytes.length)) {
             os.write(bytes);
         }
     }
+
+    /**
+     * Sends the status and headers and returns the stream for the body.
+     * length is the uncompressed size, or -1 to stream it chunked. When the
+     * client sends Accept-Encoding: gzip and the body is compressible and
+     * either of unknown length or at least http.gzip.minBytes, it is
+     * compressed on the fly and sent chunked; closing the stream finishes
+     * the gzip trailer. Everything else goes out as before, with
+     * Content-Length when the length is known.
+     */
+    static OutputStream openResponse(HttpExchange ex, int code, String contentType, long length)
+            throws IOException {
+        if (contentType != null) ex.getResponseHeaders().set("Content-Type", contentType);
+        if (gzipLevel >= 0 && compressible(contentType)) {
+            ex.getResponseHeaders().add("Vary", "Accept-Encoding");
+            if ((length < 0 || length >= gzipMinBytes) && acceptsGzip(ex)) {
+                ex.getResponseHeaders().set("Content-Encoding", "gzip");
+                ex.sendResponseHeaders(code, 0);
+                return new GzipResponseStream(ex.getResponseBody(), gzipLevel);
+            }
+        }
+        ex.sendResponseHeaders(code, length < 0 ? 0 : length == 0 ? -1 : length);
+        return ex.getResponseBody();
+    }
+
+    /** JSON, text and our multipart bodies; PDFs only with -Dhttp.gzip.pdf=true. */
+    static boolean compressible(String contentType) {
+        if (contentType == null) return false;
+        String type = contentType.toLowerCase();
+        return type.startsWith("application/json") || type.startsWith("text/")
+            || type.startsWith("multipart/") || (gzipPdf && type.startsWith("application/pdf"));
+    }
+
+    /** True when Accept-Encoding lists gzip (or *) without q=0. */
+    static boolean acceptsGzip(HttpExchange ex) {
+        List<String> values = ex.getRequestHeaders().get("Accept-Encoding");
+        if (values == null) return false;
+        for (String value : values) {
+            for (String coding : value.split(",")) {
+                String[] params = coding.trim().split(";");
+                String name = params[0].trim().toLowerCase();
+                if (!name.equals("gzip") && !name.equals("x-gzip") && !name.equals("*")) continue;
+                boolean refused = false;
+                for (int i = 1; i < params.length; i++) {
+                    String param = params[i].trim().toLowerCase();
+                    if (param.startsWith("q=")) {
+                        try {
+                            refused = Double.parseDouble(param.substring(2)) == 0;
+                        } catch (NumberFormatException e) {
+                            refused = true;
+                        }
+                    }
+                }
+                if (!refused) return true;
+            }
+        }
+        return false;
+    }
+
+    /** GZIPOutputStream at a chosen level; the default level 6 costs too much CPU here. */
+    static final class GzipResponseStream extends java.util.zip.GZIPOutputStream {
+        GzipResponseStream(OutputStream out, int level) throws IOException {
+            super(out, 16384);
+            def.setLevel(level);
+        }
+    }
 }
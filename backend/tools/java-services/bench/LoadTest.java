@@ -0,0 +1,127 @@
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closed-loop load test for a running JavaServiceServer with mixed
+ * /validate and /generate-pdf traffic.
+ *
+ * Usage: java LoadTest <base-url> <corpus-dir> [seconds-per-level] [validate-share]
+ *
+ * Runs 1x, 4x and 16x the core count of concurrent clients (override with
+ * -Dlevels=1,4,16). Each client posts a random corpus document to /validate
+ * with probability validate-share (default 0.8), otherwise to /generate-pdf,
+ * and sends the next one as soon as the response is read. Run once against a
+ * server started with EXECUTOR_MODE=platform and once with
+ * EXECUTOR_MODE=virtual to compare throughput and p99.
+ */
+public class LoadTest {
+
+    record Sample(boolean pdf, int status, double ms) {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: LoadTest <base-url> <corpus-dir> " +
+                "[seconds-per-level] [validate-share]");
+            System.exit(1);
+        }
+        String baseUrl = args[0].replaceAll("/+$", "");
+        File corpusDir = new File(args[1]);
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        double validateShare = args.length > 3 ? Double.parseDouble(args[3]) : 0.8;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] levels = Arrays.stream(System.getProperty("levels", "1,4,16").split(","))
+            .mapToInt(l -> Integer.parseInt(l.trim())).toArray();
+
+        File[] files = corpusDir.listFiles((d, n) -> n.endsWith(".xml"));
+        if (files == null || files.length == 0) {
+            System.err.println("No *.xml files in " + corpusDir.getAbsolutePath());
+            System.exit(1);
+        }
+        List<byte[]> corpus = new ArrayList<>();
+        for (File f : files) corpus.add(Files.readAllBytes(f.toPath()));
+
+        HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+
+        System.out.println("Target: " + baseUrl + ", " + corpus.size() + " documents, " +
+            (int) (validateShare * 100) + "% validate, " + seconds + "s per level, " +
+            cores + " cores");
+        System.out.printf("%-8s %-9s %8s %9s %9s %9s %6s %6s%n",
+            "clients", "endpoint", "requests", "req/s", "p50 ms", "p99 ms", "503", "errors");
+
+        for (int level : levels) {
+            int clients = level * cores;
+            List<List<Sample>> perClient = new ArrayList<>();
+            ExecutorService pool = Executors.newFixedThreadPool(clients);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            for (int c = 0; c < clients; c++) {
+                List<Sample> samples = new ArrayList<>();
+                perClient.add(samples);
+                pool.execute(() -> {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    while (System.nanoTime() < deadline) {
+                        boolean pdf = rnd.nextDouble() >= validateShare;
+                        byte[] body = corpus.get(rnd.nextInt(corpus.size()));
+                        samples.add(send(client, baseUrl + (pdf ? "/generate-pdf" : "/validate"),
+                            body, pdf));
+                    }
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(seconds + 120L, TimeUnit.SECONDS);
+
+            List<Sample> all = new ArrayList<>();
+            perClient.forEach(all::addAll);
+            report(clients + " (" + level + "x)", "validate",
+                all.stream().filter(s -> !s.pdf()).toList(), seconds);
+            report("", "pdf", all.stream().filter(Sample::pdf).toList(), seconds);
+            report("", "all", all, seconds);
+        }
+    }
+
+    private static Sample send(HttpClient client, String url, byte[] body, boolean pdf) {
+        long t = System.nanoTime();
+        int status;
+        try {
+            HttpResponse<byte[]> resp = client.send(HttpRequest.newBuilder(URI.create(url))
+                    .timeout(Duration.ofSeconds(60))
+                    .header("Content-Type", "application/xml")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                    .build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+            status = resp.statusCode();
+        } catch (Exception e) {
+            status = -1;
+        }
+        return new Sample(pdf, status, (System.nanoTime() - t) / 1_000_000.0);
+    }
+
+    private static void report(String clients, String endpoint, List<Sample> samples, int seconds) {
+        double[] ok = samples.stream().filter(s -> s.status() == 200)
+            .mapToDouble(Sample::ms).sorted().toArray();
+        long busy = samples.stream().filter(s -> s.status() == 503).count();
+        long errors = samples.size() - ok.length - busy;
+        System.out.printf("%-8s %-9s %8d %9.1f %9.1f %9.1f %6d %6d%n",
+            clients, endpoint, samples.size(), ok.length / (double) seconds,
+            percentile(ok, 0.50), percentile(ok, 0.99), busy, errors);
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * p)];
+    }
+}
@@ -0,0 +1,142 @@
+import genFactura.GenFactura;
+import net.sf.jasperreports.engine.JasperExportManager;
+import net.sf.jasperreports.engine.JasperFillManager;
+import net.sf.jasperreports.engine.JasperPrint;
+import net.sf.jasperreports.engine.util.JRXmlUtils;
+
+import javax.xml.namespace.QName;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Per-PDF latency of the three /generate-pdf rendering paths over a corpus
+ * of real invoices and credit notes:
+ *
+ *   genfactura  GenFactura through temp files (the fallback path)
+ *   disk        in-memory fill, templates and subreports read from disk
+ *   registry    in-memory fill against the preloaded ReportRegistry
+ *
+ * Usage: java ... PdfRenderBench <corpus-dir> [iterations]
+ *
+ * Every path renders to a complete PDF; the in-memory ones export into a
+ * discarding stream so only fill and export are timed.
+ */
+public class PdfRenderBench {
+
+    interface Renderer {
+        void render(byte[] xml) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: PdfRenderBench <corpus-dir> [iterations]");
+            System.exit(1);
+        }
+        File corpusDir = new File(args[0]);
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        File jasperDir = new File(System.getProperty("pdf.jasper.dir",
+            new File(System.getProperty("user.dir"), "tools/pdf-generator/jasper").getPath()));
+
+        File[] files = corpusDir.listFiles((d, n) -> n.endsWith(".xml"));
+        if (files == null || files.length == 0) {
+            System.err.println("No *.xml files in " + corpusDir.getAbsolutePath());
+            System.exit(1);
+        }
+        Arrays.sort(files);
+        List<byte[]> corpus = new ArrayList<>();
+        for (File f : files) corpus.add(Files.readAllBytes(f.toPath()));
+        System.out.println("Corpus: " + files.length + " documents, " +
+            iterations + " iterations");
+
+        long start = System.nanoTime();
+        JavaServiceServer.ReportRegistry registry = new JavaServiceServer.ReportRegistry(jasperDir);
+        int templates = registry.refresh();
+        System.out.printf("Registry: %d templates loaded in %d ms%n",
+            templates, (System.nanoTime() - start) / 1_000_000);
+
+        Renderer genFactura = xml -> {
+            File tmp = new File(System.getProperty("java.io.tmpdir"),
+                "pdfbench_" + UUID.randomUUID() + ".xml");
+            try {
+                Files.write(tmp.toPath(), xml);
+                GenFactura gen = new GenFactura();
+                String type = gen.identificaDeclaratie(tmp.getAbsolutePath());
+                String pdf = gen.generarePDF(tmp.getAbsolutePath(), type);
+                if (pdf != null && !pdf.isEmpty()) new File(pdf).delete();
+            } finally {
+                tmp.delete();
+            }
+        };
+        Renderer disk = xml -> export(JasperFillManager.fillReport(
+            new File(jasperDir, reportFor(xml)).getPath(), params(xml, jasperDir)));
+        Renderer cached = xml -> export(registry.fill(reportFor(xml), params(xml, jasperDir)));
+
+        double[] genMs = measure(genFactura, corpus, iterations);
+        double[] diskMs = measure(disk, corpus, iterations);
+        double[] registryMs = measure(cached, corpus, iterations);
+
+        System.out.println();
+        System.out.printf("%-10s %10s %10s %10s %10s%n",
+            "path", "mean ms", "p50 ms", "p95 ms", "pdfs/s");
+        report("genfactura", genMs);
+        report("disk", diskMs);
+        report("registry", registryMs);
+        System.out.printf("%nRegistry gain (mean): %.2fx vs disk, %.2fx vs genfactura%n",
+            mean(diskMs) / mean(registryMs), mean(genMs) / mean(registryMs));
+    }
+
+    private static String reportFor(byte[] xml) throws Exception {
+        QName root = JavaServiceServer.peekRootElement(xml);
+        return root != null && root.getLocalPart().equals("CreditNote")
+            ? "factura_complet2_c.jasper" : "factura_complet2.jasper";
+    }
+
+    private static Map<String, Object> params(byte[] xml, File jasperDir) throws Exception {
+        Map<String, Object> params = new HashMap<>();
+        params.put("XML_DATA_DOCUMENT", JRXmlUtils.parse(new ByteArrayInputStream(xml)));
+        params.put("SUBREPORT_DIR", jasperDir + File.separator);
+        return params;
+    }
+
+    private static void export(JasperPrint print) throws Exception {
+        JasperExportManager.exportReportToPdfStream(print, OutputStream.nullOutputStream());
+    }
+
+    private static double[] measure(Renderer renderer, List<byte[]> corpus, int iterations)
+            throws Exception {
+        for (byte[] xml : corpus) renderer.render(xml);  // warm-up
+        double[] samples = new double[corpus.size() * iterations];
+        int n = 0;
+        for (int it = 0; it < iterations; it++) {
+            for (byte[] xml : corpus) {
+                long t = System.nanoTime();
+                renderer.render(xml);
+                samples[n++] = (System.nanoTime() - t) / 1_000_000.0;
+            }
+        }
+        Arrays.sort(samples);
+        return samples;
+    }
+
+    private static void report(String name, double[] sortedMs) {
+        double mean = mean(sortedMs);
+        System.out.printf("%-10s %10.2f %10.2f %10.2f %10.1f%n", name, mean,
+            sortedMs[sortedMs.length / 2],
+            sortedMs[(int) Math.min(sortedMs.length - 1, sortedMs.length * 0.95)],
+            1000.0 / mean);
+    }
+
+    private static double mean(double[] v) {
+        double sum = 0;
+        for (double d : v) sum += d;
+        return sum / v.length;
+    }
+}
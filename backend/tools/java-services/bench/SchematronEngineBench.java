@@ -0,0 +1,134 @@
+import com.helger.schematron.pure.SchematronResourcePure;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+
+/**
+ * Side-by-side benchmark of the pure Schematron engine and the XSLT-compiled
+ * engine (-Dschematron.engine=xslt) over a corpus of real invoices.
+ *
+ * Usage: java ... SchematronEngineBench <corpus-dir> [iterations]
+ *
+ * Both engines run single-threaded over every *.xml in the corpus after a
+ * warm-up pass. The first pass also compares the fired rule IDs per document
+ * so a speedup is never reported for an engine that disagrees.
+ */
+public class SchematronEngineBench {
+
+    interface Engine {
+        List<JavaServiceServer.ErrorEntry> run(byte[] xml) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: SchematronEngineBench <corpus-dir> [iterations]");
+            System.exit(1);
+        }
+        File corpusDir = new File(args[0]);
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String schemaDir = System.getProperty("schema.dir", System.getProperty("user.dir"));
+        File schFile = new File(schemaDir,
+            "ro16931-ubl-1.0.9/EN16931-CIUS_RO-UBL-validation.sch");
+
+        File[] files = corpusDir.listFiles((d, n) -> n.endsWith(".xml"));
+        if (files == null || files.length == 0) {
+            System.err.println("No *.xml files in " + corpusDir.getAbsolutePath());
+            System.exit(1);
+        }
+        Arrays.sort(files);
+        List<byte[]> corpus = new ArrayList<>();
+        long corpusBytes = 0;
+        for (File f : files) {
+            byte[] b = Files.readAllBytes(f.toPath());
+            corpus.add(b);
+            corpusBytes += b.length;
+        }
+        System.out.println("Corpus: " + files.length + " documents, " +
+            (corpusBytes / 1024) + " KiB, " + iterations + " iterations");
+
+        long start = System.nanoTime();
+        SchematronResourcePure pure = SchematronResourcePure.fromFile(schFile);
+        if (!pure.isValidSchematron()) throw new IllegalStateException("Invalid schematron");
+        long pureLoad = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        JavaServiceServer.CompiledSchematron xslt =
+            JavaServiceServer.CompiledSchematron.fromSchematron(schFile);
+        long xsltLoad = System.nanoTime() - start;
+
+        Engine pureEngine = xml -> JavaServiceServer.toErrorEntries(
+            pure.applySchematronValidationToSVRL(
+                new StreamSource(new ByteArrayInputStream(xml))));
+        Engine xsltEngine = xml -> xslt.validate(
+            new StreamSource(new ByteArrayInputStream(xml)));
+
+        // Correctness first: both engines must fire the same rules
+        int mismatches = 0;
+        for (int i = 0; i < corpus.size(); i++) {
+            TreeSet<String> a = ruleIds(pureEngine.run(corpus.get(i)));
+            TreeSet<String> b = ruleIds(xsltEngine.run(corpus.get(i)));
+            if (!a.equals(b)) {
+                mismatches++;
+                System.out.println("MISMATCH " + files[i].getName() +
+                    " pure=" + a + " xslt=" + b);
+            }
+        }
+
+        double[] pureMs = measure(pureEngine, corpus, iterations);
+        double[] xsltMs = measure(xsltEngine, corpus, iterations);
+
+        System.out.println();
+        System.out.printf("%-6s %10s %10s %10s %10s %10s%n",
+            "engine", "load ms", "mean ms", "p50 ms", "p95 ms", "docs/s");
+        report("pure", pureLoad, pureMs);
+        report("xslt", xsltLoad, xsltMs);
+        System.out.printf("%nSpeedup (mean): %.2fx, rule mismatches: %d%n",
+            mean(pureMs) / mean(xsltMs), mismatches);
+    }
+
+    private static double[] measure(Engine engine, List<byte[]> corpus, int iterations)
+            throws Exception {
+        for (byte[] xml : corpus) engine.run(xml);  // warm-up
+        double[] samples = new double[corpus.size() * iterations];
+        int n = 0;
+        for (int it = 0; it < iterations; it++) {
+            for (byte[] xml : corpus) {
+                long t = System.nanoTime();
+                engine.run(xml);
+                samples[n++] = (System.nanoTime() - t) / 1_000_000.0;
+            }
+        }
+        Arrays.sort(samples);
+        return samples;
+    }
+
+    private static void report(String name, long loadNanos, double[] sortedMs) {
+        double mean = mean(sortedMs);
+        System.out.printf("%-6s %10d %10.2f %10.2f %10.2f %10.1f%n", name,
+            loadNanos / 1_000_000, mean,
+            sortedMs[sortedMs.length / 2],
+            sortedMs[(int) Math.min(sortedMs.length - 1, sortedMs.length * 0.95)],
+            1000.0 / mean);
+    }
+
+    private static double mean(double[] v) {
+        double sum = 0;
+        for (double d : v) sum += d;
+        return sum / v.length;
+    }
+
+    private static TreeSet<String> ruleIds(List<JavaServiceServer.ErrorEntry> errors) {
+        TreeSet<String> ids = new TreeSet<>();
+        for (JavaServiceServer.ErrorEntry e : errors) {
+            ids.add(Objects.toString(e.ruleId(), e.message()));
+        }
+        return ids;
+    }
+}
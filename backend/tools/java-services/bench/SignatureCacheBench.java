@@ -0,0 +1,87 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Native signature verification with and without the signer certificate
+ * cache (JavaServiceServer.SignerCertCache).
+ *
+ * Usage: java ... SignatureCacheBench [count]
+ *
+ * Verifies the bench/jmh/corpus signature pair {@code count} times (default
+ * 10000) per mode, single-threaded after an untimed round of both modes. The corpus signer is
+ * trusted through a PKIX trust anchor, so an uncached lookup pays for path
+ * validation and the signer JSON on every call, the same work a SPV
+ * invoice's certificate costs. The trust lookup is also timed on its own,
+ * since XML parsing and the RSA check dominate a full verification.
+ */
+public class SignatureCacheBench {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        File corpus = new File(System.getProperty("bench.corpus", "jmh/corpus"));
+        byte[] xml = Files.readAllBytes(new File(corpus, "invoice-small.xml").toPath());
+        byte[] sig = Files.readAllBytes(
+            new File(corpus, "invoice-small.signature.xml").toPath());
+
+        // Trust the corpus signer through PKIX rather than pinning
+        X509Certificate signer = new JavaServiceServer.NativeSignatureVerifier(
+            new JavaServiceServer.SignerCertCache(List.of(), null, 0))
+            .verify(xml, sig).signer().cert();
+        Set<TrustAnchor> anchors = Set.of(new TrustAnchor(signer, null));
+
+        JavaServiceServer.SignerCertCache uncached =
+            new JavaServiceServer.SignerCertCache(List.of(), anchors, 0);
+        JavaServiceServer.SignerCertCache cached =
+            new JavaServiceServer.SignerCertCache(List.of(), anchors, 256);
+        if (!new JavaServiceServer.NativeSignatureVerifier(uncached).verify(xml, sig).valid()) {
+            throw new IllegalStateException("Corpus signature does not verify");
+        }
+
+        System.out.println("Verifications: " + count + " per mode");
+        System.out.printf("%-22s %10s %10s %12s%n", "mode", "total ms", "us/op", "ops/s");
+        // One untimed round of each mode first so neither runs on colder code
+        verify(null, uncached, xml, sig, count);
+        verify(null, cached, xml, sig, count);
+        double plain = verify("verify, no cache", uncached, xml, sig, count);
+        double withCache = verify("verify, cache", cached, xml, sig, count);
+        double lookupPlain = lookup("trust lookup, no cache", uncached, signer, count);
+        double lookupCached = lookup("trust lookup, cache", cached, signer, count);
+
+        System.out.printf("%nSpeedup: verify %.2fx, trust lookup %.1fx%n",
+            plain / withCache, lookupPlain / lookupCached);
+        System.out.println("Cache: " + cached.statsJson());
+    }
+
+    private static double verify(String name, JavaServiceServer.SignerCertCache certs,
+                                 byte[] xml, byte[] sig, int count) throws Exception {
+        JavaServiceServer.NativeSignatureVerifier verifier =
+            new JavaServiceServer.NativeSignatureVerifier(certs);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (!verifier.verify(xml, sig).valid()) throw new IllegalStateException("invalid");
+        }
+        return report(name, System.nanoTime() - start, count);
+    }
+
+    private static double lookup(String name, JavaServiceServer.SignerCertCache certs,
+                                 X509Certificate cert, int count) {
+        for (int i = 0; i < Math.min(count, 1000); i++) certs.lookup(cert);  // warm-up
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (!certs.lookup(cert).trusted()) throw new IllegalStateException("untrusted");
+        }
+        return report(name, System.nanoTime() - start, count);
+    }
+
+    private static double report(String name, long nanos, int count) {
+        double usPerOp = nanos / 1000.0 / count;
+        if (name == null) return usPerOp;
+        System.out.printf("%-22s %10d %10.1f %12.0f%n",
+            name, nanos / 1_000_000, usPerOp, 1_000_000 / usPerOp);
+        return usPerOp;
+    }
+}
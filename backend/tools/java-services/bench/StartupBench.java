@@ -0,0 +1,171 @@
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Time to first response and time to steady-state throughput of a freshly
+ * launched service, with sequential and parallel subsystem loading, and with
+ * the application CDS archive from build-cds.sh.
+ *
+ * Usage: java StartupBench <invoice.xml> <port> <archive.jsa> [seconds] [clients] [runs]
+ *            -- <java> <jvm options...>
+ *
+ * Everything after "--" is the service command line up to, not including,
+ * the main class; the bench appends the mode flags, JavaServiceServer and the
+ * port. Each run starts the clock right before launching the JVM, polls
+ * POST /validate until it answers 200 (time to first response), then keeps
+ * [clients] closed-loop clients posting the invoice for [seconds] and counts
+ * completions per second since launch. The last three seconds are taken as
+ * the steady-state rate; time to steady state is the end of the first second
+ * that reaches 90% of it.
+ */
+public class StartupBench {
+
+    record Mode(String name, List<String> flags) {}
+
+    record Run(long firstResponseMs, long steadyMs, double steadyRate, long readyMs, String appCds) {}
+
+    private static final Pattern READY_MS = Pattern.compile("\"readyMs\":(\\d+)");
+    private static final Pattern APP_CDS = Pattern.compile("\"appCds\":(true|false)");
+
+    public static void main(String[] args) throws Exception {
+        int sep = Arrays.asList(args).indexOf("--");
+        if (sep < 3 || sep == args.length - 1) {
+            System.err.println("Usage: StartupBench <invoice.xml> <port> <archive.jsa> [seconds] [clients] [runs] -- <java> <jvm options...>");
+            System.exit(1);
+        }
+        byte[] invoice = Files.readAllBytes(new File(args[0]).toPath());
+        int port = Integer.parseInt(args[1]);
+        File archive = new File(args[2]);
+        int seconds = sep > 3 ? Integer.parseInt(args[3]) : 20;
+        int clients = sep > 4 ? Integer.parseInt(args[4]) : 4;
+        int runs = sep > 5 ? Integer.parseInt(args[5]) : 1;
+        List<String> command = Arrays.asList(args).subList(sep + 1, args.length);
+
+        List<Mode> modes = new ArrayList<>();
+        modes.add(new Mode("sequential", List.of("-Dstartup.parallel=false")));
+        modes.add(new Mode("parallel", List.of("-Dstartup.parallel=true")));
+        if (archive.isFile()) {
+            modes.add(new Mode("parallel+cds", List.of("-Dstartup.parallel=true",
+                "-XX:SharedArchiveFile=" + archive.getAbsolutePath(), "-Xshare:auto")));
+        } else {
+            System.out.println("No " + archive + " (run build-cds.sh), skipping the CDS mode");
+        }
+
+        System.out.println("Port " + port + ", " + clients + " clients, " + seconds +
+            " s per run, " + runs + " run(s) per mode, " + Runtime.getRuntime().availableProcessors() + " CPUs");
+        System.out.printf("%-13s %4s %8s %10s %10s %10s %7s%n",
+            "mode", "run", "ready ms", "first ms", "steady ms", "steady/s", "appCds");
+        for (Mode mode : modes) {
+            for (int r = 1; r <= runs; r++) {
+                Run run = run(command, mode, port, invoice, seconds, clients);
+                System.out.printf(Locale.ROOT, "%-13s %4d %8d %10d %10d %10.1f %7s%n",
+                    mode.name(), r, run.readyMs(), run.firstResponseMs(), run.steadyMs(),
+                    run.steadyRate(), run.appCds());
+            }
+        }
+    }
+
+    private static Run run(List<String> command, Mode mode, int port, byte[] invoice,
+                           int seconds, int clients) throws Exception {
+        List<String> cmd = new ArrayList<>(command);
+        cmd.addAll(mode.flags());
+        cmd.add("JavaServiceServer");
+        cmd.add(String.valueOf(port));
+        File log = new File(System.getProperty("java.io.tmpdir"), "startup-bench-" + mode.name() + ".log");
+        ProcessBuilder pb = new ProcessBuilder(cmd).redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.to(log));
+
+        HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+        URI base = URI.create("http://127.0.0.1:" + port);
+        HttpRequest validate = HttpRequest.newBuilder(base.resolve("/validate"))
+            .header("Content-Type", "application/xml")
+            .POST(HttpRequest.BodyPublishers.ofByteArray(invoice))
+            .build();
+
+        long launched = System.nanoTime();
+        Process process = pb.start();
+        try {
+            long firstResponse = -1;
+            while (firstResponse < 0) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException(mode.name() + ": service exited during startup, see " + log);
+                }
+                if ((System.nanoTime() - launched) / 1_000_000_000L > 120) {
+                    throw new IllegalStateException(mode.name() + ": no response after 120 s, see " + log);
+                }
+                try {
+                    if (client.send(validate, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                        firstResponse = System.nanoTime() - launched;
+                        break;
+                    }
+                } catch (java.io.IOException notYet) {
+                    // not listening yet
+                }
+                Thread.sleep(5);
+            }
+
+            // Completions per second since launch, until the end of the measured window
+            int firstSecond = (int) (firstResponse / 1_000_000_000L);
+            int lastSecond = firstSecond + seconds;
+            AtomicIntegerArray done = new AtomicIntegerArray(lastSecond + 1);
+            long deadline = launched + lastSecond * 1_000_000_000L;
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                Thread t = new Thread(() -> {
+                    HttpClient own = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+                    long now;
+                    while ((now = System.nanoTime()) < deadline) {
+                        try {
+                            own.send(validate, HttpResponse.BodyHandlers.discarding());
+                        } catch (Exception e) {
+                            return;
+                        }
+                        int second = (int) ((System.nanoTime() - launched) / 1_000_000_000L);
+                        if (second <= lastSecond) done.incrementAndGet(second);
+                    }
+                }, "client-" + i);
+                t.start();
+                threads.add(t);
+            }
+            for (Thread t : threads) t.join();
+
+            // The first second is partial (clients start mid-way) and so is the last
+            double steady = 0;
+            for (int s = lastSecond - 3; s < lastSecond; s++) steady += done.get(s);
+            steady /= 3;
+            long steadyMs = -1;
+            for (int s = firstSecond + 1; s < lastSecond; s++) {
+                if (done.get(s) >= steady * 0.9) {
+                    steadyMs = (s + 1) * 1000L;
+                    break;
+                }
+            }
+
+            String health = client.send(HttpRequest.newBuilder(base.resolve("/health")).build(),
+                HttpResponse.BodyHandlers.ofString()).body();
+            Matcher ready = READY_MS.matcher(health);
+            Matcher cds = APP_CDS.matcher(health);
+            return new Run(firstResponse / 1_000_000, steadyMs, steady,
+                ready.find() ? Long.parseLong(ready.group(1)) : -1,
+                cds.find() ? cds.group(1) : "?");
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Bytes on the wire and latency of /validate and /generate-pdf responses,
+ * with and without Accept-Encoding: gzip, over one kept-alive connection
+ * and over a new connection per request.
+ *
+ * Usage: java WireBench <base-url> <invoice.xml> [iterations]
+ *
+ * Talks HTTP/1.1 over a plain socket so the reported size is exactly what
+ * crossed the connection: status line, headers, chunk framing and body.
+ * The validation case uses an error-heavy variant of the invoice (every
+ * currencyID and unitCode replaced with an unknown code, so the CIUS-RO
+ * code list rules fire once per amount and per line). The PDF case posts
+ * the invoice as is; after the first request it is served by the PDF cache,
+ * so its latency is transfer, not rendering.
+ */
+public class WireBench {
+
+    record Response(int status, long wireBytes, long bodyBytes, boolean reused) {}
+
+    record Case(String name, String path, byte[] body) {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: WireBench <base-url> <invoice.xml> [iterations]");
+            System.exit(1);
+        }
+        URI base = URI.create(args[0].replaceAll("/+$", ""));
+        byte[] invoice = Files.readAllBytes(new File(args[1]).toPath());
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        String broken = new String(invoice, StandardCharsets.UTF_8)
+            .replaceAll("currencyID=\"[A-Z]{3}\"", "currencyID=\"XXX\"")
+            .replaceAll("unitCode=\"[A-Za-z0-9]+\"", "unitCode=\"QQQ\"");
+        Case[] cases = {
+            new Case("validate", "/validate", broken.getBytes(StandardCharsets.UTF_8)),
+            new Case("pdf", "/generate-pdf", invoice),
+        };
+
+        System.out.println("Target: " + base + ", " + iterations + " requests per row");
+        System.out.printf("%-9s %-9s %-10s %6s %11s %11s %7s %8s %8s %7s%n",
+            "endpoint", "encoding", "connection", "status", "wire B/req", "body B/req",
+            "ratio", "p50 ms", "p95 ms", "conns");
+        for (Case c : cases) {
+            for (boolean gzip : new boolean[] {false, true}) {
+                for (boolean keepAlive : new boolean[] {true, false}) {
+                    run(base, c, gzip, keepAlive, iterations);
+                }
+            }
+        }
+    }
+
+    private static void run(URI base, Case c, boolean gzip, boolean keepAlive, int iterations)
+            throws IOException {
+        Connection conn = new Connection(base);
+        for (int i = 0; i < Math.max(10, iterations / 10); i++) {
+            conn.send(c, gzip, keepAlive);  // warm-up
+        }
+        conn.close();
+
+        conn = new Connection(base);
+        double[] ms = new double[iterations];
+        long wire = 0;
+        long body = 0;
+        int status = 0;
+        int opened = 0;
+        for (int i = 0; i < iterations; i++) {
+            long t = System.nanoTime();
+            Response r = conn.send(c, gzip, keepAlive);
+            ms[i] = (System.nanoTime() - t) / 1_000_000.0;
+            wire += r.wireBytes();
+            body += r.bodyBytes();
+            status = r.status();
+            if (!r.reused()) opened++;
+        }
+        conn.close();
+        Arrays.sort(ms);
+        System.out.printf(Locale.ROOT, "%-9s %-9s %-10s %6d %11d %11d %7.2f %8.2f %8.2f %7d%n",
+            c.name(), gzip ? "gzip" : "identity", keepAlive ? "keep-alive" : "close", status,
+            wire / iterations, body / iterations, body == 0 ? 0 : (double) wire / body,
+            ms[ms.length / 2], ms[(int) Math.min(ms.length - 1, ms.length * 0.95)], opened);
+    }
+
+    /** One HTTP/1.1 client connection, reopened when the server closes it. */
+    static final class Connection {
+        private final URI base;
+        private Socket socket;
+        private CountingInputStream in;
+        private OutputStream out;
+
+        Connection(URI base) {
+            this.base = base;
+        }
+
+        Response send(Case c, boolean gzip, boolean keepAlive) throws IOException {
+            boolean reused = socket != null;
+            if (socket == null) open();
+            StringBuilder head = new StringBuilder()
+                .append("POST ").append(c.path()).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(base.getHost()).append(':').append(base.getPort()).append("\r\n")
+                .append("Content-Type: application/xml\r\n")
+                .append("Content-Length: ").append(c.body().length).append("\r\n");
+            if (gzip) head.append("Accept-Encoding: gzip\r\n");
+            if (!keepAlive) head.append("Connection: close\r\n");
+            out.write(head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.write(c.body());
+            out.flush();
+
+            long before = in.count;
+            Map<String, String> headers = new LinkedHashMap<>();
+            String statusLine = readLine();
+            if (statusLine == null) throw new IOException("Connection closed before response");
+            int status = Integer.parseInt(statusLine.split(" ")[1]);
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+            byte[] body = "chunked".equalsIgnoreCase(headers.get("transfer-encoding"))
+                ? readChunked() : in.readNBytes(Integer.parseInt(headers.getOrDefault("content-length", "0")));
+            long wire = in.count - before;
+            if ("gzip".equalsIgnoreCase(headers.get("content-encoding"))) {
+                body = new GZIPInputStream(new ByteArrayInputStream(body)).readAllBytes();
+            }
+            if (!keepAlive || "close".equalsIgnoreCase(headers.get("connection"))) close();
+            return new Response(status, wire, body.length, reused);
+        }
+
+        private void open() throws IOException {
+            socket = new Socket(base.getHost(), base.getPort());
+            socket.setTcpNoDelay(true);
+            in = new CountingInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+            out = socket.getOutputStream();
+        }
+
+        void close() throws IOException {
+            if (socket != null) socket.close();
+            socket = null;
+        }
+
+        private byte[] readChunked() throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            while (true) {
+                String size = readLine();
+                int semicolon = size.indexOf(';');
+                int n = Integer.parseInt((semicolon >= 0 ? size.substring(0, semicolon) : size).trim(), 16);
+                if (n == 0) {
+                    while (!readLine().isEmpty()) {
+                        // trailers
+                    }
+                    return body.toByteArray();
+                }
+                body.write(in.readNBytes(n));
+                readLine();
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n') break;
+                if (b != '\r') sb.append((char) b);
+            }
+            return b == -1 && sb.length() == 0 ? null : sb.toString();
+        }
+    }
+
+    /** Counts bytes handed to the reader; the server sends nothing past a response. */
+    static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+}
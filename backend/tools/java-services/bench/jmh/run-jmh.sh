@@ -0,0 +1,95 @@
+#!/bin/bash
+# JMH benchmark suite for the Java services.
+#
+# Usage: ./run-jmh.sh [benchmark-regex] [jmh options...]
+#   ./run-jmh.sh                        all benchmarks
+#   ./run-jmh.sh XsdBench               one class
+#   ./run-jmh.sh JsonHelpers -f 2 -wi 5 extra JMH options
+#
+# Downloads JMH from Maven Central into bench/jmh/lib/ on first run, compiles
+# the service and the benchmarks into bench/jmh/out/ and runs with the GC
+# profiler (-prof gc), so every result carries gc.alloc.rate.norm (bytes per
+# operation) next to throughput. Inputs come from bench/jmh/corpus/.
+#
+# XsdBench, SchematronBench and DukBench drive the service's own request
+# paths, loaded the way main() loads them. DukBench needs the DUK jars
+# (tools/duk-integrator/update-jars.sh) in -Dduk.dir, which the service loads
+# itself; SignatureBench needs verifsignature.jar.
+
+set -e
+
+SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
+SERVICE_DIR="$(cd "$SCRIPT_DIR/../.." && pwd)"
+PROJECT_DIR="$(cd "$SERVICE_DIR/../.." && pwd)"
+LIB_DIR="$SCRIPT_DIR/lib"
+OUT_DIR="$SCRIPT_DIR/out"
+
+JMH_VERSION="1.37"
+MAVEN_URL="https://repo1.maven.org/maven2"
+JMH_JARS=(
+    "org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar"
+    "org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar"
+    "net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar"
+    "org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar"
+)
+
+# Locate Java
+if [ -n "${JAVA_HOME:-}" ] && [ -x "$JAVA_HOME/bin/java" ]; then
+    JAVA="$JAVA_HOME/bin/java"
+elif [ -x "/opt/homebrew/opt/openjdk@17/bin/java" ]; then
+    JAVA="/opt/homebrew/opt/openjdk@17/bin/java"
+elif [ -x "/opt/homebrew/opt/openjdk/bin/java" ]; then
+    JAVA="/opt/homebrew/opt/openjdk/bin/java"
+elif [ -x "/usr/bin/java" ]; then
+    JAVA="/usr/bin/java"
+elif java -version &>/dev/null 2>&1; then
+    JAVA="java"
+else
+    echo "ERROR: Java not found. Install Java 17+"
+    exit 1
+fi
+
+mkdir -p "$LIB_DIR"
+for path in "${JMH_JARS[@]}"; do
+    jar="$LIB_DIR/$(basename "$path")"
+    if [ ! -f "$jar" ]; then
+        echo -n "  $(basename "$path") ... "
+        if curl -sfL -o "$jar" "$MAVEN_URL/$path"; then
+            echo "OK"
+        else
+            rm -f "$jar"
+            echo "FAILED"
+            exit 1
+        fi
+    fi
+done
+
+CP="$PROJECT_DIR/resources/validator/ROeFacturaValidator.jar"
+CP="$CP:$PROJECT_DIR/resources/validator/saxon-he.jar"
+CP="$CP:$PROJECT_DIR/tools/pdf-generator/dist/generareFactura.jar"
+CP="$CP:$PROJECT_DIR/tools/pdf-generator/dist/lib/*"
+CP="$CP:$PROJECT_DIR/tools/signature-verifier/verifsignature.jar"
+CP="$LIB_DIR/*:$CP"
+
+# -processorpath does not expand wildcards
+PROCESSOR_PATH="$(printf '%s:' "$LIB_DIR"/*.jar)"
+
+# The annotation processor writes the generated harness and
+# META-INF/BenchmarkList next to the compiled classes
+rm -rf "$OUT_DIR"
+mkdir -p "$OUT_DIR"
+"$JAVA"c -encoding UTF-8 -d "$OUT_DIR" -cp "$CP" -processorpath "$PROCESSOR_PATH" \
+    "$SERVICE_DIR/JavaServiceServer.java" "$SCRIPT_DIR"/src/bench/*.java
+
+# Forked benchmark JVMs inherit these flags
+cd "$PROJECT_DIR"
+exec "$JAVA" \
+    --add-opens java.base/java.lang=ALL-UNNAMED \
+    --add-opens java.base/java.util=ALL-UNNAMED \
+    -Djava.awt.headless=true \
+    -Dschema.dir="$PROJECT_DIR/resources" \
+    -Dbench.corpus="$SCRIPT_DIR/corpus" \
+    -Dduk.dir="$PROJECT_DIR/tools/duk-integrator" \
+    -Xms256m -Xmx1g \
+    -cp "$OUT_DIR:$CP" \
+    org.openjdk.jmh.Main -prof gc "$@"
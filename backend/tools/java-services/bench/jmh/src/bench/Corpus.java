@@ -0,0 +1,41 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+
+/**
+ * Locates the checked-in corpus and the service resources for the
+ * benchmarks. run-jmh.sh sets -Dbench.corpus and -Dschema.dir; forked JMH
+ * VMs inherit them.
+ */
+final class Corpus {
+
+    private Corpus() {}
+
+    static File dir() {
+        return new File(System.getProperty("bench.corpus", "corpus"));
+    }
+
+    static File file(String name) {
+        File f = new File(dir(), name);
+        if (!f.exists()) throw new IllegalStateException("Corpus file missing: " + f);
+        return f;
+    }
+
+    static byte[] bytes(String name) {
+        try {
+            return Files.readAllBytes(file(name).toPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static File resource(String path) {
+        String schemaDir = System.getProperty("schema.dir", System.getProperty("user.dir"));
+        File f = new File(schemaDir, path);
+        if (!f.exists()) throw new IllegalStateException("Resource missing: " + f);
+        return f;
+    }
+}
@@ -0,0 +1,59 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DUKIntegrator parseDocument for D394, as done by /duk/validate:
+ * JavaServiceServer's Engines.dukParse in-process, which leases a prebuilt
+ * integrator from the D394 generation of the DukRegistry and returns it
+ * after the call. Needs the DUK jars (update-jars.sh) in -Dduk.dir.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DukBench {
+
+    private static final MethodHandle DUK_PARSE =
+        Service.method("JavaServiceServer$Engines", "dukParse", String.class, String.class);
+
+    @Param({"d394-small", "d394-medium", "d394-large"})
+    public String doc;
+
+    private File xml;
+
+    @Setup
+    public void setup() throws Exception {
+        String dukDir = System.getProperty("duk.dir", "");
+        if (!new File(dukDir, "DUKIntegrator.jar").exists()) {
+            throw new IllegalStateException("DUKIntegrator.jar not found in -Dduk.dir=" + dukDir);
+        }
+        // The service's DUK step, without the jar watcher and the XSD pre-check
+        System.setProperty("duk.types", "D394");
+        System.setProperty("duk.reload", "false");
+        System.setProperty("duk.xsd", "false");
+        Service.useResources();
+        Service.init("initDuk");
+        if (!(boolean) Service.get("dukReady")) throw new IllegalStateException("DUK not loaded");
+        xml = File.createTempFile("jmh_" + doc + "_", ".xml");
+        Files.write(xml.toPath(), Corpus.bytes(doc + ".xml"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        xml.delete();
+        new File(xml.getPath() + ".err.txt").delete();
+    }
+
+    @Benchmark
+    public Object parse() throws Throwable {
+        return (Object) DUK_PARSE.invokeExact("D394", xml.getAbsolutePath());
+    }
+}
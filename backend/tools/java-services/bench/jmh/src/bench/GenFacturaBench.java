@@ -0,0 +1,47 @@
+package bench;
+
+import genFactura.GenFactura;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/** GenFactura PDF generation through temp files, as /generate-pdf falls back to. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GenFacturaBench {
+
+    @Param({"invoice-small", "invoice-medium", "invoice-large",
+            "creditnote-small", "creditnote-medium", "creditnote-large"})
+    public String doc;
+
+    private File xml;
+
+    @Setup
+    public void setup() throws Exception {
+        xml = File.createTempFile("jmh_" + doc + "_", ".xml");
+        Files.write(xml.toPath(), Corpus.bytes(doc + ".xml"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        xml.delete();
+    }
+
+    @Benchmark
+    public long generate() throws Exception {
+        GenFactura gen = new GenFactura();
+        String type = gen.identificaDeclaratie(xml.getAbsolutePath());
+        String pdf = gen.generarePDF(xml.getAbsolutePath(), type);
+        if (pdf == null || pdf.isEmpty()) throw new IllegalStateException(gen.getError());
+        File f = new File(pdf);
+        long size = f.length();
+        f.delete();
+        return size;
+    }
+}
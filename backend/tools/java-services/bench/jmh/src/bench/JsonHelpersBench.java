@@ -0,0 +1,152 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JavaServiceServer.escapeJson, SVRL message cleanup, a 500-entry error list
+ * through the JSON writer and the /verify-signature body reader. The server
+ * lives in the default package, which JMH benchmarks cannot import, so the
+ * helpers are bound once through MethodHandles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonHelpersBench {
+
+    private static final MethodHandle ESCAPE_JSON =
+        helper("JavaServiceServer", "escapeJson", String.class, String.class);
+    private static final MethodHandle CLEAN_SVRL_TEXT =
+        helper("JavaServiceServer", "cleanSvrlText", String.class, String.class);
+    private static final MethodHandle VALIDATION_JSON;
+    private static final MethodHandle WRITE_VALIDATION_JSON;
+    private static final MethodHandle NEW_JSON_WRITER;
+    static {
+        try {
+            Class<?> result = Class.forName("JavaServiceServer$ValidationResult");
+            Class<?> writer = Class.forName("JavaServiceServer$JsonWriter");
+            VALIDATION_JSON = helper("JavaServiceServer", "validationJson", String.class, result)
+                .asType(MethodType.methodType(String.class, Object.class));
+            WRITE_VALIDATION_JSON = helper("JavaServiceServer", "writeValidationJson",
+                void.class, writer, result)
+                .asType(MethodType.methodType(void.class, Closeable.class, Object.class));
+            Constructor<?> c = writer.getDeclaredConstructor(OutputStream.class);
+            c.setAccessible(true);
+            NEW_JSON_WRITER = MethodHandles.lookup().unreflectConstructor(c)
+                .asType(MethodType.methodType(Closeable.class, OutputStream.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    private static final Set<String> SIGNATURE_FIELDS = Set.of("xml", "signature");
+    private static final MethodHandle READ_JSON_FIELDS =
+        helper("JavaServiceServer$JsonFieldReader", "read", Map.class,
+            InputStream.class, Set.class);
+
+    // A typical CIUS-RO failed-assert text and a longer one with quotes,
+    // tabs, newlines and diacritics, as SVRL messages come out
+    private final String shortMessage =
+        "[BR-RO-010] Numarul de identificare al facturii (BT-1) trebuie sa contina cel putin o cifra.";
+    private final String longMessage = ("\t[BR-CO-15] Valoarea totala a facturii cu TVA (BT-112) = " +
+        "\"Valoarea totala fara TVA\" (BT-109) + \"Valoarea TVA\" (BT-110).\n" +
+        "Localitatea și județul furnizorului trebuie să fie codificate.\r\n").repeat(4);
+
+    // SVRL text as it comes out of the engine, before cleanup
+    private final String svrlText = "\n\t\t" + longMessage + "\n\t";
+
+    // ValidationResult with 500 failed asserts, as an error-heavy invoice yields
+    private Object errorHeavyResult;
+
+    // /verify-signature request body: invoice and signature as JSON strings
+    private byte[] signatureBody;
+
+    private static MethodHandle helper(String owner, String name, Class<?> returns,
+                                       Class<?>... params) {
+        try {
+            Method m = Class.forName(owner).getDeclaredMethod(name, params);
+            m.setAccessible(true);
+            return MethodHandles.lookup().unreflect(m)
+                .asType(MethodType.methodType(returns, params));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @Setup
+    public void setup() throws Throwable {
+        String xml = new String(Corpus.bytes("invoice-medium.xml"), StandardCharsets.UTF_8);
+        String sig = new String(Corpus.bytes("invoice-small.signature.xml"), StandardCharsets.UTF_8);
+        signatureBody = ("{\"xml\":" + (String) ESCAPE_JSON.invokeExact(xml) +
+            ",\"signature\":" + (String) ESCAPE_JSON.invokeExact(sig) + "}")
+            .getBytes(StandardCharsets.UTF_8);
+
+        Class<?> entry = Class.forName("JavaServiceServer$ErrorEntry");
+        Constructor<?> newEntry = entry.getDeclaredConstructor(
+            String.class, String.class, String.class, String.class);
+        newEntry.setAccessible(true);
+        List<Object> errors = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            errors.add(newEntry.newInstance(i % 2 == 0 ? shortMessage : longMessage.trim(),
+                "schematron", "BR-RO-" + (100 + i % 40),
+                "/*:Invoice[namespace-uri()='urn:oasis:names:specification:ubl:schema:xsd:Invoice-2'][1]" +
+                "/*:InvoiceLine[" + (i + 1) + "]/*:Price[1]/*:PriceAmount[1]"));
+        }
+        Constructor<?> newResult = Class.forName("JavaServiceServer$ValidationResult")
+            .getDeclaredConstructor(List.class, long.class, long.class, long.class, boolean.class);
+        newResult.setAccessible(true);
+        errorHeavyResult = newResult.newInstance(errors, 0L, 0L, 0L, false);
+    }
+
+    @Benchmark
+    public String escapeShort() throws Throwable {
+        return (String) ESCAPE_JSON.invokeExact(shortMessage);
+    }
+
+    @Benchmark
+    public String escapeLong() throws Throwable {
+        return (String) ESCAPE_JSON.invokeExact(longMessage);
+    }
+
+    @Benchmark
+    public String cleanSvrlText() throws Throwable {
+        return (String) CLEAN_SVRL_TEXT.invokeExact(svrlText);
+    }
+
+    /** Error list into a String, as /process-archive and /jobs keep it. */
+    @Benchmark
+    public String errorList500() throws Throwable {
+        return (String) VALIDATION_JSON.invokeExact(errorHeavyResult);
+    }
+
+    /** Error list streamed through the writer, as /validate sends it. */
+    @Benchmark
+    public void errorList500Stream() throws Throwable {
+        try (Closeable w = (Closeable) NEW_JSON_WRITER.invokeExact(OutputStream.nullOutputStream())) {
+            WRITE_VALIDATION_JSON.invokeExact(w, errorHeavyResult);
+        }
+    }
+
+    @Benchmark
+    public Map<?, ?> readSignatureBody() throws Throwable {
+        return (Map<?, ?>) READ_JSON_FIELDS.invokeExact(
+            (InputStream) new ByteArrayInputStream(signatureBody), SIGNATURE_FIELDS);
+    }
+}
@@ -0,0 +1,49 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CIUS-RO Schematron as done by /validate: JavaServiceServer's
+ * validateDocument with only the Schematron step loaded, so each operation
+ * is the one DOM parse and the service's schematronRO (pure, the default)
+ * or CompiledSchematron (-Dschematron.engine=xslt) over that DOM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SchematronBench {
+
+    private static final MethodHandle VALIDATE_DOCUMENT =
+        Service.method("JavaServiceServer", "validateDocument", byte[].class);
+
+    @Param({"invoice-small", "invoice-medium", "invoice-large",
+            "creditnote-small", "creditnote-medium", "creditnote-large"})
+    public String doc;
+
+    @Param({"pure", "xslt"})
+    public String engine;
+
+    private byte[] xml;
+
+    @Setup
+    public void setup() {
+        Service.useResources();
+        Service.set("schematronEngine", engine);
+        Service.init("initSchematron");
+        if (!(boolean) Service.get("schematronReady")) {
+            throw new IllegalStateException("Schematron not loaded");
+        }
+        xml = Corpus.bytes(doc + ".xml");
+    }
+
+    @Benchmark
+    public Object validate() throws Throwable {
+        return (Object) VALIDATE_DOCUMENT.invokeExact(xml);
+    }
+}
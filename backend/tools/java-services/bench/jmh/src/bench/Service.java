@@ -0,0 +1,87 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Reaches into JavaServiceServer for the benchmarks that time the service's
+ * own code paths. The server lives in the default package, which JMH
+ * benchmarks cannot import, and keeps its subsystems in private statics
+ * loaded by private init methods, so setup sets the fields main() would set,
+ * runs the same init steps and binds the request-path methods once through
+ * MethodHandles.
+ */
+final class Service {
+
+    private static final String SERVER = "JavaServiceServer";
+
+    private Service() {}
+
+    /** Points the server's schemaDir at -Dschema.dir, as main() does. */
+    static void useResources() {
+        set("schemaDir", System.getProperty("schema.dir", System.getProperty("user.dir")));
+    }
+
+    /** Sets a static field of the server, e.g. schematronEngine before an init step. */
+    static void set(String field, Object value) {
+        try {
+            Field f = Class.forName(SERVER).getDeclaredField(field);
+            f.setAccessible(true);
+            f.set(null, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot set " + field, e);
+        }
+    }
+
+    static Object get(String field) {
+        try {
+            Field f = Class.forName(SERVER).getDeclaredField(field);
+            f.setAccessible(true);
+            return f.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot read " + field, e);
+        }
+    }
+
+    /** Runs one of main()'s startup steps, e.g. init("initSchematron"). */
+    static void init(String step, Object... args) {
+        for (Method m : classFor(SERVER).getDeclaredMethods()) {
+            if (m.getName().equals(step) && m.getParameterCount() == args.length) {
+                m.setAccessible(true);
+                try {
+                    m.invoke(null, args);
+                    return;
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(step + " failed", e);
+                }
+            }
+        }
+        throw new IllegalStateException("No startup step " + step);
+    }
+
+    /**
+     * A static method of the server or one of its nested classes, adapted
+     * to take and return Object for its package-private types.
+     */
+    static MethodHandle method(String owner, String name, Class<?>... params) {
+        try {
+            Method m = classFor(owner).getDeclaredMethod(name, params);
+            m.setAccessible(true);
+            return MethodHandles.lookup().unreflect(m)
+                .asType(MethodType.methodType(Object.class, params));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot bind " + owner + "." + name, e);
+        }
+    }
+
+    private static Class<?> classFor(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
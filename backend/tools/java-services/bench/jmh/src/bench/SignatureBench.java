@@ -0,0 +1,67 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import ro.mfinante.ValidateDetachedSignatureSanturio;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detached signature verification as done by /verify-signature: the
+ * Santuario wrapper over temp files and the in-memory JDK engine
+ * (JavaServiceServer.NativeSignatureVerifier). The corpus pair is signed
+ * with a throwaway self-signed key, so both engines run the full parse,
+ * digest and signature path and report the certificate as untrusted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBench {
+
+    private String xmlPath;
+    private String signaturePath;
+    private byte[] xml;
+    private byte[] signature;
+    private Object nativeVerifier;
+    private MethodHandle nativeVerify;
+
+    @Setup
+    public void setup() throws Exception {
+        xmlPath = Corpus.file("invoice-small.xml").getAbsolutePath();
+        signaturePath = Corpus.file("invoice-small.signature.xml").getAbsolutePath();
+        xml = Corpus.bytes("invoice-small.xml");
+        signature = Corpus.bytes("invoice-small.signature.xml");
+
+        // Default-package classes: bind through reflection
+        Class<?> cache = Class.forName("JavaServiceServer$SignerCertCache");
+        Constructor<?> cacheCtor = cache.getDeclaredConstructor(List.class, Set.class, int.class);
+        cacheCtor.setAccessible(true);
+        Class<?> c = Class.forName("JavaServiceServer$NativeSignatureVerifier");
+        Constructor<?> ctor = c.getDeclaredConstructor(cache);
+        ctor.setAccessible(true);
+        nativeVerifier = ctor.newInstance(cacheCtor.newInstance(List.of(), null, 256));
+        Method verify = c.getDeclaredMethod("verify", byte[].class, byte[].class);
+        verify.setAccessible(true);
+        nativeVerify = MethodHandles.lookup().unreflect(verify)
+            .asType(MethodType.methodType(Object.class, Object.class, byte[].class, byte[].class));
+    }
+
+    @Benchmark
+    public String verify() throws Exception {
+        return ValidateDetachedSignatureSanturio.verify(xmlPath, signaturePath);
+    }
+
+    @Benchmark
+    public Object verifyNative() throws Throwable {
+        return (Object) nativeVerify.invokeExact(nativeVerifier, xml, signature);
+    }
+}
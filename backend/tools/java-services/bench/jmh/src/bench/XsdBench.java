@@ -0,0 +1,44 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UBL 2.1 XSD validation as done by /validate: JavaServiceServer's
+ * validateDocument with only the XSD step loaded, so each operation is the
+ * root peek, the dispatch through xsdSchemas, the one DOM parse and XSD
+ * over that DOM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XsdBench {
+
+    private static final MethodHandle VALIDATE_DOCUMENT =
+        Service.method("JavaServiceServer", "validateDocument", byte[].class);
+
+    @Param({"invoice-small", "invoice-medium", "invoice-large",
+            "creditnote-small", "creditnote-medium", "creditnote-large"})
+    public String doc;
+
+    private byte[] xml;
+
+    @Setup
+    public void setup() {
+        Service.useResources();
+        Service.init("initUblXsd", Service.get("UBL_INVOICE_NS"), "maindoc/UBL-Invoice-2.1.xsd");
+        Service.init("initUblXsd", Service.get("UBL_CREDIT_NOTE_NS"), "maindoc/UBL-CreditNote-2.1.xsd");
+        if (!(boolean) Service.get("xsdReady")) throw new IllegalStateException("XSD not loaded");
+        xml = Corpus.bytes(doc + ".xml");
+    }
+
+    @Benchmark
+    public Object validate() throws Throwable {
+        return (Object) VALIDATE_DOCUMENT.invokeExact(xml);
+    }
+}
@@ -0,0 +1,43 @@
+#!/bin/bash
+# Mixed /validate + /generate-pdf load test against a running service.
+#
+# Usage: ./run-load-test.sh <corpus-dir> [seconds-per-level] [validate-share]
+#   <corpus-dir>  directory of UBL Invoice / CreditNote *.xml files
+#
+# Start the service first, once per mode to compare:
+#   EXECUTOR_MODE=platform ../start-java-services.sh
+#   EXECUTOR_MODE=virtual  ../start-java-services.sh   (Java 21+)
+# JAVA_SERVICE_URL overrides the target (default http://127.0.0.1:8082),
+# LEVELS the client multipliers of the core count (default 1,4,16).
+
+set -e
+
+if [ $# -lt 1 ]; then
+    echo "Usage: $0 <corpus-dir> [seconds-per-level] [validate-share]" >&2
+    exit 1
+fi
+
+SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
+OUT_DIR="$SCRIPT_DIR/out"
+
+# Locate Java
+if [ -n "${JAVA_HOME:-}" ] && [ -x "$JAVA_HOME/bin/java" ]; then
+    JAVA="$JAVA_HOME/bin/java"
+elif [ -x "/opt/homebrew/opt/openjdk@17/bin/java" ]; then
+    JAVA="/opt/homebrew/opt/openjdk@17/bin/java"
+elif [ -x "/opt/homebrew/opt/openjdk/bin/java" ]; then
+    JAVA="/opt/homebrew/opt/openjdk/bin/java"
+elif [ -x "/usr/bin/java" ]; then
+    JAVA="/usr/bin/java"
+elif java -version &>/dev/null 2>&1; then
+    JAVA="java"
+else
+    echo "ERROR: Java not found. Install Java 17+"
+    exit 1
+fi
+
+mkdir -p "$OUT_DIR"
+"$JAVA"c -encoding UTF-8 -d "$OUT_DIR" "$SCRIPT_DIR/LoadTest.java"
+
+exec "$JAVA" -Dlevels="${LEVELS:-1,4,16}" -cp "$OUT_DIR" \
+    LoadTest "${JAVA_SERVICE_URL:-http://127.0.0.1:8082}" "$@"
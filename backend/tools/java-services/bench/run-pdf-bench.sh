@@ -0,0 +1,55 @@
+#!/bin/bash
+# Compare per-PDF latency of the GenFactura, disk and preloaded-registry paths.
+#
+# Usage: ./run-pdf-bench.sh <corpus-dir> [iterations]
+#   <corpus-dir>  directory of UBL Invoice / CreditNote *.xml files
+#
+# Uses the same classpath as start-java-services.sh; compiled classes go to
+# bench/out/ so the service's own .class files are left alone.
+
+set -e
+
+if [ $# -lt 1 ]; then
+    echo "Usage: $0 <corpus-dir> [iterations]" >&2
+    exit 1
+fi
+
+SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
+SERVICE_DIR="$(cd "$SCRIPT_DIR/.." && pwd)"
+PROJECT_DIR="$(cd "$SERVICE_DIR/../.." && pwd)"
+OUT_DIR="$SCRIPT_DIR/out"
+
+# Locate Java
+if [ -n "${JAVA_HOME:-}" ] && [ -x "$JAVA_HOME/bin/java" ]; then
+    JAVA="$JAVA_HOME/bin/java"
+elif [ -x "/opt/homebrew/opt/openjdk@17/bin/java" ]; then
+    JAVA="/opt/homebrew/opt/openjdk@17/bin/java"
+elif [ -x "/opt/homebrew/opt/openjdk/bin/java" ]; then
+    JAVA="/opt/homebrew/opt/openjdk/bin/java"
+elif [ -x "/usr/bin/java" ]; then
+    JAVA="/usr/bin/java"
+elif java -version &>/dev/null 2>&1; then
+    JAVA="java"
+else
+    echo "ERROR: Java not found. Install Java 17+"
+    exit 1
+fi
+
+CP="$PROJECT_DIR/resources/validator/ROeFacturaValidator.jar"
+CP="$CP:$PROJECT_DIR/resources/validator/saxon-he.jar"
+CP="$CP:$PROJECT_DIR/tools/pdf-generator/dist/generareFactura.jar"
+CP="$CP:$PROJECT_DIR/tools/pdf-generator/dist/lib/*"
+
+mkdir -p "$OUT_DIR"
+"$JAVA"c -encoding UTF-8 -d "$OUT_DIR" -cp "$CP" \
+    "$SERVICE_DIR/JavaServiceServer.java" "$SCRIPT_DIR/PdfRenderBench.java"
+
+cd "$PROJECT_DIR"
+exec "$JAVA" \
+    --add-opens java.base/java.lang=ALL-UNNAMED \
+    --add-opens java.base/java.util=ALL-UNNAMED \
+    -Djava.awt.headless=true \
+    -Dschema.dir="$PROJECT_DIR/resources" \
+    -Xms256m -Xmx1g \
+    -cp "$OUT_DIR:$CP" \
+    PdfRenderBench "$@"
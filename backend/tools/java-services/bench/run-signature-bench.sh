@@ -0,0 +1,47 @@
+#!/bin/bash
+# Native signature verification with and without the signer certificate cache.
+#
+# Usage: ./run-signature-bench.sh [count]
+#   count  verifications per mode (default 10000)
+#
+# Uses the same classpath as start-java-services.sh and the signature pair
+# in bench/jmh/corpus; compiled classes go to bench/out/.
+
+set -e
+
+SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
+SERVICE_DIR="$(cd "$SCRIPT_DIR/.." && pwd)"
+PROJECT_DIR="$(cd "$SERVICE_DIR/../.." && pwd)"
+OUT_DIR="$SCRIPT_DIR/out"
+
+# Locate Java
+if [ -n "${JAVA_HOME:-}" ] && [ -x "$JAVA_HOME/bin/java" ]; then
+    JAVA="$JAVA_HOME/bin/java"
+elif [ -x "/opt/homebrew/opt/openjdk@17/bin/java" ]; then
+    JAVA="/opt/homebrew/opt/openjdk@17/bin/java"
+elif [ -x "/opt/homebrew/opt/openjdk/bin/java" ]; then
+    JAVA="/opt/homebrew/opt/openjdk/bin/java"
+elif [ -x "/usr/bin/java" ]; then
+    JAVA="/usr/bin/java"
+elif java -version &>/dev/null 2>&1; then
+    JAVA="java"
+else
+    echo "ERROR: Java not found. Install Java 17+"
+    exit 1
+fi
+
+CP="$PROJECT_DIR/resources/validator/ROeFacturaValidator.jar"
+CP="$CP:$PROJECT_DIR/resources/validator/saxon-he.jar"
+CP="$CP:$PROJECT_DIR/tools/pdf-generator/dist/generareFactura.jar"
+CP="$CP:$PROJECT_DIR/tools/pdf-generator/dist/lib/*"
+CP="$CP:$PROJECT_DIR/tools/signature-verifier/verifsignature.jar"
+
+mkdir -p "$OUT_DIR"
+"$JAVA"c -encoding UTF-8 -d "$OUT_DIR" -cp "$CP" \
+    "$SERVICE_DIR/JavaServiceServer.java" "$SCRIPT_DIR/SignatureCacheBench.java"
+
+exec "$JAVA" \
+    -Dbench.corpus="$SCRIPT_DIR/jmh/corpus" \
+    -Xms256m -Xmx1g \
+    -cp "$OUT_DIR:$CP" \
+    SignatureCacheBench "$@"
@@ -0,0 +1,76 @@
+#!/bin/bash
+# Time to first response and to steady-state throughput after launch, with
+# sequential and parallel subsystem loading and with the CDS archive.
+#
+# Usage: ./run-startup-bench.sh <invoice.xml> [seconds] [clients] [runs]
+#   <invoice.xml>  a UBL invoice posted to /validate
+#
+# Launches the service itself on STARTUP_BENCH_PORT (default 18093) once per
+# mode and run, with the jar-only class path start-java-services.sh uses with
+# the archive, so the three modes differ only in their flags. The validation
+# result cache is off so every request after the first still validates. Run
+# ../build-cds.sh first for the CDS mode; it is skipped without an archive.
+
+set -e
+
+if [ $# -lt 1 ]; then
+    echo "Usage: $0 <invoice.xml> [seconds] [clients] [runs]" >&2
+    exit 1
+fi
+
+SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
+SERVICE_DIR="$(cd "$SCRIPT_DIR/.." && pwd)"
+PROJECT_DIR="$(cd "$SERVICE_DIR/../.." && pwd)"
+OUT_DIR="$SCRIPT_DIR/out"
+INVOICE="$(cd "$(dirname "$1")" && pwd)/$(basename "$1")"
+shift
+
+# Locate Java
+if [ -n "${JAVA_HOME:-}" ] && [ -x "$JAVA_HOME/bin/java" ]; then
+    JAVA="$JAVA_HOME/bin/java"
+elif [ -x "/opt/homebrew/opt/openjdk@17/bin/java" ]; then
+    JAVA="/opt/homebrew/opt/openjdk@17/bin/java"
+elif [ -x "/opt/homebrew/opt/openjdk/bin/java" ]; then
+    JAVA="/opt/homebrew/opt/openjdk/bin/java"
+elif [ -x "/usr/bin/java" ]; then
+    JAVA="/usr/bin/java"
+elif java -version &>/dev/null 2>&1; then
+    JAVA="java"
+else
+    echo "ERROR: Java not found. Install Java 17+"
+    exit 1
+fi
+
+if [ ! -f "$SERVICE_DIR/javaservices.jar" ]; then
+    echo "ERROR: $SERVICE_DIR/javaservices.jar not found, run ../build-cds.sh first" >&2
+    exit 1
+fi
+
+CP="$PROJECT_DIR/resources/validator/ROeFacturaValidator.jar"
+CP="$CP:$PROJECT_DIR/resources/validator/saxon-he.jar"
+CP="$CP:$PROJECT_DIR/tools/pdf-generator/dist/generareFactura.jar"
+CP="$CP:$PROJECT_DIR/tools/pdf-generator/dist/lib/*"
+CP="$CP:$PROJECT_DIR/tools/signature-verifier/verifsignature.jar"
+CP="$CP:$SERVICE_DIR/javaservices.jar"
+
+mkdir -p "$OUT_DIR"
+"$JAVA"c -encoding UTF-8 -d "$OUT_DIR" "$SCRIPT_DIR/StartupBench.java"
+
+cd "$PROJECT_DIR"
+exec "$JAVA" -cp "$OUT_DIR" StartupBench "$INVOICE" "${STARTUP_BENCH_PORT:-18093}" \
+    "$SERVICE_DIR/javaservices.jsa" "$@" -- \
+    "$JAVA" \
+    --add-opens java.base/java.lang=ALL-UNNAMED \
+    --add-opens java.base/java.lang.reflect=ALL-UNNAMED \
+    --add-opens java.base/java.io=ALL-UNNAMED \
+    --add-opens java.base/java.util=ALL-UNNAMED \
+    --add-opens java.base/sun.nio.ch=ALL-UNNAMED \
+    --add-opens java.base/java.net=ALL-UNNAMED \
+    --add-opens java.base/java.security=ALL-UNNAMED \
+    --add-opens java.xml/com.sun.org.apache.xml.internal.security=ALL-UNNAMED \
+    --add-opens java.xml/com.sun.org.apache.xml.internal.security.utils=ALL-UNNAMED \
+    -Djava.awt.headless=true \
+    -Dschema.dir="$PROJECT_DIR/resources" \
+    -Dvalidate.cache.size=0 \
+    -Xms128m -Xmx512m \
+    -cp "$CP"
@@ -0,0 +1,41 @@
+#!/bin/bash
+# Bytes on the wire and latency with and without gzip and keep-alive.
+#
+# Usage: ./run-wire-bench.sh <invoice.xml> [iterations]
+#   <invoice.xml>  a UBL invoice; an error-heavy variant is derived from it
+#
+# Start the service first; run once more after restarting it with
+# HTTP_GZIP_PDF=true ../start-java-services.sh to see what compressing PDFs
+# would buy. JAVA_SERVICE_URL overrides the target (default
+# http://127.0.0.1:8082).
+
+set -e
+
+if [ $# -lt 1 ]; then
+    echo "Usage: $0 <invoice.xml> [iterations]" >&2
+    exit 1
+fi
+
+SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
+OUT_DIR="$SCRIPT_DIR/out"
+
+# Locate Java
+if [ -n "${JAVA_HOME:-}" ] && [ -x "$JAVA_HOME/bin/java" ]; then
+    JAVA="$JAVA_HOME/bin/java"
+elif [ -x "/opt/homebrew/opt/openjdk@17/bin/java" ]; then
+    JAVA="/opt/homebrew/opt/openjdk@17/bin/java"
+elif [ -x "/opt/homebrew/opt/openjdk/bin/java" ]; then
+    JAVA="/opt/homebrew/opt/openjdk/bin/java"
+elif [ -x "/usr/bin/java" ]; then
+    JAVA="/usr/bin/java"
+elif java -version &>/dev/null 2>&1; then
+    JAVA="java"
+else
+    echo "ERROR: Java not found. Install Java 17+"
+    exit 1
+fi
+
+mkdir -p "$OUT_DIR"
+"$JAVA"c -encoding UTF-8 -d "$OUT_DIR" "$SCRIPT_DIR/WireBench.java"
+
+exec "$JAVA" -cp "$OUT_DIR" WireBench "${JAVA_SERVICE_URL:-http://127.0.0.1:8082}" "$@"
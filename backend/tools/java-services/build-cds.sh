@@ -0,0 +1,146 @@
+#!/bin/bash
+# Build an application CDS archive (javaservices.jsa) for JavaServiceServer.
+#
+# Usage: ./build-cds.sh [rounds]
+#   [rounds]  passes over the training documents (default 3)
+#
+# Starts the service on a spare port (CDS_TRAINING_PORT, default 18092) with
+# -XX:ArchiveClassesAtExit, sends every endpoint the sample documents in
+# bench/jmh/corpus (CDS_CORPUS overrides), then stops it; the JVM writes the
+# archive on exit. The archive holds every class the training run loaded
+# from the class path: the validator, Saxon, Jasper, Batik, Groovy,
+# Santuario, GenFactura and the service itself. DUK jars are loaded by
+# per-type class loaders from snapshot copies and are not covered.
+#
+# The JVM will not archive classes from a non-empty class path directory,
+# so the service classes are packaged into javaservices.jar (when a JDK is
+# available; a JRE-only image ships the jar prebuilt). start-java-services.sh
+# switches to that jar and the archive while the archive is newer than
+# JavaServiceServer.java; rebuild after changing the source or any jar.
+
+set -e
+
+SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
+PROJECT_DIR="$(cd "$SCRIPT_DIR/../.." && pwd)"
+CORPUS_DIR="${CDS_CORPUS:-$SCRIPT_DIR/bench/jmh/corpus}"
+PORT="${CDS_TRAINING_PORT:-18092}"
+ROUNDS="${1:-3}"
+JAR="$SCRIPT_DIR/javaservices.jar"
+ARCHIVE="$SCRIPT_DIR/javaservices.jsa"
+
+# Locate Java
+if [ -n "${JAVA_HOME:-}" ] && [ -x "$JAVA_HOME/bin/java" ]; then
+    JAVA="$JAVA_HOME/bin/java"
+elif [ -x "/opt/homebrew/opt/openjdk@17/bin/java" ]; then
+    JAVA="/opt/homebrew/opt/openjdk@17/bin/java"
+elif [ -x "/opt/homebrew/opt/openjdk/bin/java" ]; then
+    JAVA="/opt/homebrew/opt/openjdk/bin/java"
+elif [ -x "/usr/bin/java" ]; then
+    JAVA="/usr/bin/java"
+elif java -version &>/dev/null 2>&1; then
+    JAVA="java"
+else
+    echo "ERROR: Java not found. Install Java 17+"
+    exit 1
+fi
+
+# Must match the class path start-java-services.sh uses with the archive
+CP="$PROJECT_DIR/resources/validator/ROeFacturaValidator.jar"
+CP="$CP:$PROJECT_DIR/resources/validator/saxon-he.jar"
+CP="$CP:$PROJECT_DIR/tools/pdf-generator/dist/generareFactura.jar"
+CP="$CP:$PROJECT_DIR/tools/pdf-generator/dist/lib/*"
+CP="$CP:$PROJECT_DIR/tools/signature-verifier/verifsignature.jar"
+CP="$CP:$JAR"
+
+if command -v "${JAVA}c" >/dev/null 2>&1 && [ -f "$SCRIPT_DIR/JavaServiceServer.java" ]; then
+    echo "Packaging $JAR..."
+    BUILD_DIR="$(mktemp -d)"
+    trap 'rm -rf "$BUILD_DIR"' EXIT
+    "$JAVA"c -encoding UTF-8 -d "$BUILD_DIR" -cp "$CP" "$SCRIPT_DIR/JavaServiceServer.java"
+    "${JAVA%java}jar" cf "$JAR" -C "$BUILD_DIR" .
+elif [ ! -f "$JAR" ]; then
+    echo "ERROR: no JDK to build $JAR and no prebuilt jar" >&2
+    exit 1
+fi
+
+# Same flags as start-java-services.sh
+JAVA_OPTS=(
+    --add-opens java.base/java.lang=ALL-UNNAMED
+    --add-opens java.base/java.lang.reflect=ALL-UNNAMED
+    --add-opens java.base/java.io=ALL-UNNAMED
+    --add-opens java.base/java.util=ALL-UNNAMED
+    --add-opens java.base/sun.nio.ch=ALL-UNNAMED
+    --add-opens java.base/java.net=ALL-UNNAMED
+    --add-opens java.base/java.security=ALL-UNNAMED
+    --add-opens java.xml/com.sun.org.apache.xml.internal.security=ALL-UNNAMED
+    --add-opens java.xml/com.sun.org.apache.xml.internal.security.utils=ALL-UNNAMED
+)
+
+rm -f "$ARCHIVE"
+cd "$PROJECT_DIR"
+"$JAVA" "${JAVA_OPTS[@]}" \
+    -XX:ArchiveClassesAtExit="$ARCHIVE" \
+    -Djava.awt.headless=true \
+    -Dschema.dir="$PROJECT_DIR/resources" \
+    -Xms128m -Xmx512m \
+    -cp "$CP" \
+    JavaServiceServer "$PORT" &
+JAVA_PID=$!
+trap 'kill "$JAVA_PID" 2>/dev/null; rm -rf "${BUILD_DIR:-}"' EXIT
+
+URL="http://127.0.0.1:$PORT"
+for i in $(seq 1 240); do
+    curl -s "$URL/health" > /dev/null 2>&1 && break
+    if ! kill -0 "$JAVA_PID" 2>/dev/null; then
+        echo "ERROR: training service exited during startup" >&2
+        exit 1
+    fi
+    sleep 0.5
+done
+
+post() {
+    curl -s -o /dev/null -w "%{http_code} $1\n" -X POST "$URL$1" "${@:2}" || true
+}
+
+echo "Training ($ROUNDS rounds over $CORPUS_DIR)..."
+for round in $(seq 1 "$ROUNDS"); do
+    for f in "$CORPUS_DIR"/invoice-*.xml "$CORPUS_DIR"/creditnote-*.xml; do
+        case "$f" in *.signature.xml) continue ;; esac
+        [ -f "$f" ] || continue
+        post /validate --data-binary @"$f" -H "Content-Type: application/xml"
+        post /generate-pdf --data-binary @"$f" -H "Content-Type: application/xml"
+        post /etransport/validate --data-binary @"$f" -H "Content-Type: application/xml"
+    done
+    if [ -f "$CORPUS_DIR/invoice-small.signature.xml" ]; then
+        post /verify-signature -F "xml=@$CORPUS_DIR/invoice-small.xml" \
+            -F "signature=@$CORPUS_DIR/invoice-small.signature.xml"
+    fi
+    post /validate/batch -F "a=@$CORPUS_DIR/invoice-small.xml" -F "b=@$CORPUS_DIR/creditnote-small.xml"
+    for f in "$CORPUS_DIR"/d394-*.xml; do
+        [ -f "$f" ] || continue
+        post "/duk/validate?type=D394" --data-binary @"$f"
+        post "/duk/generate-pdf?type=D394" --data-binary @"$f"
+    done
+    curl -s -o /dev/null "$URL/metrics" || true
+done | sort | uniq -c
+
+# The archive is written while the JVM exits
+kill -TERM "$JAVA_PID"
+wait "$JAVA_PID" 2>/dev/null || true
+trap - EXIT
+rm -rf "${BUILD_DIR:-}"
+
+if [ ! -f "$ARCHIVE" ]; then
+    echo "ERROR: no archive written" >&2
+    exit 1
+fi
+
+# -Xshare:on refuses to start unless the archive maps on top of the JDK's
+# base archive with this class path; -Xshare:auto would just skip it
+if ! "$JAVA" -Xshare:on -XX:SharedArchiveFile="$ARCHIVE" -cp "$CP" -version > /dev/null 2>&1; then
+    "$JAVA" -Xshare:on -XX:SharedArchiveFile="$ARCHIVE" -cp "$CP" -version 2>&1 | tail -5 >&2
+    echo "ERROR: $ARCHIVE does not map with the service class path" >&2
+    rm -f "$ARCHIVE"
+    exit 1
+fi
+echo "Wrote $ARCHIVE ($(du -h "$ARCHIVE" | cut -f1))"
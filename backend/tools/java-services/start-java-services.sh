@@ -3,6 +3,32 @@
 #
 # Usage: ./start-java-services.sh [port]
 # Default port: 8082
+#
+# SCHEMATRON_ENGINE=xslt compiles the CIUS-RO Schematron to XSLT at startup
+# instead of interpreting it with the pure engine (default: pure).
+# PDF_ENGINE=genfactura disables in-memory Jasper rendering and keeps the
+# temp-file GenFactura path (default: jasper, falls back to GenFactura).
+# SIGNATURE_ENGINE=santuario disables in-memory XMLDSig verification and keeps
+# the temp-file Santuario wrapper (default: native, falls back to Santuario).
+# EXECUTOR_MODE=virtual runs handlers on virtual threads with CPU-bound
+# stages capped at the core count (Java 21+; default: platform).
+# HTTP_GZIP=false turns off gzip for clients sending Accept-Encoding: gzip
+# (default: on for JSON, text and multipart bodies of 1 KiB or more);
+# HTTP_GZIP_PDF=true compresses PDFs too (default: off, see
+# bench/run-wire-bench.sh).
+# ENGINE_WORKERS=N runs GenFactura and DUKIntegrator in N child JVMs, one call
+# each at a time, recycled after -Dworkers.maxJobs calls (500) or above
+# -Dworkers.maxHeapMb of live heap (288 of -Dworkers.heapMb=384); default 0
+# keeps them in this JVM.
+# JAVA_CDS=false ignores the application CDS archive that build-cds.sh writes
+# (javaservices.jsa); by default it is used while newer than
+# JavaServiceServer.java, together with the javaservices.jar it was built from.
+#
+# Keep-alive: idle connections are kept for 125s (-Dhttp.keepAlive.idleSeconds),
+# longer than curl's 118s connection max age, so Symfony HttpClient retires a
+# pooled connection before the server would close it. Connections survive any
+# response, including errors, as long as the client does not send
+# "Connection: close".
 
 set -e
 
@@ -29,11 +55,11 @@ fi
 
 # Build classpath
 CP="$PROJECT_DIR/resources/validator/ROeFacturaValidator.jar"
+CP="$CP:$PROJECT_DIR/resources/validator/saxon-he.jar"
 CP="$CP:$PROJECT_DIR/tools/pdf-generator/dist/generareFactura.jar"
 CP="$CP:$PROJECT_DIR/tools/pdf-generator/dist/lib/*"
 CP="$CP:$PROJECT_DIR/tools/pdf-generator/dist/"
 CP="$CP:$PROJECT_DIR/tools/signature-verifier/verifsignature.jar"
-CP="$CP:$PROJECT_DIR/tools/duk-integrator/*"
 CP="$CP:$SCRIPT_DIR"
 
 # Compile if needed
@@ -43,6 +69,24 @@ if [ ! -f "$SCRIPT_DIR/JavaServiceServer.class" ] || \
     "$JAVA"c -cp "$CP" "$SCRIPT_DIR/JavaServiceServer.java"
 fi
 
+# Application CDS: the archive only matches the jar-only class path it was
+# trained with (see build-cds.sh)
+CDS_OPTS=()
+JSA="$SCRIPT_DIR/javaservices.jsa"
+if [ "${JAVA_CDS:-true}" != "false" ] && [ -f "$JSA" ] && [ -f "$SCRIPT_DIR/javaservices.jar" ] && \
+   [ "$JSA" -nt "$SCRIPT_DIR/JavaServiceServer.java" ]; then
+    CP="$PROJECT_DIR/resources/validator/ROeFacturaValidator.jar"
+    CP="$CP:$PROJECT_DIR/resources/validator/saxon-he.jar"
+    CP="$CP:$PROJECT_DIR/tools/pdf-generator/dist/generareFactura.jar"
+    CP="$CP:$PROJECT_DIR/tools/pdf-generator/dist/lib/*"
+    CP="$CP:$PROJECT_DIR/tools/signature-verifier/verifsignature.jar"
+    CP="$CP:$SCRIPT_DIR/javaservices.jar"
+    CDS_OPTS=(-XX:SharedArchiveFile="$JSA" -Xshare:auto)
+    echo "Using CDS archive $JSA"
+elif [ -f "$JSA" ] && [ "${JAVA_CDS:-true}" != "false" ]; then
+    echo "CDS archive is older than JavaServiceServer.java, ignoring it (rerun build-cds.sh)"
+fi
+
 # Stop existing instance
 if [ -f "$PID_FILE" ]; then
     OLD_PID=$(cat "$PID_FILE")
@@ -71,7 +115,15 @@ cd "$PROJECT_DIR"
 "$JAVA" "${JAVA_OPTS[@]}" \
     -Djava.awt.headless=true \
     -Dschema.dir="$PROJECT_DIR/resources" \
+    -Dschematron.engine="${SCHEMATRON_ENGINE:-pure}" \
+    -Dpdf.engine="${PDF_ENGINE:-jasper}" \
+    -Dsignature.engine="${SIGNATURE_ENGINE:-native}" \
+    -Dexecutor.mode="${EXECUTOR_MODE:-platform}" \
+    -Dhttp.gzip="${HTTP_GZIP:-true}" \
+    -Dhttp.gzip.pdf="${HTTP_GZIP_PDF:-false}" \
+    -Dworkers.count="${ENGINE_WORKERS:-0}" \
     -Xms128m -Xmx512m \
+    "${CDS_OPTS[@]}" \
     -cp "$CP" \
     JavaServiceServer "$PORT" &
 